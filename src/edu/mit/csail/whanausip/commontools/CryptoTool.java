@@ -1,7 +1,11 @@
 package edu.mit.csail.whanausip.commontools;
 
 import java.math.BigInteger;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.io.*;
 import java.security.*;
 import java.security.cert.CertificateException;
@@ -19,11 +23,140 @@ import org.bouncycastle.x509.extension.SubjectKeyIdentifierStructure;
 /**
  * Performs all cryptographic functions,
  * including hashing, digital signatures etc.
+ * Signature, KeyFactory and MessageDigest engines are borrowed from small
+ * bounded pools and given back after use, so they are reused on pooled
+ * and on virtual threads alike. Decoded public keys are cached by their encoding
  * 
  * @author ryscheng
  * @date 2009/05/07
  */
 public class CryptoTool {
+	/*********************
+	 * REUSABLE ENGINES
+	 *********************/
+	//Engines are not thread-safe, a caller borrows one and gives it back when done
+	private static final EnginePool<Signature> 		sigEngines 			= new EnginePool<Signature>() {
+		protected Signature create() throws NoSuchAlgorithmException {
+			return Signature.getInstance(WhanauDHTConstants.CRYPTO_SIG_ALG, 
+											WhanauDHTConstants.CRYPTO_PROVIDER);
+		}
+	};
+	private static final EnginePool<KeyFactory> 	keyFactories 		= new EnginePool<KeyFactory>() {
+		protected KeyFactory create() throws NoSuchAlgorithmException {
+			return KeyFactory.getInstance(WhanauDHTConstants.CRYPTO_KEY_ALG,
+											WhanauDHTConstants.CRYPTO_PROVIDER);
+		}
+	};
+	private static final EnginePool<Signature> 		ed25519Engines 		= new EnginePool<Signature>() {
+		protected Signature create() throws NoSuchAlgorithmException {
+			return (ED25519_PROVIDER != null) ? 
+					Signature.getInstance(WhanauDHTConstants.ED25519_SIG_ALG, ED25519_PROVIDER) : 
+					Signature.getInstance(WhanauDHTConstants.ED25519_SIG_ALG);
+		}
+	};
+	private static final EnginePool<KeyFactory> 	ed25519KeyFactories = new EnginePool<KeyFactory>() {
+		protected KeyFactory create() throws NoSuchAlgorithmException {
+			return (ED25519_PROVIDER != null) ? 
+					KeyFactory.getInstance(WhanauDHTConstants.ED25519_KEY_ALG, ED25519_PROVIDER) : 
+					KeyFactory.getInstance(WhanauDHTConstants.ED25519_KEY_ALG);
+		}
+	};
+	private static final EnginePool<MessageDigest> 	sha1Digests 		= new EnginePool<MessageDigest>() {
+		protected MessageDigest create() throws NoSuchAlgorithmException {
+			return MessageDigest.getInstance("SHA-1");
+		}
+	};
+	//Decoded public keys (immutable, shared by all threads)
+	private static final PublicKeyCache 			pubKeys 			= 
+								new PublicKeyCache(WhanauDHTConstants.CRYPTO_PUBKEY_CACHE_SIZE);
+	private static final PublicKeyCache 			ed25519PubKeys 		= 
+								new PublicKeyCache(WhanauDHTConstants.CRYPTO_PUBKEY_CACHE_SIZE);
+	
+	/**
+	 * Bounded pool of engines of one kind.
+	 * borrow() takes an idle engine, or creates a new one if there is none;
+	 * giveBack(...) keeps it for reuse, unless CRYPTO_ENGINE_POOL_SIZE are idle already.
+	 * Engines are not tied to a thread, so short-lived virtual threads reuse them too
+	 */
+	private static abstract class EnginePool<E> {
+		private final ArrayBlockingQueue<E> 	idle;		//Engines not in use
+		
+		public EnginePool() {
+			this.idle = new ArrayBlockingQueue<E>(Math.max(1, WhanauDHTConstants.CRYPTO_ENGINE_POOL_SIZE));
+		}
+		
+		/**
+		 * Creates a new engine
+		 * 
+		 * @return E
+		 * @throws NoSuchAlgorithmException
+		 */
+		protected abstract E create() throws NoSuchAlgorithmException;
+		
+		public E borrow() throws NoSuchAlgorithmException {
+			E engine = this.idle.poll();
+			if (engine == null)
+				engine = this.create();
+			return engine;
+		}
+		
+		public void giveBack(E engine) {
+			this.idle.offer(engine);
+		}
+	}
+	
+	/**
+	 * Decoded public keys by their encoded bytes,
+	 * least recently used are dropped first
+	 */
+	private static class PublicKeyCache {
+		private final int 							maxSize;	//Maximum number of keys
+		private final LinkedHashMap<EncodedKey, PublicKey> keys;	//LRU order
+		
+		public PublicKeyCache(final int maxSize) {
+			this.maxSize = maxSize;
+			this.keys = new LinkedHashMap<EncodedKey, PublicKey>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+				protected boolean removeEldestEntry(Map.Entry<EncodedKey, PublicKey> eldest) {
+					return this.size() > maxSize;
+				}
+			};
+		}
+		
+		public synchronized PublicKey get(byte[] encoded) {
+			if (this.maxSize <= 0)
+				return null;
+			return this.keys.get(new EncodedKey(encoded));
+		}
+		
+		public synchronized void put(byte[] encoded, PublicKey key) {
+			if (this.maxSize <= 0)
+				return;
+			this.keys.put(new EncodedKey(encoded.clone()), key);
+		}
+	}
+	
+	/**
+	 * byte[] with value equality, as a map key
+	 */
+	private static class EncodedKey {
+		private final byte[] 	bytes;
+		private final int 		hash;
+		
+		public EncodedKey(byte[] bytes) {
+			this.bytes = bytes;
+			this.hash = Arrays.hashCode(bytes);
+		}
+		
+		public int hashCode() {
+			return this.hash;
+		}
+		
+		public boolean equals(Object o) {
+			return (o instanceof EncodedKey) && Arrays.equals(this.bytes, ((EncodedKey) o).bytes);
+		}
+	}
+	
 	/*********************
 	 * LOADING/SAVING KEYS
 	 *********************/
@@ -211,10 +344,13 @@ public class CryptoTool {
 								IOException{
 		PrivateKey signingKey = (PrivateKey) ks.getKey(WhanauDHTConstants.CRYPTO_ALIAS,
 														password.toCharArray());
-		Signature signingEngine = Signature.getInstance(WhanauDHTConstants.CRYPTO_SIG_ALG,
-													WhanauDHTConstants.CRYPTO_PROVIDER);
-		SignedObject result = new SignedObject(obj, signingKey, signingEngine);
-		return result;
+		Signature signingEngine = sigEngines.borrow();
+		try {
+			SignedObject result = new SignedObject(obj, signingKey, signingEngine);
+			return result;
+		} finally {
+			sigEngines.giveBack(signingEngine);
+		}
 	}
 	
 	/**
@@ -234,17 +370,87 @@ public class CryptoTool {
 											throws IOException, ClassNotFoundException, 
 											NoSuchAlgorithmException, InvalidKeySpecException, 
 											InvalidKeyException, SignatureException {
-		Signature verificationEngine = Signature.getInstance(
-												WhanauDHTConstants.CRYPTO_SIG_ALG, 
-												WhanauDHTConstants.CRYPTO_PROVIDER);
-		if (! signedObj.verify(pubKey, verificationEngine)) {
-			return false;
+		Signature verificationEngine = sigEngines.borrow();
+		try {
+			if (! signedObj.verify(pubKey, verificationEngine)) {
+				return false;
+			}
+			return true;
+		} finally {
+			sigEngines.giveBack(verificationEngine);
+		}
+	}
+	
+	/**
+	 * Serializes an object, as SignedObject does before signing it
+	 * 
+	 * @param obj 	Serializable 	= object to serialize
+	 * @return byte[] 				= serialized object
+	 * @throws IOException
+	 */
+	public static byte[] serialize(Serializable obj) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(obj);
+		out.flush();
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Signs raw bytes using the given keys
+	 * Same signature as SignedObject, without the Java serialization around it
+	 * 
+	 * @param ks 		KeyStore 	= keys to perform signature with
+	 * @param password 	String 		= password to unlock KeyStore
+	 * @param content	byte[] 		= bytes to sign
+	 * @return byte[] 				= signature
+	 * @throws UnrecoverableKeyException
+	 * @throws NoSuchAlgorithmException
+	 * @throws KeyStoreException
+	 * @throws SignatureException
+	 * @throws InvalidKeyException
+	 */
+	public static byte[] signContent(KeyStore ks, String password, byte[] content) 
+								throws UnrecoverableKeyException, NoSuchAlgorithmException,
+								KeyStoreException, SignatureException, InvalidKeyException {
+		PrivateKey signingKey = (PrivateKey) ks.getKey(WhanauDHTConstants.CRYPTO_ALIAS,
+														password.toCharArray());
+		Signature signingEngine = sigEngines.borrow();
+		try {
+			signingEngine.initSign(signingKey);
+			signingEngine.update(content);
+			return signingEngine.sign();
+		} finally {
+			sigEngines.giveBack(signingEngine);
+		}
+	}
+	
+	/**
+	 * Verifies that the owner of this public key truly signed the bytes
+	 * 
+	 * @param content 	byte[] 		= signed bytes
+	 * @param signature byte[] 		= signature to verify
+	 * @param pubKey 	PublicKey 	= the signer's public key
+	 * @return boolean 				= true if verified, false otherwise
+	 * @throws NoSuchAlgorithmException
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 */
+	public static boolean verifyContent(byte[] content, byte[] signature, PublicKey pubKey) 
+								throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+		Signature verificationEngine = sigEngines.borrow();
+		try {
+			verificationEngine.initVerify(pubKey);
+			verificationEngine.update(content);
+			return verificationEngine.verify(signature);
+		} finally {
+			sigEngines.giveBack(verificationEngine);
 		}
-		return true;
 	}
 	
 	/**
 	 * Takes an encoded public key (byte[]) and converts it back into a PublicKey object
+	 * Keys decoded before are returned from the cache
 	 * 
 	 * @param encodedKey byte[] = encoded public key
 	 * @return PublicKey 		= Java object with public key
@@ -256,13 +462,150 @@ public class CryptoTool {
 	public static PublicKey decodePublicKey(byte[] encodedKey) 
 									throws InvalidKeySpecException, NoSuchAlgorithmException, 
 									IOException, ClassNotFoundException {
+		PublicKey publicKey = pubKeys.get(encodedKey);
+		if (publicKey != null)
+			return publicKey;
 		X509EncodedKeySpec pubKeySpec = new X509EncodedKeySpec(encodedKey);
-        KeyFactory keyFactory = KeyFactory.getInstance(WhanauDHTConstants.CRYPTO_KEY_ALG,
-        												WhanauDHTConstants.CRYPTO_PROVIDER);
-        PublicKey publicKey = keyFactory.generatePublic(pubKeySpec);
+        KeyFactory keyFactory = keyFactories.borrow();
+        try {
+        	publicKey = keyFactory.generatePublic(pubKeySpec);
+        } finally {
+        	keyFactories.giveBack(keyFactory);
+        }
+        pubKeys.put(encodedKey, publicKey);
         return publicKey;
 	}
 	
+	/*********************
+	 * ED25519 SIGNATURES
+	 *********************/
+	/**
+	 * X.509 encoding of an Ed25519 public key is this prefix + the 32 byte key
+	 */
+	private static final byte[] ED25519_X509_PREFIX = {0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x70, 0x03, 0x21, 0x00};
+	public static final int 	ED25519_KEY_LENGTH 	= 32;
+	/**
+	 * Provider of Ed25519: CRYPTO_PROVIDER if it has Ed25519, null for the JDK default
+	 */
+	private static final Provider ED25519_PROVIDER 	= findEd25519Provider();
+	
+	private static Provider findEd25519Provider() {
+		try {
+			Signature.getInstance(WhanauDHTConstants.ED25519_SIG_ALG, WhanauDHTConstants.CRYPTO_PROVIDER);
+			KeyFactory.getInstance(WhanauDHTConstants.ED25519_KEY_ALG, WhanauDHTConstants.CRYPTO_PROVIDER);
+			KeyPairGenerator.getInstance(WhanauDHTConstants.ED25519_KEY_ALG, WhanauDHTConstants.CRYPTO_PROVIDER);
+			return WhanauDHTConstants.CRYPTO_PROVIDER;
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Generates an Ed25519 key pair
+	 * 
+	 * @return KeyPair = public/private key pair
+	 * @throws NoSuchAlgorithmException - if no provider has Ed25519 (JDK before Java 15)
+	 */
+	public static KeyPair generateEd25519KeyPair() throws NoSuchAlgorithmException {
+		if (ED25519_PROVIDER != null)
+			return KeyPairGenerator.getInstance(WhanauDHTConstants.ED25519_KEY_ALG, ED25519_PROVIDER).generateKeyPair();
+		return KeyPairGenerator.getInstance(WhanauDHTConstants.ED25519_KEY_ALG).generateKeyPair();
+	}
+	
+	/**
+	 * Returns the raw 32 bytes of an Ed25519 public key
+	 * 
+	 * @param pubKey PublicKey 	= Ed25519 public key
+	 * @return byte[] 			= 32 byte key
+	 * @throws InvalidKeyException - if pubKey is not an Ed25519 key
+	 */
+	public static byte[] encodeEd25519PublicKey(PublicKey pubKey) throws InvalidKeyException {
+		byte[] encoded = pubKey.getEncoded();
+		if ((encoded == null) || (encoded.length != ED25519_X509_PREFIX.length + ED25519_KEY_LENGTH))
+			throw new InvalidKeyException("Not an Ed25519 public key");
+		for (int i=0; i<ED25519_X509_PREFIX.length; i++) {
+			if (encoded[i] != ED25519_X509_PREFIX[i])
+				throw new InvalidKeyException("Not an Ed25519 public key");
+		}
+		byte[] result = new byte[ED25519_KEY_LENGTH];
+		System.arraycopy(encoded, ED25519_X509_PREFIX.length, result, 0, ED25519_KEY_LENGTH);
+		return result;
+	}
+	
+	/**
+	 * Takes the raw 32 bytes of an Ed25519 public key and converts it back into a PublicKey object
+	 * Keys decoded before are returned from the cache
+	 * 
+	 * @param rawKey byte[] = 32 byte key
+	 * @return PublicKey 	= Java object with public key
+	 * @throws InvalidKeySpecException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public static PublicKey decodeEd25519PublicKey(byte[] rawKey) 
+									throws InvalidKeySpecException, NoSuchAlgorithmException {
+		if ((rawKey == null) || (rawKey.length != ED25519_KEY_LENGTH))
+			throw new InvalidKeySpecException("Ed25519 keys are "+ED25519_KEY_LENGTH+" bytes");
+		PublicKey publicKey = ed25519PubKeys.get(rawKey);
+		if (publicKey != null)
+			return publicKey;
+		byte[] encoded = new byte[ED25519_X509_PREFIX.length + ED25519_KEY_LENGTH];
+		System.arraycopy(ED25519_X509_PREFIX, 0, encoded, 0, ED25519_X509_PREFIX.length);
+		System.arraycopy(rawKey, 0, encoded, ED25519_X509_PREFIX.length, ED25519_KEY_LENGTH);
+		KeyFactory keyFactory = ed25519KeyFactories.borrow();
+		try {
+			publicKey = keyFactory.generatePublic(new X509EncodedKeySpec(encoded));
+		} finally {
+			ed25519KeyFactories.giveBack(keyFactory);
+		}
+		ed25519PubKeys.put(rawKey, publicKey);
+		return publicKey;
+	}
+	
+	/**
+	 * Signs raw bytes with an Ed25519 private key
+	 * 
+	 * @param signingKey 	PrivateKey 	= Ed25519 private key
+	 * @param content		byte[] 		= bytes to sign
+	 * @return byte[] 					= 64 byte signature
+	 * @throws NoSuchAlgorithmException
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 */
+	public static byte[] signEd25519(PrivateKey signingKey, byte[] content) 
+								throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+		Signature signingEngine = ed25519Engines.borrow();
+		try {
+			signingEngine.initSign(signingKey);
+			signingEngine.update(content);
+			return signingEngine.sign();
+		} finally {
+			ed25519Engines.giveBack(signingEngine);
+		}
+	}
+	
+	/**
+	 * Verifies that the owner of this Ed25519 public key truly signed the bytes
+	 * 
+	 * @param content 	byte[] 		= signed bytes
+	 * @param signature byte[] 		= signature to verify
+	 * @param pubKey 	PublicKey 	= the signer's Ed25519 public key
+	 * @return boolean 				= true if verified, false otherwise
+	 * @throws NoSuchAlgorithmException
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 */
+	public static boolean verifyEd25519(byte[] content, byte[] signature, PublicKey pubKey) 
+								throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+		Signature verificationEngine = ed25519Engines.borrow();
+		try {
+			verificationEngine.initVerify(pubKey);
+			verificationEngine.update(content);
+			return verificationEngine.verify(signature);
+		} finally {
+			ed25519Engines.giveBack(verificationEngine);
+		}
+	}
+	
 	/**************
 	 * SSL MANAGERS 
 	 **************/
@@ -323,12 +666,14 @@ public class CryptoTool {
 	 */
 	public static byte[] SHA1(byte[] data) 
 							throws NoSuchAlgorithmException, UnsupportedEncodingException {
-		MessageDigest md;
-		md = MessageDigest.getInstance("SHA-1");
-		byte[] sha1hash = new byte[40];
-		md.update(data, 0, data.length);
-		sha1hash = md.digest();
-		return sha1hash;
+		MessageDigest md = sha1Digests.borrow();
+		try {
+			md.reset();
+			md.update(data, 0, data.length);
+			return md.digest();
+		} finally {
+			sha1Digests.giveBack(md);
+		}
 	}
 	
 	/**
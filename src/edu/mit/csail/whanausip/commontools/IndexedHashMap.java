@@ -0,0 +1,154 @@
+package edu.mit.csail.whanausip.commontools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Map with O(1) get, put, remove and uniform random pick.
+ * Keys and values are kept in dense arrays, a hash map gives the
+ * position of each key. remove(...) moves the last entry into the hole.
+ * Order of entries is not kept.
+ *
+ * Not thread-safe. Share it by not modifying it after publishing it
+ * (see copy constructor)
+ *
+ * @author ryscheng
+ * @date 2010/08/30
+ */
+public class IndexedHashMap<K, V> {
+	private HashMap<K, Integer> 	positions;	//Position of each key in keys/values
+	private ArrayList<K> 			keys;		//Dense keys
+	private ArrayList<V> 			values;		//values.get(i) is the value of keys.get(i)
+
+	/**
+	 * Creates an empty map
+	 */
+	public IndexedHashMap() {
+		this.positions = new HashMap<K, Integer>();
+		this.keys = new ArrayList<K>();
+		this.values = new ArrayList<V>();
+	}
+
+	/**
+	 * Creates a copy of a map
+	 *
+	 * @param other IndexedHashMap<K, V> = map to copy
+	 */
+	public IndexedHashMap(IndexedHashMap<K, V> other) {
+		this.positions = new HashMap<K, Integer>(other.positions);
+		this.keys = new ArrayList<K>(other.keys);
+		this.values = new ArrayList<V>(other.values);
+	}
+
+	/**
+	 * Returns the number of entries
+	 *
+	 * @return int
+	 */
+	public int size() {
+		return this.keys.size();
+	}
+
+	/**
+	 * Returns the value of key
+	 *
+	 * @param key Object
+	 * @return V = value, null if none
+	 */
+	public V get(Object key) {
+		Integer pos = this.positions.get(key);
+		return (pos == null) ? null : this.values.get(pos);
+	}
+
+	/**
+	 * Returns true if key is in the map
+	 *
+	 * @param key Object
+	 * @return boolean
+	 */
+	public boolean containsKey(Object key) {
+		return this.positions.containsKey(key);
+	}
+
+	/**
+	 * Puts a value
+	 *
+	 * @param key 	K
+	 * @param value V
+	 * @return V 	= previous value, null if none
+	 */
+	public V put(K key, V value) {
+		Integer pos = this.positions.get(key);
+		if (pos != null)
+			return this.values.set(pos, value);
+		this.positions.put(key, this.keys.size());
+		this.keys.add(key);
+		this.values.add(value);
+		return null;
+	}
+
+	/**
+	 * Removes a key, moving the last entry into its position
+	 *
+	 * @param key Object
+	 * @return V = removed value, null if none
+	 */
+	public V remove(Object key) {
+		Integer pos = this.positions.remove(key);
+		if (pos == null)
+			return null;
+		int last = this.keys.size()-1;
+		V result = this.values.get(pos);
+		if (pos != last) {
+			K lastKey = this.keys.get(last);
+			this.keys.set(pos, lastKey);
+			this.values.set(pos, this.values.get(last));
+			this.positions.put(lastKey, pos);
+		}
+		this.keys.remove(last);
+		this.values.remove(last);
+		return result;
+	}
+
+	/**
+	 * Returns the key at a position
+	 *
+	 * @param i int = position, 0 <= i < size()
+	 * @return K
+	 */
+	public K getKey(int i) {
+		return this.keys.get(i);
+	}
+
+	/**
+	 * Returns the value at a position
+	 *
+	 * @param i int = position, 0 <= i < size()
+	 * @return V
+	 */
+	public V getValue(int i) {
+		return this.values.get(i);
+	}
+
+	/**
+	 * Returns a uniformly random key
+	 *
+	 * @param random WhanauRandom = random number generator
+	 * @return K = random key, null if empty
+	 */
+	public K randomKey(WhanauRandom random) {
+		int size = this.keys.size();
+		return (size <= 0) ? null : this.keys.get(random.nextInt(size));
+	}
+
+	/**
+	 * Returns the value of a uniformly random key
+	 *
+	 * @param random WhanauRandom = random number generator
+	 * @return V = random value, null if empty
+	 */
+	public V randomValue(WhanauRandom random) {
+		int size = this.values.size();
+		return (size <= 0) ? null : this.values.get(random.nextInt(size));
+	}
+}
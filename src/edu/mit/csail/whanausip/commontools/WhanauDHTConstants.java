@@ -27,22 +27,68 @@ public class WhanauDHTConstants {
 	public static final Level 	DEFAULT_LOG_LEVEL 			= Level.ALL;
 	/**
 	 * Maximum number of times to retry sampleNodes(...)
-	 * sampleNodes will fail unless all of the requested number
-	 * of random walks are returned 
+	 * Random walks returned by each try are kept,
+	 * retries ask only for the ones still missing
 	 */
 	public static final int 	MAX_SAMPLENODE_FAILURES 	= 30;
+	/**
+	 * Percent of the requested random walks that setup and lookups
+	 * go ahead with, if retries of sampleNodes(...) cannot get all of them
+	 */
+	public static final int 	SAMPLENODES_MIN_PERCENT 	= 90;
+	/**
+	 * Backoff (ms) before retrying sampleNodes(...) after a try that returned nothing.
+	 * Doubles after each such try, up to the maximum
+	 */
+	public static final int 	SAMPLENODES_BACKOFF_MIN 	= 250;
+	public static final int 	SAMPLENODES_BACKOFF_MAX 	= 8000;
 	/**
 	 * Default number of randomwalks to cache.
 	 * This number is changed when setup() is called to:
 	 * [rd + l*(rf + rs)]
 	 */
 	public static final int 	DEFAULT_RANDWALK_CACHE_SIZE = 100;
+	/**
+	 * If true, RandomWalkCache keeps every level between a low and a high
+	 * watermark with refills in the background, and callers wait only for
+	 * the walks they miss. If false, a caller that finds a level short
+	 * fills levels 1..steps in order in its own thread
+	 */
+	public static final boolean RANDWALK_BACKGROUND_REFILL 	= true;
+	/**
+	 * Watermarks of each level in background refill mode,
+	 * in percent of the cache depth.
+	 * A refill starts below the low watermark and fetches up to the high one
+	 */
+	public static final int 	RANDWALK_LOW_WATERMARK 		= 25;
+	public static final int 	RANDWALK_HIGH_WATERMARK 	= 100;
+	/**
+	 * If true (and in background refill mode), a caller that finds a level short
+	 * also refills all lower levels at once, and peers asking for random walks
+	 * get a partial batch as soon as one refill round returns some,
+	 * instead of waiting for all of them
+	 */
+	public static final boolean RANDWALK_PIPELINED_FILL 	= true;
 	/**
 	 * Number of closest successors to return in each call
 	 * to successorsSample(...)
 	 * Usually 1 or 2
 	 */
 	public static final int 	SUCCESSORS_SAMPLE_SIZE 		= 2;
+	/**
+	 * Minimum number of query tokens issued in a setup that stay valid.
+	 * A token expires once window newer tokens were issued in the same setup,
+	 * window = max(QUERY_TOKEN_WINDOW, QUERY_TOKEN_WALK_FACTOR * [rd + l*(rf + rs)]).
+	 * Also the size of the replay filter (ints per setup)
+	 */
+	public static final int 	QUERY_TOKEN_WINDOW 			= 1 << 14;
+	/**
+	 * A node issues a token for each random walk that ends at it,
+	 * on average [rd + l*(rf + rs)] walks per setup, plus lookups.
+	 * The window covers this many times that, for uneven walks,
+	 * cache refills and lookups during the setup
+	 */
+	public static final int 	QUERY_TOKEN_WALK_FACTOR 	= 64;
 	/**
 	 * The default username in SIP URI's in the Planet-lab nodes
 	 * Not that important
@@ -77,6 +123,12 @@ public class WhanauDHTConstants {
 	 * currently set to ~ 1 month
 	 */
 	public static final long 	DEFAULT_TTL 				= Integer.MAX_VALUE;
+	/**
+	 * Number of verified records SigningKVChecker remembers,
+	 * so that checking a record again skips the signature check.
+	 * 0 disables the cache
+	 */
+	public static final int 	VERIFIED_RECORD_CACHE_SIZE 	= 8192;
 	
 	/*******************************
 	 * TIMEOUT VALUES (MILLISECONDS)
@@ -139,12 +191,158 @@ public class WhanauDHTConstants {
 	 */
 	public static final int LOOKUP_TIMEOUT 				= 5000;
 	
+	/**
+	 * Maximum number of concurrent finger queries in one lookupTry.
+	 * Closest fingers are queried first; each time a query finishes or fails
+	 * the next finger is queried (sliding window), until one returns a valid record
+	 */
+	public static final int LOOKUP_QUERY_CONCURRENCY	= 8;
+	
 	/**
 	 * Max time to wait at start of setup() before performing
 	 * random walks to account for misaligned setup starts.
 	 */
 	public static final int WAITSETUP_TIMEOUT			= 30000;
-	
+
+	/*****************************
+	 * RPC CONNECTION POOL (CLIENT)
+	 *****************************/
+	/**
+	 * Pooled connections idle longer than this are closed (milliseconds)
+	 * Must be smaller than SERVER_CONN_IDLE_TIMEOUT, so that we
+	 * close idle connections before the remote node does
+	 */
+	public static final int CONNPOOL_IDLE_TIMEOUT		= 30000;
+
+	/**
+	 * Period between sweeps of the pool for idle connections (milliseconds)
+	 */
+	public static final int CONNPOOL_EVICT_PERIOD		= 10000;
+
+	/**
+	 * Maximum number of idle connections kept open to a single peer.
+	 * Concurrent calls to the same peer open extra connections,
+	 * but only this many are kept once the calls return
+	 */
+	public static final int CONNPOOL_MAX_IDLE_PER_PEER	= 8;
+
+	/**
+	 * If true, calls to a peer share one connection with many
+	 * outstanding requests (WhanauRPCFrame).
+	 * Peers that do not support it are called one request per connection
+	 */
+	public static final boolean RPC_MUX_ENABLED		= true;
+
+	/**
+	 * A peer that did not answer the multiplexed protocol is called
+	 * one request per connection for this long (milliseconds),
+	 * then the multiplexed protocol is tried again
+	 */
+	public static final int RPC_LEGACY_PEER_TTL		= 600000;
+
+	/**
+	 * A multiplexed call fails if its response does not arrive
+	 * within this time (milliseconds).
+	 * Must be longer than any remote method blocks (see JOINSETUPTHREAD_TIMEOUT)
+	 */
+	public static final int RPC_CALL_TIMEOUT		= 300000;
+
+	/**
+	 * A server closes an accepted connection when no request
+	 * arrives within this time (milliseconds)
+	 */
+	public static final int SERVER_CONN_IDLE_TIMEOUT	= 60000;
+
+	/**
+	 * Maximum number of cached SSL sessions (client and server each)
+	 * Should cover all peers and fingers of a node
+	 */
+	public static final int SSL_SESSION_CACHE_SIZE		= 4096;
+
+	/**
+	 * Lifetime of a cached SSL session (seconds)
+	 * Within this time, reconnecting to a peer resumes the session
+	 * instead of doing a full handshake
+	 */
+	public static final int SSL_SESSION_TIMEOUT			= 3600;
+
+	/*************************
+	 * NON-BLOCKING SERVER (NIO)
+	 *************************/
+	/**
+	 * If true, nodes serve requests with WhanauNIOServer
+	 * (Selector + SSLEngine) instead of one thread per connection
+	 */
+	public static final boolean NIO_SERVER_ENABLED		= false;
+
+	/**
+	 * Number of I/O threads (one Selector each)
+	 */
+	public static final int NIO_IO_THREADS				= 2;
+
+	/**
+	 * Number of worker threads that execute commands.
+	 * Requests that wait for a setup stage this node has not reached
+	 * run on an unbounded pool instead, so they do not hold a worker
+	 */
+	public static final int NIO_WORKER_THREADS			= 64;
+
+	/**
+	 * Maximum number of requests waiting for a worker.
+	 * Connections with requests beyond this are closed
+	 */
+	public static final int NIO_WORKER_QUEUE_SIZE		= 4096;
+
+	/**
+	 * Maximum time an I/O thread blocks in select (milliseconds)
+	 * Idle connections are checked at this period
+	 */
+	public static final int NIO_SELECT_TIMEOUT			= 1000;
+
+	/***************************
+	 * SHARED THREAD POOL (BATCHES)
+	 ***************************/
+	/**
+	 * Maximum number of threads in the pool shared by all
+	 * MethodThreadBatchRuns (see MethodThreadScheduler).
+	 * When all are busy, new tasks wait in a queue
+	 */
+	public static final int THREADPOOL_MAX_THREADS		= 512;
+
+	/**
+	 * Maximum number of threads in the pool for batches that a node
+	 * runs while serving a remote request (see MethodThreadScheduler.getServer()).
+	 * Kept apart from THREADPOOL_MAX_THREADS, so client batches
+	 * waiting on a request cannot starve the request itself
+	 */
+	public static final int THREADPOOL_SERVER_MAX_THREADS	= 256;
+
+	/**
+	 * Idle threads of the shared and server pools exit after this time (milliseconds)
+	 */
+	public static final int THREADPOOL_KEEPALIVE		= 60000;
+
+	/**
+	 * If true, batches and connections run on virtual threads
+	 * (one per task) instead of the bounded pool.
+	 * Falls back to the bounded pool on JVMs without virtual threads.
+	 * Can be changed at runtime with MethodThreadScheduler.setVirtualThreads(..)
+	 */
+	public static final boolean THREADPOOL_VIRTUAL_THREADS = false;
+
+	/**
+	 * Number of threads that verify batches of DHT records
+	 * (see KeyValueChecker.checkRecords(..)).
+	 * Signature checks are CPU-bound, so one per processor
+	 */
+	public static final int CRYPTO_POOL_THREADS			= Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Smallest number of records each crypto pool thread is given.
+	 * Smaller batches are checked in the calling thread
+	 */
+	public static final int CRYPTO_BATCH_MIN_CHUNK		= 4;
+
 	/**********************
 	 * CRYPTOTOOL CONSTANTS
 	 **********************/
@@ -156,8 +354,16 @@ public class WhanauDHTConstants {
 	public static final String 	CRYPTO_SERIAL_NUM 			= "9009";
 	public static final String 	CRYPTO_CERT_NAME 			= "CN=Test V3 Certificate";
 	public static final String 	CRYPTO_ALIAS 				= "whanausip";
+	//Number of decoded public keys CryptoTool remembers (by encoded bytes), 0 disables
+	public static final int 	CRYPTO_PUBKEY_CACHE_SIZE	= 4096;
+	//Number of idle Signature/KeyFactory/MessageDigest engines of each kind CryptoTool keeps
+	public static final int 	CRYPTO_ENGINE_POOL_SIZE		= 4*CRYPTO_POOL_THREADS;
 	public static final String 	KEY_MGMT_ALG				= "SunX509";
 	public static final String 	SECURESOCKETPROTOCOL		= "TLS";
+	public static final String 	QUERY_TOKEN_MAC_ALG			= "HmacSHA1";
+	//Ed25519KVChecker, uses CRYPTO_PROVIDER if it has Ed25519 (faster), otherwise the JDK (Java 15+)
+	public static final String 	ED25519_KEY_ALG				= "Ed25519";
+	public static final String 	ED25519_SIG_ALG				= "Ed25519";
 	
 	/**********************************************************
 	 * WHANAUCOMMANDCLIENTLIST COMMANDS (PLANETLAB TESTING)
@@ -19,6 +19,7 @@ public class WhanauDHTRecord<T> implements Serializable{
 	private byte[] 			encodedPublicKey;	//public key of owner
 	private long 			creationTime;		//Time record was created
 	private long 			ttl;				//Time to live on this record
+	private String 			sslPubKeyHash;		//Hash of owner's SSL public key, null if encodedPublicKey
 	
 	/**
 	 * Creates a new record
@@ -148,6 +149,25 @@ public class WhanauDHTRecord<T> implements Serializable{
 		this.ttl = ttl;
 	}
 	
+	/**
+	 * Gets the hash of the owner's SSL public key,
+	 * for records not signed with the SSL key (see Ed25519KVChecker)
+	 * 
+	 * @return String = hex SHA1 hash, null if the SSL key is encodedPublicKey
+	 */
+	public String getSslPubKeyHash() {
+		return sslPubKeyHash;
+	}
+	
+	/**
+	 * Sets the hash of the owner's SSL public key
+	 * 
+	 * @param sslPubKeyHash String = hex SHA1 hash
+	 */
+	public void setSslPubKeyHash(String sslPubKeyHash) {
+		this.sslPubKeyHash = sslPubKeyHash;
+	}
+	
 	/**
 	 * Returns a string representation of this record
 	 * 
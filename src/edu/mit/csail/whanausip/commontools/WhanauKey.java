@@ -0,0 +1,207 @@
+package edu.mit.csail.whanausip.commontools;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 160-bit DHT key (a SHA-1 digest), stored as 3 primitives
+ * instead of a 40 character hex String.
+ * Keys are ordered as unsigned big-endian numbers,
+ * which is the same order as their lowercase hex Strings.
+ * Hex is only used for display (toString()) and parsing (fromHex(...))
+ *
+ * Serialized as the 20 bytes of the digest
+ *
+ * @author ryscheng
+ * @date 2010/08/30
+ */
+public final class WhanauKey implements Comparable<WhanauKey>, Serializable {
+	private static final long serialVersionUID = -2613502285315733431L;
+	public static final int LENGTH = 20;		//Bytes in a key
+
+	private transient long 	high;		//Bytes 0-7
+	private transient long 	middle;		//Bytes 8-15
+	private transient int 	low;		//Bytes 16-19
+	private transient int 	hash;		//Cached hashCode()
+
+	/**
+	 * Creates a key from the 3 words of a digest
+	 *
+	 * @param high 		long 	= bytes 0-7
+	 * @param middle 	long 	= bytes 8-15
+	 * @param low 		int 	= bytes 16-19
+	 */
+	public WhanauKey(long high, long middle, int low) {
+		this.high = high;
+		this.middle = middle;
+		this.low = low;
+		this.hash = this.computeHash();
+	}
+
+	/**
+	 * Creates a key from a 20 byte SHA-1 digest
+	 *
+	 * @param digest byte[] = SHA-1 digest
+	 * @return WhanauKey
+	 */
+	public static WhanauKey fromDigest(byte[] digest) {
+		if (digest.length != LENGTH)
+			throw new IllegalArgumentException("Key must be "+LENGTH+" bytes, got "+digest.length);
+		return new WhanauKey(readLong(digest, 0), readLong(digest, 8), (int) readBits(digest, 16, 4));
+	}
+
+	/**
+	 * Creates the key of data (its SHA-1 digest)
+	 *
+	 * @param data byte[] = data to hash
+	 * @return WhanauKey
+	 * @throws NoSuchAlgorithmException
+	 * @throws UnsupportedEncodingException
+	 */
+	public static WhanauKey hashOf(byte[] data) 
+							throws NoSuchAlgorithmException, UnsupportedEncodingException {
+		return fromDigest(CryptoTool.SHA1(data));
+	}
+
+	/**
+	 * Parses a key from a 40 character hex String (as from CryptoTool.SHA1toHex)
+	 *
+	 * @param hex String = hex digest
+	 * @return WhanauKey
+	 */
+	public static WhanauKey fromHex(String hex) {
+		if (hex.length() != 2*LENGTH)
+			throw new IllegalArgumentException("Key must be "+(2*LENGTH)+" hex digits: "+hex);
+		return new WhanauKey(parseHex(hex, 0, 16), parseHex(hex, 16, 16), (int) parseHex(hex, 32, 8));
+	}
+
+	/**
+	 * Returns the 20 byte digest
+	 *
+	 * @return byte[]
+	 */
+	public byte[] toDigest() {
+		byte[] result = new byte[LENGTH];
+		writeBits(result, 0, 8, this.high);
+		writeBits(result, 8, 8, this.middle);
+		writeBits(result, 16, 4, this.low);
+		return result;
+	}
+
+	/**
+	 * Compares as unsigned 160-bit numbers
+	 *
+	 * @param other WhanauKey
+	 * @return int = negative, 0 or positive
+	 */
+	public int compareTo(WhanauKey other) {
+		if (this.high != other.high)
+			return compareUnsigned(this.high, other.high);
+		if (this.middle != other.middle)
+			return compareUnsigned(this.middle, other.middle);
+		return compareUnsigned(this.low & 0xFFFFFFFFL, other.low & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Unsigned comparison, without branches on the values
+	 *
+	 * @param a long
+	 * @param b long
+	 * @return int = -1, 0 or 1
+	 */
+	private static int compareUnsigned(long a, long b) {
+		a += Long.MIN_VALUE;
+		b += Long.MIN_VALUE;
+		return (a > b ? 1 : 0) - (a < b ? 1 : 0);
+	}
+
+	public boolean equals(Object other) {
+		if (this == other)
+			return true;
+		if (!(other instanceof WhanauKey))
+			return false;
+		WhanauKey key = (WhanauKey) other;
+		return (this.hash == key.hash) && (this.high == key.high)
+				&& (this.middle == key.middle) && (this.low == key.low);
+	}
+
+	public int hashCode() {
+		return this.hash;
+	}
+
+	/**
+	 * Returns the key as 40 lowercase hex digits,
+	 * the same as CryptoTool.SHA1toHex
+	 *
+	 * @return String
+	 */
+	public String toString() {
+		StringBuffer buf = new StringBuffer(2*LENGTH);
+		appendHex(buf, this.high, 16);
+		appendHex(buf, this.middle, 16);
+		appendHex(buf, this.low, 8);
+		return buf.toString();
+	}
+
+	/**
+	 * The digest is already uniformly distributed, fold it into an int
+	 *
+	 * @return int
+	 */
+	private int computeHash() {
+		return (int) (this.high ^ (this.high >>> 32) ^ this.middle ^ (this.middle >>> 32)) ^ this.low;
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.writeLong(this.high);
+		out.writeLong(this.middle);
+		out.writeInt(this.low);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException {
+		this.high = in.readLong();
+		this.middle = in.readLong();
+		this.low = in.readInt();
+		this.hash = this.computeHash();
+	}
+
+	private static long readLong(byte[] data, int offset) {
+		return readBits(data, offset, 8);
+	}
+
+	private static long readBits(byte[] data, int offset, int numBytes) {
+		long result = 0;
+		for (int i=0; i<numBytes; i++) {
+			result = (result << 8) | (data[offset+i] & 0xFF);
+		}
+		return result;
+	}
+
+	private static void writeBits(byte[] data, int offset, int numBytes, long value) {
+		for (int i=numBytes-1; i>=0; i--) {
+			data[offset+i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+
+	private static long parseHex(String hex, int offset, int numDigits) {
+		long result = 0;
+		for (int i=0; i<numDigits; i++) {
+			int digit = Character.digit(hex.charAt(offset+i), 16);
+			if (digit < 0)
+				throw new IllegalArgumentException("Not a hex key: "+hex);
+			result = (result << 4) | digit;
+		}
+		return result;
+	}
+
+	private static void appendHex(StringBuffer buf, long value, int numDigits) {
+		for (int i=numDigits-1; i>=0; i--) {
+			buf.append(Character.forDigit((int) ((value >>> (4*i)) & 0xF), 16));
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package edu.mit.csail.whanausip.commontools;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Random number generator shared by many threads without locking.
+ * Each thread draws from its own SplitMix64 stream, split from a root seed
+ * the first time the thread uses this generator.
+ * With the same seed, and threads using the generator in the same order,
+ * the numbers are the same (single threaded simulations are reproducible)
+ *
+ * @author ryscheng
+ * @date 2010/08/30
+ */
+public class WhanauRandom {
+	private static final long 			GOLDEN_GAMMA 	= 0x9e3779b97f4a7c15L;
+	private static final AtomicLong 	seedUniquifier 	= new AtomicLong(0x2545F4914F6CDD1DL);
+
+	private volatile Root 				root;		//Seed and number of streams split from it
+	private final ThreadLocal<Stream> 	streams;	//Stream of the current thread
+
+	/**
+	 * Seed and next stream to split
+	 */
+	private static class Root {
+		private final long 			seed;
+		private final AtomicLong 	nextStream = new AtomicLong();
+
+		private Root(long seed) {
+			this.seed = seed;
+		}
+	}
+
+	/**
+	 * SplitMix64 stream of one thread
+	 */
+	private static class Stream {
+		private final Root 	root;		//Root this stream was split from
+		private long 		state;
+
+		private Stream(Root root) {
+			this.root = root;
+			this.state = mix64(root.seed + mix64(root.nextStream.incrementAndGet() * GOLDEN_GAMMA));
+		}
+
+		private long nextLong() {
+			this.state += GOLDEN_GAMMA;
+			return mix64(this.state);
+		}
+	}
+
+	/**
+	 * Creates a generator with a seed that differs between calls
+	 */
+	public WhanauRandom() {
+		this(seedUniquifier.addAndGet(GOLDEN_GAMMA) ^ System.nanoTime());
+	}
+
+	/**
+	 * Creates a reproducible generator
+	 *
+	 * @param seed long = root seed
+	 */
+	public WhanauRandom(long seed) {
+		this.root = new Root(seed);
+		this.streams = new ThreadLocal<Stream>();
+	}
+
+	/**
+	 * Restarts all threads' streams from a new root seed
+	 *
+	 * @param seed long = root seed
+	 */
+	public void setSeed(long seed) {
+		this.root = new Root(seed);
+	}
+
+	/**
+	 * Returns a random long anywhere in the range of a long
+	 *
+	 * @return long
+	 */
+	public long nextLong() {
+		return this.getStream().nextLong();
+	}
+
+	/**
+	 * Returns a random integer between [0, bound-1], without bias
+	 * (same contract as java.util.Random.nextInt(int))
+	 *
+	 * @param bound int = ceiling for random number, > 0
+	 * @return int
+	 */
+	public int nextInt(int bound) {
+		if (bound <= 0)
+			throw new IllegalArgumentException("bound must be positive");
+		Stream stream = this.getStream();
+		int r = (int) (stream.nextLong() >>> 33);
+		int m = bound - 1;
+		if ((bound & m) == 0)
+			return (int) ((bound * (long) r) >>> 31);
+		for (int u = r; u - (r = u % bound) + m < 0; u = (int) (stream.nextLong() >>> 33))
+			;
+		return r;
+	}
+
+	/**
+	 * Returns a new independent generator, seeded from the current thread's stream
+	 * (reproducible if this generator is)
+	 *
+	 * @return WhanauRandom
+	 */
+	public WhanauRandom split() {
+		return new WhanauRandom(this.nextLong());
+	}
+
+	/**
+	 * Returns the stream of the current thread,
+	 * splitting a new one on first use or after setSeed(...)
+	 *
+	 * @return Stream
+	 */
+	private Stream getStream() {
+		Root currRoot = this.root;
+		Stream stream = this.streams.get();
+		if ((stream == null) || (stream.root != currRoot)) {
+			stream = new Stream(currRoot);
+			this.streams.set(stream);
+		}
+		return stream;
+	}
+
+	/**
+	 * SplitMix64 finalizer (Stafford variant 13)
+	 *
+	 * @param z long
+	 * @return long
+	 */
+	private static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,24 @@
+package edu.mit.csail.whanausip.commontools.threads;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A MethodThreadResultFilter that can also check several results at once.
+ * MethodThreadBatchRun.joinQuorum(...) passes all results that finished
+ * while it was busy to acceptAll(...), so expensive checks
+ * (signatures) of those results can run in parallel
+ *
+ * @author ryscheng
+ * @date 2010/08/30
+ */
+public interface MethodThreadBatchFilter extends MethodThreadResultFilter {
+	/**
+	 * Checks the results of several finished threads, like accept(...) on each.
+	 * Only called with non-null results
+	 *
+	 * @param results 	List<Object> 	= return Objects of methodThread(...)
+	 * @return 			BitSet 			= bit i is set if results.get(i) counts towards completion
+	 */
+	public BitSet acceptAll(List<Object> results);
+}
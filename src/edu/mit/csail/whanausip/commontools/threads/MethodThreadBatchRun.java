@@ -1,118 +1,382 @@
 package edu.mit.csail.whanausip.commontools.threads;
 
+import java.util.BitSet;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Runs a batch of MethodThreadRunners with timeouts
- * 
+ * Tasks are submitted to a long-lived pool (MethodThreadScheduler.getShared()),
+ * which may run them on virtual threads.
+ * The batch keeps the Future of each of its tasks, so joining or
+ * collecting results only affects this batch, never the pool.
+ * joinFirst(...) and joinQuorum(...) return as soon as enough
+ * results pass a MethodThreadResultFilter, and cancel the rest.
+ * With a MethodThreadBatchFilter, results that finish together are checked together
+ * Finished runners are only queued for a join once one has started, so
+ * long-lived batches that are never joined (listeners) do not grow
+ * With setMaxRunning(...), at most that many runners run at once; the others
+ * wait in order and each starts as soon as a running one finishes (sliding window)
+ *
  * @author ryscheng
  * @date 2010/01/20
  */
 public class MethodThreadBatchRun {
 
-	private Hashtable<String, MethodThreadRunner> 	runners;	
-					//Stores all of the runnable MethodThreadRunners 
+	private Hashtable<String, MethodThreadRunner> 	runners;
+					//Stores all of the runnable MethodThreadRunners
 					//	that need to be processed
-	private ExecutorService 						threadPool;	
-					//Stores a pool of threads to run batch with
-	
+	private Hashtable<String, Future<?>>			futures;
+					//Future of each runner, same keys as runners
+	private ExecutorService 						threadPool;
+					//Pool of threads to run batch with
+	private boolean									ownsPool;
+					//true if threadPool was created for this batch only
+	private LinkedBlockingQueue<String>				completed;
+					//Keys of the runners that have finished, in order,
+					//	only filled once a join started
+	private HashSet<String>							finished;
+					//Keys of the runners that finished before a join started
+	private boolean									joining;
+					//true once joinQuorum(...) started
+	private LinkedList<MethodThreadRunner>			pending;
+					//Runners waiting for room in the window, in order
+	private int										maxRunning;
+					//Maximum number of running runners, 0 = no limit
+	private int										numRunning;
+					//Runners started and not finished yet
+	private int										numStarted;
+					//Runners started so far
+	private boolean									stopped;
+					//true after getFinalResults(), pending runners never start
+					//	finished, joining and the fields above are guarded by this
+
+	/**
+	 * Runs the batch on the shared pool
+	 */
 	public MethodThreadBatchRun() {
-		this.runners = new Hashtable<String, MethodThreadRunner>();
-		/**
-		 * Use cachedThreadPool in real operations
-		 * Using a fixed pool may speed up tests in local testing 
-		 **/
-		this.threadPool = Executors.newCachedThreadPool();
-		//this.threadPool = Executors.newFixedThreadPool(3);
+		this(MethodThreadScheduler.getShared(), false);
 	}
+
+	/**
+	 * Runs the batch on its own pool of fixedNumThreads threads
+	 * Using a fixed pool may speed up tests in local testing
+	 *
+	 * @param fixedNumThreads int = number of threads
+	 */
 	public MethodThreadBatchRun(int fixedNumThreads) {
+		this(Executors.newFixedThreadPool(fixedNumThreads), true);
+	}
+
+	/**
+	 * Runs the batch on the given pool.
+	 * The pool is not shut down by this batch
+	 *
+	 * @param pool ExecutorService = pool to submit tasks to
+	 */
+	public MethodThreadBatchRun(ExecutorService pool) {
+		this(pool, false);
+	}
+
+	private MethodThreadBatchRun(ExecutorService pool, boolean ownsPool) {
 		this.runners = new Hashtable<String, MethodThreadRunner>();
-		//this.threadPool = Executors.newCachedThreadPool();
-		this.threadPool = Executors.newFixedThreadPool(fixedNumThreads);
+		this.futures = new Hashtable<String, Future<?>>();
+		this.threadPool = pool;
+		this.ownsPool = ownsPool;
+		this.completed = new LinkedBlockingQueue<String>();
+		this.finished = new HashSet<String>();
+		this.joining = false;
+		this.pending = new LinkedList<MethodThreadRunner>();
+		this.maxRunning = 0;
+		this.numRunning = 0;
+		this.numStarted = 0;
+		this.stopped = false;
 	}
-	
+
 	/**
-	 * Adds a new runnable method and begins execution immediately
-	 * 
+	 * Limits the number of runners that run at once.
+	 * Runners added while the window is full start in the order they were added,
+	 * each as soon as a running one finishes
+	 *
+	 * @param maxRunning int = maximum number of running runners, 0 = no limit
+	 */
+	public synchronized void setMaxRunning(int maxRunning) {
+		this.maxRunning = maxRunning;
+	}
+
+	/**
+	 * Adds a new runnable method and begins execution immediately,
+	 * or once there is room if the window of setMaxRunning(...) is full
+	 *
 	 * @param key 		String 					= unique identifier for this thread
 	 * @param method 	MethodThreadInterface 	= object containing the method that
 	 * 											  needs to be run
 	 * @param param 	Object[] 				= Stores parameters to feed to the method
 	 */
-	public void addThread(String key, MethodThreadInterface method, Object... param) {
-		MethodThreadRunner currThread;
-		currThread = new MethodThreadRunner(key, method, param);
+	public void addThread(final String key, MethodThreadInterface method, Object... param) {
+		MethodThreadRunner currThread = new MethodThreadRunner(key, method, param);
 		this.runners.put(key, currThread);
-		this.threadPool.execute(currThread);
+		synchronized (this) {
+			if (this.stopped)
+				return;
+			if ((this.maxRunning > 0) && (this.numRunning >= this.maxRunning))
+				this.pending.addLast(currThread);
+			else
+				this.start(currThread);
+		}
+	}
+
+	/**
+	 * Submits a runner to the pool
+	 * Must hold the lock of this
+	 *
+	 * @param currThread MethodThreadRunner = runner to start
+	 */
+	private void start(final MethodThreadRunner currThread) {
+		final String key = currThread.getID();
+		this.numRunning++;
+		this.numStarted++;
+		try {
+			this.futures.put(key, this.threadPool.submit(new Runnable() {
+				public void run() {
+					try {
+						currThread.run();
+					} finally {
+						taskDone(key);
+					}
+				}
+			}));
+		} catch (RejectedExecutionException ex) {
+			//Pool shut down, the runner has no result
+			this.numRunning--;
+			this.recordDone(key);
+		}
+	}
+
+	/**
+	 * Records that a runner finished, and starts the next waiting runners
+	 *
+	 * @param key String = identifier of the runner
+	 */
+	private synchronized void taskDone(String key) {
+		this.numRunning--;
+		this.recordDone(key);
+		while (!this.stopped && !this.pending.isEmpty() && 
+				((this.maxRunning <= 0) || (this.numRunning < this.maxRunning))) {
+			this.start(this.pending.removeFirst());
+		}
+	}
+
+	/**
+	 * Queues the key of a finished runner for the join
+	 * Must hold the lock of this
+	 *
+	 * @param key String = identifier of the runner
+	 */
+	private void recordDone(String key) {
+		if (this.joining)
+			this.completed.offer(key);
+		else
+			this.finished.add(key);
 	}
-	
+
 	/**
 	 * Waits a fixed amount of time.
 	 * Tries to finish first, then wait remaining time.
 	 * Cannot add new threads after this point
-	 * 
+	 *
 	 * @param timeout int = time (milliseconds) to wait for threads
 	 */
 	public void joinFixedTime(int timeout){
 		long startTime = System.currentTimeMillis();
-		this.threadPool.shutdown();
+		this.joinTermination(timeout);
 		try {
-			this.threadPool.awaitTermination(timeout, TimeUnit.MILLISECONDS);
 			long waitTime = startTime + timeout - System.currentTimeMillis();
-			if (waitTime > 0){
-				synchronized(this){
-					this.wait(waitTime);
-				}
-			}
+			//sleep() instead of wait() does not pin a virtual thread
+			if (waitTime > 0)
+				Thread.sleep(waitTime);
 		} catch (InterruptedException e) {
 			/** @todo Interrupted? Why?**/
 		}
 	}
-	
+
 	/**
-	 * Either waits until all threads have terminated, 
-	 * or until timeout value (in seconds)
+	 * Either waits until all threads of this batch have terminated,
+	 * or until timeout value (in milliseconds)
 	 * Cannot add new threads after this point
-	 * 
+	 *
 	 * @param timeout int = time (milliseconds) to wait for threads
 	 */
 	public void joinTermination(int timeout){
-		this.threadPool.shutdown();
+		long endTime = System.currentTimeMillis() + timeout;
+		if (this.ownsPool)
+			this.threadPool.shutdown();
 		try {
-			this.threadPool.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+			//Waiting runners start while we wait, so wait until none is left
+			int numWaited = 0;
+			while (true) {
+				LinkedList<Future<?>> started;
+				synchronized (this) {
+					if ((numWaited >= this.numStarted) && this.pending.isEmpty())
+						break;
+					numWaited = this.numStarted;
+					started = new LinkedList<Future<?>>(this.futures.values());
+				}
+				for (Future<?> f : started) {
+					long waitTime = endTime - System.currentTimeMillis();
+					if (waitTime <= 0)
+						throw new TimeoutException();
+					try {
+						f.get(waitTime, TimeUnit.MILLISECONDS);
+					} catch (ExecutionException e) {
+						//The runner failed, it has no result
+					} catch (CancellationException e) {
+						//Stopped, it has no result
+					}
+				}
+			}
+		} catch (TimeoutException e) {
+			//Out of time
 		} catch (InterruptedException e) {
 			/** @todo Interrupted? Why?**/
 		}
 	}
-	
+
+	/**
+	 * Waits until one thread returns a result that passes the filter,
+	 * all threads have terminated, or until timeout (in milliseconds).
+	 * Then stops the remaining threads of this batch.
+	 * Cannot add new threads after this point
+	 *
+	 * @param timeout 	int 						= time (milliseconds) to wait for threads
+	 * @param filter 	MethodThreadResultFilter 	= accepts results, null accepts any non-null result
+	 * @return Object 								= first accepted result, null if none
+	 */
+	public Object joinFirst(int timeout, MethodThreadResultFilter filter) {
+		Hashtable<String, Object> results = this.joinQuorum(timeout, filter, 1);
+		if (results.isEmpty())
+			return null;
+		return results.values().iterator().next();
+	}
+
 	/**
-	 * Forcibly shuts down all the threads (even if not complete)
+	 * Waits until quorum threads return results that pass the filter,
+	 * all threads have terminated, or until timeout (in milliseconds).
+	 * Then stops the remaining threads of this batch.
+	 * Cannot add new threads after this point
+	 *
+	 * @param timeout 	int 						= time (milliseconds) to wait for threads
+	 * @param filter 	MethodThreadResultFilter 	= accepts results, null accepts any non-null result
+	 * @param quorum 	int 						= number of accepted results to wait for
+	 * @return Hashtable<String,Object> 			= 	key=threadIdentifier,
+	 * 													value=accepted result
+	 */
+	public Hashtable<String,Object> joinQuorum(int timeout, MethodThreadResultFilter filter, int quorum) {
+		Hashtable<String, Object> accepted = new Hashtable<String,Object>();
+		long endTime = System.currentTimeMillis() + timeout;
+		int numDone = 0;
+		if (this.ownsPool)
+			this.threadPool.shutdown();
+		synchronized (this) {
+			this.joining = true;
+			this.completed.addAll(this.finished);
+			this.finished.clear();
+		}
+		try {
+			while ((accepted.size() < quorum) && (numDone < this.runners.size())) {
+				long waitTime = endTime - System.currentTimeMillis();
+				if (waitTime <= 0)
+					break;
+				String key = this.completed.poll(waitTime, TimeUnit.MILLISECONDS);
+				if (key == null)
+					break;
+				//Take every other result that is already in
+				LinkedList<String> doneKeys = new LinkedList<String>();
+				doneKeys.add(key);
+				this.completed.drainTo(doneKeys);
+				numDone += doneKeys.size();
+				LinkedList<String> resultKeys = new LinkedList<String>();
+				LinkedList<Object> results = new LinkedList<Object>();
+				for (String doneKey : doneKeys) {
+					Object result = this.runners.get(doneKey).getResult();
+					if (result != null) {
+						resultKeys.add(doneKey);
+						results.add(result);
+					}
+				}
+				if (results.isEmpty())
+					continue;
+				BitSet passed = null;
+				if ((filter instanceof MethodThreadBatchFilter) && (results.size() > 1))
+					passed = ((MethodThreadBatchFilter) filter).acceptAll(results);
+				int i = 0;
+				for (Object result : results) {
+					if (accepted.size() >= quorum)
+						break;
+					boolean ok;
+					if (filter == null)
+						ok = true;
+					else if (passed != null)
+						ok = passed.get(i);
+					else
+						ok = filter.accept(result);
+					if (ok)
+						accepted.put(resultKeys.get(i), result);
+					i++;
+				}
+			}
+		} catch (InterruptedException e) {
+			/** @todo Interrupted? Why?**/
+		}
+		this.getFinalResults();
+		return accepted;
+	}
+
+	/**
+	 * Forcibly stops all the threads of this batch (even if not complete)
 	 * Aggregates results into a Hashtable
-	 * 
-	 * @return Hashtable<String,Object> = 	key=threadIdentifier, 
+	 *
+	 * @return Hashtable<String,Object> = 	key=threadIdentifier,
 	 * 										value=returned value from method
 	 */
 	public Hashtable<String,Object> getFinalResults(){
 		Hashtable<String, Object> finalResults = new Hashtable<String,Object>();
 		Object result;
-		
-		this.threadPool.shutdownNow();
+
+		LinkedList<Future<?>> started;
+		synchronized (this) {
+			this.stopped = true;
+			this.pending.clear();
+			started = new LinkedList<Future<?>>(this.futures.values());
+		}
+		for (Future<?> f : started) {
+			f.cancel(true);
+		}
+		if (this.ownsPool)
+			this.threadPool.shutdownNow();
 		for (String key : this.runners.keySet()) {
 			result = this.runners.get(key).getResult();
 			if (result != null) {
-				finalResults.put(key, this.runners.get(key).getResult());
+				finalResults.put(key, result);
 			}
 		}
-		
+
 		return finalResults;
 	}
-	
+
 	/**
 	 * Gets the number of threads in this batch
-	 * 
+	 *
 	 * @return int = number of threads
 	 */
 	public int getNumThreads(){
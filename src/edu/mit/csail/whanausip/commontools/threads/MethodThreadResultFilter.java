@@ -0,0 +1,20 @@
+package edu.mit.csail.whanausip.commontools.threads;
+
+/**
+ * Decides if the result of a MethodThreadRunner is usable.
+ * Used by MethodThreadBatchRun.joinFirst(...) and joinQuorum(...)
+ * to stop a batch as soon as enough usable results are in
+ * 
+ * @author ryscheng
+ * @date 2010/08/30
+ */
+public interface MethodThreadResultFilter {
+	/**
+	 * Checks the result of a finished thread.
+	 * Only called with non-null results
+	 * 
+	 * @param result 	Object 	= return Object of methodThread(...)
+	 * @return 			boolean = true if the result counts towards completion
+	 */
+	public boolean accept(Object result);
+}
@@ -10,7 +10,7 @@ package edu.mit.csail.whanausip.commontools.threads;
 public class MethodThreadRunner implements Runnable {
 
 	private MethodThreadInterface 	obj;		//Object containing method to run
-	private Object 					result;		//Stores result from methodThread(...)
+	private volatile Object 		result;		//Stores result from methodThread(...)
 	private Object[] 				parameters;	//Parameters to methodThread(...)
 	private String 					id;			//Unique identifier for this Runnable
 	
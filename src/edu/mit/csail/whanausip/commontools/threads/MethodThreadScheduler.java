@@ -0,0 +1,257 @@
+package edu.mit.csail.whanausip.commontools.threads;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import edu.mit.csail.whanausip.commontools.WhanauDHTConstants;
+
+/**
+ * Holds the long-lived thread pool that all MethodThreadBatchRuns submit to
+ * by default, so a batch does not create (and tear down) its own threads.
+ *
+ * The pool is bounded. Once all threads are busy, new tasks wait in a queue,
+ * so adding a task never blocks and never runs it in the calling thread
+ * (where a blocking remote call would ignore the timeouts of the join).
+ * Tasks of a batch often block on remote calls that are served by tasks
+ * of other batches on the same node; a queued task may then wait until
+ * a join times out, and tasks cancelled by their batch are skipped.
+ *
+ * In virtual thread mode (THREADPOOL_VIRTUAL_THREADS or setVirtualThreads(..)),
+ * every task gets its own virtual thread instead, so tasks blocked on
+ * remote calls do not hold a platform thread.
+ * Virtual threads are looked up by reflection, on JVMs without them
+ * the bounded pool is used.
+ *
+ * Batches that a node runs while serving a remote request (lookupTry(..)
+ * querying fingers) use their own bounded pool. Client batches on the shared
+ * pool often block on exactly those requests; if both used the same threads,
+ * a full pool of waiting client tasks would queue the fan-out they wait for,
+ * and both would only give up when the join times out.
+ *
+ * Background tasks that are started while holding a lock (cache refills)
+ * use a separate unbounded pool, so they never wait behind busy batch threads.
+ *
+ * Batches of DHT record checks use a third pool of CRYPTO_POOL_THREADS
+ * platform threads, since they are CPU-bound and never block.
+ *
+ * @author ryscheng
+ * @date 2010/08/30
+ */
+public class MethodThreadScheduler {
+	private static ExecutorService shared = null;	//Pool used by all batches
+	private static ExecutorService server = null;	//Pool for batches serving requests
+	private static ExecutorService background = null;//Pool for background tasks
+	private static ExecutorService crypto = null;	//Pool for record checks
+	private static boolean virtualThreads = WhanauDHTConstants.THREADPOOL_VIRTUAL_THREADS;
+													//true if tasks run on virtual threads
+
+	/**
+	 * Returns the pool shared by all batches, creating it on first use
+	 *
+	 * @return ExecutorService
+	 */
+	public static synchronized ExecutorService getShared() {
+		if (shared == null) {
+			if (virtualThreads)
+				shared = MethodThreadScheduler.newVirtualPool();
+			if (shared == null)
+				shared = MethodThreadScheduler.newBoundedPool("MethodThread",
+							WhanauDHTConstants.THREADPOOL_MAX_THREADS);
+		}
+		return shared;
+	}
+
+	/**
+	 * Returns the pool for batches started while serving a remote request,
+	 * creating it on first use.
+	 * Separate from getShared(), so client batches that wait for a request
+	 * never hold the threads the request needs to answer
+	 *
+	 * @return ExecutorService
+	 */
+	public static synchronized ExecutorService getServer() {
+		if (server == null) {
+			if (virtualThreads)
+				server = MethodThreadScheduler.newVirtualPool();
+			if (server == null)
+				server = MethodThreadScheduler.newBoundedPool("ServerThread",
+							WhanauDHTConstants.THREADPOOL_SERVER_MAX_THREADS);
+		}
+		return server;
+	}
+
+	/**
+	 * Returns the pool for background tasks, creating it on first use.
+	 * Unbounded (virtual threads if enabled, otherwise cached daemon threads),
+	 * so submitting never runs the task in the calling thread.
+	 * Callers must bound the number of tasks they start themselves
+	 *
+	 * @return ExecutorService
+	 */
+	public static synchronized ExecutorService getBackground() {
+		if (background == null) {
+			if (virtualThreads)
+				background = MethodThreadScheduler.newVirtualPool();
+			if (background == null)
+				background = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+							WhanauDHTConstants.THREADPOOL_KEEPALIVE, TimeUnit.MILLISECONDS,
+							new SynchronousQueue<Runnable>(),
+							MethodThreadScheduler.newDaemonThreadFactory("Background"));
+		}
+		return background;
+	}
+
+	/**
+	 * Returns the pool that verifies batches of DHT records, creating it on first use.
+	 * Bounded to CRYPTO_POOL_THREADS platform threads (also in virtual thread mode),
+	 * when all are busy new shares wait in the queue
+	 *
+	 * @return ExecutorService
+	 */
+	public static synchronized ExecutorService getCrypto() {
+		if (crypto == null)
+			crypto = MethodThreadScheduler.newBoundedPool("Crypto",
+						Math.max(1, WhanauDHTConstants.CRYPTO_POOL_THREADS));
+		return crypto;
+	}
+
+	/**
+	 * Switches between virtual threads and the bounded pool.
+	 * Only affects batches and nodes created after this call,
+	 * the old pool is not shut down since batches may still use it
+	 *
+	 * @param enabled boolean = true to run tasks on virtual threads
+	 */
+	public static synchronized void setVirtualThreads(boolean enabled) {
+		if (enabled != virtualThreads) {
+			virtualThreads = enabled;
+			shared = null;
+			server = null;
+			background = null;
+		}
+	}
+
+	/**
+	 * Returns true if new pools should use virtual threads,
+	 * and the JVM supports them
+	 *
+	 * @return boolean
+	 */
+	public static synchronized boolean isVirtualThreads() {
+		return virtualThreads && isVirtualThreadSupported();
+	}
+
+	/**
+	 * Checks if this JVM has virtual threads
+	 *
+	 * @return boolean
+	 */
+	public static boolean isVirtualThreadSupported() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (NoSuchMethodException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Creates a pool that starts a new virtual thread for each task
+	 *
+	 * @return ExecutorService = the pool, or null if the JVM has no virtual threads
+	 */
+	public static ExecutorService newVirtualPool() {
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		} catch (Exception ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Creates the pool for connections and requests of a node.
+	 * Connections are long-lived, so they get their own pool instead of
+	 * taking threads of the shared pool.
+	 * Uses virtual threads if enabled, otherwise an unbounded cached pool
+	 *
+	 * @return ExecutorService
+	 */
+	public static ExecutorService newConnectionPool() {
+		ExecutorService pool = null;
+		if (isVirtualThreads())
+			pool = MethodThreadScheduler.newVirtualPool();
+		if (pool == null)
+			pool = Executors.newCachedThreadPool();
+		return pool;
+	}
+
+	/**
+	 * Creates a new bounded pool of daemon threads.
+	 * Idle threads exit after THREADPOOL_KEEPALIVE.
+	 * If all threads are busy, the task waits in an unbounded queue
+	 *
+	 * @param name 			String 	= prefix of thread names
+	 * @param maxThreads 	int 	= maximum number of threads
+	 * @return ExecutorService
+	 */
+	public static ExecutorService newBoundedPool(final String name, int maxThreads) {
+		//A ThreadPoolExecutor only grows past its core size when the queue is full,
+		//so all threads are core threads, which may time out
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads,
+				WhanauDHTConstants.THREADPOOL_KEEPALIVE, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				MethodThreadScheduler.newDaemonThreadFactory(name));
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * Creates a factory of numbered daemon threads
+	 *
+	 * @param name String = prefix of thread names
+	 * @return ThreadFactory
+	 */
+	private static ThreadFactory newDaemonThreadFactory(final String name) {
+		return new ThreadFactory() {
+			private int count = 0;
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name+"-"+(count++));
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Returns a string with the number of threads of the shared and server pools
+	 *
+	 * @return String
+	 */
+	public static synchronized String getStatsStr() {
+		if (shared == null)
+			return "MethodThreadScheduler: not started\n";
+		if (!(shared instanceof ThreadPoolExecutor))
+			return "MethodThreadScheduler: virtual threads\n";
+		return "MethodThreadScheduler: "+MethodThreadScheduler.getPoolStatsStr(shared)+
+				(server instanceof ThreadPoolExecutor ? ", server: "+MethodThreadScheduler.getPoolStatsStr(server) : "")+"\n";
+	}
+
+	/**
+	 * Returns a string with the number of threads of a bounded pool
+	 *
+	 * @param pool ExecutorService = a pool from newBoundedPool(..)
+	 * @return String
+	 */
+	private static String getPoolStatsStr(ExecutorService pool) {
+		ThreadPoolExecutor tp = (ThreadPoolExecutor) pool;
+		return "threads="+tp.getPoolSize()+", active="+tp.getActiveCount()+
+				", queued="+tp.getQueue().size()+", largest="+tp.getLargestPoolSize()+", completed="+tp.getCompletedTaskCount();
+	}
+}
@@ -0,0 +1,63 @@
+package edu.mit.csail.whanausip.dht;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read from a stream.
+ * Used to tell whether a read that timed out or failed
+ * had already consumed part of a request or response
+ *
+ * @author ryscheng
+ * @date 2010/08/30
+ */
+public class CountingInputStream extends FilterInputStream {
+	private long count;		//Bytes read or skipped so far
+
+	/**
+	 * Wraps a stream, starting the count at 0
+	 *
+	 * @param in	InputStream	= stream to count
+	 */
+	public CountingInputStream(InputStream in) {
+		super(in);
+		this.count = 0;
+	}
+
+	public int read() throws IOException {
+		int b = super.read();
+		if (b >= 0)
+			this.count++;
+		return b;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = super.read(b, off, len);
+		if (n > 0)
+			this.count += n;
+		return n;
+	}
+
+	public long skip(long n) throws IOException {
+		long skipped = super.skip(n);
+		this.count += skipped;
+		return skipped;
+	}
+
+	/**
+	 * mark/reset would make the count wrong
+	 */
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * Return the number of bytes read so far
+	 *
+	 * @return long
+	 */
+	public long getCount() {
+		return this.count;
+	}
+}
@@ -1,9 +1,12 @@
 package edu.mit.csail.whanausip.dht;
 
 import java.rmi.RemoteException;
+import java.util.BitSet;
 import java.util.LinkedList;
-import java.util.ArrayList;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import edu.mit.csail.whanausip.commontools.*;
 import edu.mit.csail.whanausip.commontools.threads.*;
@@ -11,6 +14,14 @@ import edu.mit.csail.whanausip.commontools.threads.*;
 /**
  * Stores a number of pre-fetched random walks
  * Performs random in batches (lazy)
+ * In background refill mode (RANDWALK_BACKGROUND_REFILL), each level is
+ * topped up asynchronously when it falls below its low watermark
+ * In pipelined fill mode (RANDWALK_PIPELINED_FILL), all levels are refilled
+ * at once and peers are answered with partial batches as they arrive
+ *
+ * Each level has its own lock, so levels are filled and served concurrently.
+ * Callers wait on a Condition of that lock, not on a monitor,
+ * so waiting virtual threads do not pin their carrier thread
  * 
  * @author ryscheng
  * @date 2009/10/19
@@ -20,20 +31,42 @@ public class RandomWalkCache<T> implements MethodThreadInterface{
 	/**
 	 * Number of random walks to pre-fetch per distance
 	 */
-	private int											depth;
+	private volatile int								depth;
 	/**
-	 * Index = number of steps away, value = linked list of random walks
-	 * a random walk result is a pair - (DHT record, queryToken)
+	 * Index = number of steps away, value = level of the cache
+	 * Replaced by reset(...)
 	 */
-	private ArrayList<LinkedList<Pair<Object, Long>>> 	randWalks;
-	/**
-	 * Index = number of steps away, value = thread to fetch this step exists
-	 */
-	private ArrayList<Boolean> 							openRequest;
+	private volatile Level[]							levels;
+	
 	/**
-	 * Counts number of times fillCache has been called on this level
+	 * One level of the cache: random walks of the same number of steps,
+	 * a random walk result is a (DHT record, queryToken) RandomWalkPool.Walk
+	 * All other fields are guarded by lock
 	 */
-	private int[]										fillCacheCount;
+	private static class Level {
+		private final int 				steps;			//Number of steps away
+		private final ReentrantLock 	lock;			//Guards this level
+		private final Condition 		changed;		//Signaled when walks arrive, a fetch ends
+														//or the level is retired
+		private final RandomWalkPool 	pool;			//Random walks of this level
+		private boolean 				openRequest;	//true if a thread fetches this level
+		private boolean 				retired;		//true after reset(...), results are dropped
+		private int 					fillCacheCount;	//Number of fills of this level
+		private int 					addedCount;		//Walks added, to detect refills without progress
+		private int 					refillCount;	//Number of finished background refills
+		private int 					missing;		//Walks that waiting callers miss
+		
+		/**
+		 * @param steps 	int = number of steps away
+		 * @param capacity 	int = number of walks to preallocate room for
+		 */
+		private Level(int steps, int capacity) {
+			this.steps = steps;
+			this.lock = new ReentrantLock();
+			this.changed = this.lock.newCondition();
+			this.pool = new RandomWalkPool(capacity);
+		}
+	}
 	
 	/**
 	 * Creates a new random walk cache
@@ -48,193 +81,349 @@ public class RandomWalkCache<T> implements MethodThreadInterface{
 	
 	/**
 	 * Clears the cache and sets a new depth
+	 * Refills and waiting callers of the old levels give up
 	 * 
 	 * @param depth int = new depth
 	 */
-	public synchronized void reset(int depth){
-		this.depth = depth;
-		this.randWalks = new ArrayList<LinkedList<Pair<Object, Long>>>();
-		this.openRequest = new ArrayList<Boolean>();
-		fillCacheCount = new int[WhanauDHTConstants.W + 1];
+	public void reset(int depth){
+		//A new level has room for the first fill of its level
+		Level[] newLevels = new Level[WhanauDHTConstants.W + 1];
+		for (int i=0; i<newLevels.length; i++) {
+			newLevels[i] = new Level(i, depth*Math.max(1, WhanauDHTConstants.W - i + 1));
+		}
+		Level[] oldLevels;
+		synchronized (this) {
+			oldLevels = this.levels;
+			this.depth = depth;
+			this.levels = newLevels;
+		}
+		if (oldLevels != null) {
+			for (Level level : oldLevels) {
+				level.lock.lock();
+				try {
+					level.retired = true;
+					level.changed.signalAll();
+				} finally {
+					level.lock.unlock();
+				}
+			}
+		}
 	}
 	
 	/**
-	 * Returns the entire cache of random walks
-	 * @return ArrayList<LinkedList<Pair<Object, Long>>>
+	 * Returns the level for a given distance away
+	 *
+	 * @param i int 	= number of steps from this node, 0 <= i <= W
+	 * @return 	Level 	= random walks from that distance
 	 */
-	private ArrayList<LinkedList<Pair<Object, Long>>> getRandWalks(){
-		return this.randWalks;
+	private Level getLevel(int i){
+		return this.levels[i];
 	}
 	
 	/**
-	 * Returns the entire tracker for open requests
-	 * @return
+	 * Gets the depth of this cache
+	 * 
+	 * @return int = depth
 	 */
-	private ArrayList<Boolean> getOpenRequest(){
-		return this.openRequest;
+	public int getDepth(){
+		return this.depth;
 	}
 	
 	/**
-	 * Returns the chain of random walks for a given distance away
-	 * If the cache isnt big enough, make room
+	 * Returns the state of the WhanauDHT node
 	 * 
-	 * @param i int 							= number of steps from this node
-	 * @return 	LinkedList<Pair<Object, Long>> 	= random walks from that distance
+	 * @return WhanauState<T> = node state
 	 */
-	private synchronized LinkedList<Pair<Object, Long>> getIndex(int i){
-		this.getRandWalks().ensureCapacity(i+1);
-		int expand = i+1-this.getRandWalks().size();
-		for (int j=0;j<expand;j++){
-			this.getRandWalks().add(null);
-		}
-		LinkedList<Pair<Object, Long>> result = this.getRandWalks().get(i);
-		if (result == null){
-			result = new LinkedList<Pair<Object, Long>>();
-			this.getRandWalks().set(i,result);
+	private WhanauState<T> getState(){
+		return this.state;
+	}
+	
+	/**
+	 * Assuming our cache is sufficiently filled, 
+	 * this will return as results as it can.
+	 * No remote calls to fetch more, just best effort
+	 * Must hold the lock of level
+	 * 
+	 * @param level		Level	= level to take from
+	 * @param numNodes	int		= number of desired results
+	 * @return LinkedList<Pair<Object, Long>> = random walk results
+	 */
+	private LinkedList<Pair<Object, Long>> retrieveRandWalks(Level level, int numNodes){
+		LinkedList<Pair<Object, Long>> result = new LinkedList<Pair<Object, Long>>();
+		RandomWalkPool.Walk[] walks = level.pool.drain(numNodes, this.getState().getRandom());
+		
+		for (int i=0; i<walks.length; i++){
+			result.addLast(walks[i].toPair());
 		}
 		return result;
 	}
 	
 	/**
-	 * Returns whether there already exists a thread to retrieve 
-	 * random walks from this distance away
-	 * if the tracker list isnt big enough, make more room
+	 * This will fetch the random walk cache at a particular level.
+	 * The number it will fetch is the number requested, plus the fill the depth of the cache level
+	 * Make sure that the level has no open request before calling fillCache(...)
 	 * 
-	 * @param i int 	= number of steps from this node
-	 * @return 	boolean = true if thread exists, false otherwise
+	 * @param numNodes 	int = Number of random walks requested 
+	 * @param steps 	int = Number of steps in random walk
 	 */
-	private synchronized boolean hasOpenRequest(int i){
-		this.getOpenRequest().ensureCapacity(i+1);
-		int expand = i+1-this.getOpenRequest().size();
-		for (int j=0;j<expand;j++){
-			this.getOpenRequest().add(null);
+	private void fillCache(int numNodes, int steps){
+		Level level = this.getLevel(steps);
+		MethodThreadBatchRun batch = new MethodThreadBatchRun();
+		int numWalks = 0;
+		//lock the level
+		level.lock.lock();
+		try {
+			if (numNodes > level.pool.size()) {
+				level.fillCacheCount++;
+				//Indicate that we have threads filling up the cache at this level
+				level.openRequest = true;
+				int limit;
+				if (level.fillCacheCount == 1)
+					limit = (this.getDepth()*(WhanauDHTConstants.W - steps + 1));//+numNodes;
+				else 
+					limit = this.getDepth()+numNodes;
+				numWalks = limit - level.pool.size();
+			}
+		} finally {
+			level.lock.unlock();
+		}
+		//Submit without the lock, the threads need it to add their results
+		this.addRandWalkRequests(batch, level, numWalks);
+		if (batch.getNumThreads() > 0) {
+			batch.joinTermination(this.getFillTimeout(steps));
+			batch.getFinalResults();
 		}
-		Boolean result = this.getOpenRequest().get(i);
-		if (result == null){
-			result = new Boolean(false);
-			this.getOpenRequest().set(i,result);
+		level.lock.lock();
+		try {
+			level.openRequest = false;
+			level.changed.signalAll();
+		} finally {
+			level.lock.unlock();
 		}
-		return result;
 	}
 	
 	/**
-	 * Checks if there exists any threads fetching random walks
-	 * with a distance less than or equal to the parameter
-	 * 
-	 * @param compare	int		= number of steps from this node
-	 * @return 			boolean	= true if threads exist, false otherwise
+	 * Waits until no level at a distance less than or equal
+	 * to the parameter has a thread fetching random walks
+	 *
+	 * @param compare	int	= number of steps from this node
 	 */
-	private synchronized boolean hasLowerOpenRequest(int compare){
+	private void waitForLowerOpenRequests(int compare){
 		for (int i=1; i<=compare; i++){
-			if (this.hasOpenRequest(i)) return true;
+			Level level = this.getLevel(i);
+			level.lock.lock();
+			try {
+				while (level.openRequest && !level.retired) {
+					try {
+						level.changed.await();
+					}catch(InterruptedException e) {
+						this.getState().getLog().warning("Interrupted Wait");
+					}
+				}
+			} finally {
+				level.lock.unlock();
+			}
 		}
-		return false;
 	}
 	
 	/**
-	 * Mark down whether a thread exists for this index
+	 * Randomly distributes requests for numWalks random walks
+	 * of a level to active peers, adding one thread per peer to batch
+	 * Must not hold the lock of level
 	 * 
-	 * @param i		int		= number of steps from this node
-	 * @param value boolean = true if thread exists, false otherwise
+	 * @param batch 	MethodThreadBatchRun 	= batch to add the requests to
+	 * @param level 	Level 					= level to fill
+	 * @param numWalks 	int 					= number of random walks to request
 	 */
-	private synchronized void setOpenRequest(int i, boolean value){
-		//Make room first in case cache isnt big enough
-		this.hasOpenRequest(i);
-		this.getOpenRequest().set(i, value);
+	private void addRandWalkRequests(MethodThreadBatchRun batch, Level level, int numWalks) {
+		Set<WhanauRPCClientStub<T>> peers = this.getState().getActivePeers();
+		int numPeers = peers.size();
+		if ((numPeers <= 0) || (numWalks <= 0))
+			return;
+		int[] randWalkRequest = new int[numPeers];
+		for (int i=0;i<numWalks;i++){
+			randWalkRequest[this.getState().nextRandInt(numPeers)]++;
+		}
+		//Send random walk batch requests
+		int i=0;
+		for (WhanauRPCClientStub<T> p : peers){
+			if (randWalkRequest[i] > 0){
+				batch.addThread(Integer.toString(i), this,  p, 
+									randWalkRequest[i], level.steps, level);
+			}
+			i++;
+		}
 	}
 	
 	/**
-	 * Gets the depth of this cache
+	 * Returns the time to wait for peers to return random walks
+	 * of a level, which they may have to fetch recursively
 	 * 
-	 * @return int = depth
+	 * @param steps int = level
+	 * @return int 		= timeout in ms
 	 */
-	public int getDepth(){
-		return this.depth;
+	private int getFillTimeout(int steps) {
+		return (WhanauDHTConstants.RANDWALK_PERSTEP_TIMEOUT+WhanauDHTConstants.RANDWALK_PERSTEP_PROCTIME)*steps - 
+					WhanauDHTConstants.RANDWALK_PERSTEP_PROCTIME;
 	}
 	
 	/**
-	 * Returns the state of the WhanauDHT node
+	 * Returns the stock below which a level is refilled in background refill mode
 	 * 
-	 * @return WhanauState<T> = node state
+	 * @return int
 	 */
-	private WhanauState<T> getState(){
-		return this.state;
+	private int getLowWatermark() {
+		return Math.max(1, this.getDepth()*WhanauDHTConstants.RANDWALK_LOW_WATERMARK/100);
 	}
 	
 	/**
-	 * Assuming our cache is sufficiently filled, 
-	 * this will return as results as it can.
-	 * No remote calls to fetch more, just best effort
+	 * Returns the stock that a background refill fetches up to
 	 * 
-	 * @param numNodes	int	= number of desired results
-	 * @param steps		int = number of steps from this node
-	 * @return LinkedList<Pair<Object, Long>> = random walk results
+	 * @return int
 	 */
-	private synchronized LinkedList<Pair<Object, Long>> 
-									retrieveRandWalks(int numNodes, int steps){
-		LinkedList<Pair<Object, Long>> result = new LinkedList<Pair<Object, Long>>();
-		LinkedList<Pair<Object, Long>> currList = this.getIndex(steps);
-		int stop = Math.min(currList.size(), numNodes);
-		int index;
-		
-		for (int i=0; i<stop; i++){
-			index = this.state.nextRandInt(currList.size());
-			result.addLast(currList.remove(index));
-		}
-		return result;
+	private int getHighWatermark() {
+		return Math.max(this.getLowWatermark(), this.getDepth()*WhanauDHTConstants.RANDWALK_HIGH_WATERMARK/100);
 	}
 	
 	/**
-	 * This will fetch the random walk cache at a particular level.
-	 * The number it will fetch is the number requested, plus the fill the depth of the cache level
-	 * Make sure that this.hasOpenRequest(steps) is false before calling fillCache(...) 
+	 * Starts a background refill of a level up to its high watermark
+	 * (plus what waiting callers miss), if the level is below its
+	 * low watermark or callers are waiting, and no refill is running.
+	 * Must hold the lock of level
 	 * 
-	 * @param numNodes 	int = Number of random walks requested 
-	 * @param steps 	int = Number of steps in random walk
+	 * @param level Level = level to refill
 	 */
-	private void fillCache(int numNodes, int steps){
+	private void scheduleRefill(final Level level) {
+		if ((level.steps < 1) || level.retired || level.openRequest)
+			return;
+		int stock = level.pool.size();
+		if ((stock >= this.getLowWatermark()) && (level.missing <= 0))
+			return;
+		final int numWalks = Math.max(0, this.getHighWatermark() - stock) + level.missing;
+		if (numWalks <= 0)
+			return;
+		level.fillCacheCount++;
+		level.openRequest = true;
+		MethodThreadScheduler.getBackground().execute(new Runnable() {
+			public void run() {
+				refill(level, numWalks);
+			}
+		});
+	}
+	
+	/**
+	 * Body of a background refill. Fetches numWalks random walks of a level
+	 * from active peers, then wakes waiting callers.
+	 * Starts another refill if this one made progress and the level is still short
+	 * 
+	 * @param level 	Level 	= level to refill
+	 * @param numWalks 	int 	= number of random walks to fetch
+	 */
+	private void refill(Level level, int numWalks) {
 		MethodThreadBatchRun batch = new MethodThreadBatchRun();
-		//lock the cache
-		synchronized (this) {
-			if (numNodes > this.getIndex(steps).size()) {
-				this.fillCacheCount[steps]++;
-				//if (steps == WhanauDHTConstants.W) System.out.println(this.toString());
-				//Indicate that we have threads filling up the cache at this level
-				this.setOpenRequest(steps,true);
-				//Randomly distribute requests to active peers
-				Set<WhanauRPCClientStub<T>> peers = this.getState().getActivePeers();
-				int numPeers = peers.size();
-				int[] randWalkRequest = new int[numPeers];
-				LinkedList<Pair<Object, Long>> currList = this.getIndex(steps);
+		int addedBefore;
+		level.lock.lock();
+		try {
+			if (level.retired)
+				return;
+			addedBefore = level.addedCount;
+		} finally {
+			level.lock.unlock();
+		}
+		try {
+			this.addRandWalkRequests(batch, level, numWalks);
+			if (batch.getNumThreads() > 0) {
+				batch.joinTermination(this.getFillTimeout(level.steps));
+				batch.getFinalResults();
+			}
+		} finally {
+			level.lock.lock();
+			try {
+				level.openRequest = false;
+				level.refillCount++;
+				if (level.addedCount > addedBefore)
+					this.scheduleRefill(level);
+				level.changed.signalAll();
+			} finally {
+				level.lock.unlock();
+			}
+		}
+	}
 	
-				if (numPeers > 0) {
-					int limit;
-					if (this.fillCacheCount[steps] == 1) 
-						limit = (this.getDepth()*(WhanauDHTConstants.W - steps + 1));//+numNodes;
-					else 
-						limit = this.getDepth()+numNodes;
-					for (int i=currList.size();i<limit;i++){
-						randWalkRequest[this.getState().nextRandInt(numPeers)]++;
-					}
-					//Send random walk batch requests
-					int i=0;
-					for (WhanauRPCClientStub<T> p : peers){
-						if (randWalkRequest[i] > 0){
-							batch.addThread(Integer.toString(i), this,  p, 
-												randWalkRequest[i], steps);
-						}
-						i++;
-					}
-				}
+	/**
+	 * Starts background refills of levels 1..steps, so that requests
+	 * for all of them are out at once.
+	 * Does nothing unless in background refill mode
+	 *
+	 * @param steps int = highest level to refill
+	 */
+	private void refillLevels(int steps) {
+		if (!WhanauDHTConstants.RANDWALK_BACKGROUND_REFILL)
+			return;
+		for (int i=1; i<=steps; i++) {
+			Level level = this.getLevel(i);
+			level.lock.lock();
+			try {
+				this.scheduleRefill(level);
+			} finally {
+				level.lock.unlock();
 			}
 		}
-		if (batch.getNumThreads() > 0) {
-			batch.joinTermination((WhanauDHTConstants.RANDWALK_PERSTEP_TIMEOUT+WhanauDHTConstants.RANDWALK_PERSTEP_PROCTIME)*steps - 
-						WhanauDHTConstants.RANDWALK_PERSTEP_PROCTIME);
-			batch.getFinalResults();
+	}
+	
+	/**
+	 * Starts background refills of all levels, so that the first
+	 * calls to sampleNodes(...) after reset(...) find stock.
+	 * Does nothing unless in background refill mode
+	 */
+	public void prefill() {
+		this.refillLevels(WhanauDHTConstants.W);
+	}
+	
+	/**
+	 * Waits until a level has numNodes random walks, then takes them.
+	 * Waiting callers are added to the refill of the level;
+	 * gives up if a refill finishes without making progress, or on timeout
+	 * If partial, returns what arrived as soon as a refill finishes with some stock
+	 * 
+	 * @param level		Level	= level to take from
+	 * @param numNodes	int		= number of desired results
+	 * @param partial 	boolean = true to accept fewer than numNodes results
+	 * @return LinkedList<Pair<Object, Long>> = random walk results, null if not enough
+	 */
+	private LinkedList<Pair<Object, Long>> waitForRandWalks(Level level, int numNodes, boolean partial) {
+		level.lock.lock();
+		try {
+			int need = Math.max(0, numNodes - level.pool.size());
+			int refillsBefore = level.refillCount;
+			long deadline = System.currentTimeMillis() + this.getFillTimeout(level.steps) + WhanauDHTConstants.RANDWALK_PERSTEP_PROCTIME;
+			level.missing += need;
+			try {
+				this.scheduleRefill(level);
+				while (!level.retired && (level.pool.size() < numNodes) && level.openRequest) {
+					if (partial && (level.refillCount != refillsBefore) && (level.pool.size() > 0))
+						break;
+					long waitTime = deadline - System.currentTimeMillis();
+					if (waitTime <= 0)
+						break;
+					level.changed.await(waitTime, TimeUnit.MILLISECONDS);
+				}
+			} catch (InterruptedException e) {
+				this.getState().getLog().warning("Interrupted Wait");
+			} finally {
+				level.missing -= need;
+			}
+			int stock = level.pool.size();
+			if (!level.retired && ((stock >= numNodes) || (partial && (stock > 0)))) {
+				LinkedList<Pair<Object, Long>> result = this.retrieveRandWalks(level, numNodes);
+				this.scheduleRefill(level);
+				return result;
+			}
+		} finally {
+			level.lock.unlock();
 		}
-
-		this.setOpenRequest(steps,false);
+		this.state.getLog().warning("(numNodes="+numNodes+",steps="+level.steps+") refill did not get enough. Returning null");
+		return null;
 	}
 	
 	/**
@@ -249,85 +438,96 @@ public class RandomWalkCache<T> implements MethodThreadInterface{
 	 * 							or if we cannot retrieve the desired number
 	 */
 	public LinkedList<Pair<Object,Long>> sampleNodes(int numNodes, int steps){
+		return this.sampleNodes(numNodes, steps, false);
+	}
+	
+	/**
+	 * Retrieves a number of random walks.
+	 * With partial, returns the walks that arrived after one refill round
+	 * instead of waiting for all numNodes (best effort),
+	 * so callers can accumulate walks over several calls
+	 *
+	 * @param numNodes	int 	= number of desired random walks
+	 * @param steps		int 	= number of steps in random walk
+	 * @param partial 	boolean = true to accept fewer than numNodes results
+	 * @return LinkedList<Pair<Object,Long>> = List of random walk results
+	 * 						random walk result is a pair (DHT record, queryToken)
+	 * 						returns null if the parameters are out of bounds
+	 * 							or if we cannot retrieve the desired number (any, if partial)
+	 */
+	public LinkedList<Pair<Object,Long>> sampleNodes(int numNodes, int steps, boolean partial){
 		LinkedList<Pair<Object,Long>> currList;
 		
-		synchronized (this) {
-			this.getRandWalks().ensureCapacity(steps+1);
-			//Remove expired entries
-			currList = this.getIndex(steps);
-			for (Pair<Object,Long> record : currList) {
-				if (! this.getState().getKVChecker().checkRecordTTL(record.getFirst())) {
-					currList.remove(record);
-				}
-			}
-			//Check bounds
-			if (steps < 0) {
-				this.state.getLog().warning("(numNodes="+numNodes+",steps="+steps+") Error! steps < 0");
-				return null;
-			}
-			if (steps > WhanauDHTConstants.W) {
-				this.state.getLog().warning("(numNodes="+numNodes+",steps="+steps+") Error! steps > "+WhanauDHTConstants.W+"=maximum");
-				return null;
-			}
-			//if (numNodes > (2*this.getDepth())) { 
-			//	this.state.getLog().warning("(numNodes="+numNodes+",steps="+steps+") Error! numNodes > 2*"+this.getDepth()+"=cache depth");
-			//	return null;
-			//}
-			//Check endcase, return this node's record
-			if (steps == 0) {
-				currList = new LinkedList<Pair<Object, Long>>();
-				for (int i=0; i < numNodes; i++){
-					currList.addLast(new Pair<Object,Long>(
-								this.getState().getRandomMyRecord(),
-								this.getState().generateQueryToken()));
-				}
-				return currList;
+		//Check bounds
+		if (steps < 0) {
+			this.state.getLog().warning("(numNodes="+numNodes+",steps="+steps+") Error! steps < 0");
+			return null;
+		}
+		if (steps > WhanauDHTConstants.W) {
+			this.state.getLog().warning("(numNodes="+numNodes+",steps="+steps+") Error! steps > "+WhanauDHTConstants.W+"=maximum");
+			return null;
+		}
+		//if (numNodes > (2*this.getDepth())) {
+		//	this.state.getLog().warning("(numNodes="+numNodes+",steps="+steps+") Error! numNodes > 2*"+this.getDepth()+"=cache depth");
+		//	return null;
+		//}
+		//Check endcase, return this node's record
+		if (steps == 0) {
+			currList = new LinkedList<Pair<Object, Long>>();
+			for (int i=0; i < numNodes; i++){
+				currList.addLast(new Pair<Object,Long>(
+							this.getState().getRandomMyRecord(),
+							this.getState().generateQueryToken()));
 			}
+			return currList;
+		}
+		Level level = this.getLevel(steps);
+		level.lock.lock();
+		try {
+			//Remove expired entries
+			level.pool.removeExpired(this.getState().getKVChecker());
 			//If we have enough in the cache, just satisfy the request
-			if (this.getIndex(steps).size() >= numNodes){
-				return this.retrieveRandWalks(numNodes, steps);
+			if (level.pool.size() >= numNodes){
+				currList = this.retrieveRandWalks(level, numNodes);
+				if (WhanauDHTConstants.RANDWALK_BACKGROUND_REFILL)
+					this.scheduleRefill(level);
+				return currList;
 			}
+		} finally {
+			level.lock.unlock();
 		}
 		//If we have no active peers, just give up
 		if (this.getState().getActivePeers().size() <= 0) {
 			this.state.getLog().warning("No active peers: quitting");
 			return null;
 		}
+		//Wait only for the walks we miss, the refill runs in the background
+		if (WhanauDHTConstants.RANDWALK_BACKGROUND_REFILL) {
+			//Refill the lower levels at the same time, peers ask us for them
+			if (WhanauDHTConstants.RANDWALK_PIPELINED_FILL)
+				this.refillLevels(steps-1);
+			return this.waitForRandWalks(level, numNodes, partial);
+		}
 		//If we don't have enough, fetch some more
 		//Dont proceed if there is already random walk RMI requests out		
 		for (int i=1;i<=steps;i++) {
-			synchronized (this) {
-				while (this.hasLowerOpenRequest(i)) {
-					try {
-						this.wait();
-					}catch(InterruptedException e) {
-						this.getState().getLog().warning("Interrupted Wait");
-					}
-				}
-			}
+			this.waitForLowerOpenRequests(i);
 			this.fillCache(numNodes, i);
-			this.lockedNotifyAll();
 		}
 		
 		//Our pre-fetching should have enough, try again
 		//If we can't get it, just return null = failure
-		if (this.getIndex(steps).size() >= numNodes) {
-			return this.retrieveRandWalks(numNodes, steps);
-		} else {
-			this.state.getLog().warning("Tried retrieving, still not enough. Returning null");
-			return null;
+		level.lock.lock();
+		try {
+			if ((level.pool.size() >= numNodes) || (partial && (level.pool.size() > 0)))
+				return this.retrieveRandWalks(level, numNodes);
+		} finally {
+			level.lock.unlock();
 		}
+		this.state.getLog().warning("Tried retrieving, still not enough. Returning null");
+		return null;
 	}
 	
-	/**
-	 * I'm not sure if this is actually the correct thing to do.
-	 * I keep large parts of the class unlocked for concurrency,
-	 * so this is used to notify waiting threads in unlocked code
-	 */
-	public synchronized void lockedNotifyAll(){
-		this.notifyAll();
-	}
-
 	/**
 	 * In order to parallelized remote method invocations to different
 	 * peers in recursive random walk,
@@ -337,6 +537,7 @@ public class RandomWalkCache<T> implements MethodThreadInterface{
 	 * 					= Object[0] WhanauPeer 	= remote reference
 	 * 					= Object[1] int			= number of random walks
 	 * 					= Object[2] int 		= number of steps in random walk
+	 * 					= Object[3] Level 		= level of the cache to add the results to
 	 * @return Object = Boolean = true if success, false otherwise
 	 */
 	public Object methodThread(Object[] parameters){
@@ -344,6 +545,7 @@ public class RandomWalkCache<T> implements MethodThreadInterface{
 		WhanauRPCClientStub<T> p = (WhanauRPCClientStub<T>)parameters[0];
 		int numNodes = (Integer) parameters[1];
 		int steps = (Integer) parameters[2];
+		Level level = (Level) parameters[3];
 		//Send RMI
 		try{
 			if (p == null) {
@@ -351,7 +553,7 @@ public class RandomWalkCache<T> implements MethodThreadInterface{
 			} 
 			result = (LinkedList<Pair<Object, Long>>) p.remoteCall(WhanauDHTConstants.SAMPLENODES_CMD, numNodes, steps-1);
 			//Merge with our own list
-			this.lockedAdd(result, steps);
+			this.lockedAdd(result, level);
 			return new Boolean(true);
 		}catch (Exception e){
 			p.setActiveStatus(false);
@@ -363,21 +565,35 @@ public class RandomWalkCache<T> implements MethodThreadInterface{
 	
 	/**
 	 * Takes the result of a call to sampleNodes(...) and merges it with our cache
-	 * Checks each result is self-certifying and properly formed
-	 * Must be locked to protect cache
+	 * Checks each result is self-certifying and properly formed,
+	 * as one batch before taking the lock (see KeyValueChecker.checkRecords(...))
+	 * Locks the level to protect it
+	 * 
+	 * Results for a level retired by reset(...) are dropped
 	 * 
 	 * @param toAdd LinkedList<Pair<Object, Long>> 	= result from peer.sampleNodes(...)
-	 * @param i 	int								= current level in cache to add it to (steps)
+	 * @param level Level							= level in cache to add it to
 	 */
-	public synchronized void lockedAdd(LinkedList<Pair<Object, Long>> toAdd, int i) {
-		if (toAdd != null) {
-			LinkedList<Pair<Object, Long>> workingList = (LinkedList<Pair<Object, Long>>) toAdd.clone();
-			for (Pair<Object,Long> record : workingList) {
-				if (! this.getState().getKVChecker().checkRecord(record.getFirst())) {
-					workingList.remove(record);
-				}
-			}
-			this.getIndex(i).addAll(workingList);
+	private void lockedAdd(LinkedList<Pair<Object, Long>> toAdd, Level level) {
+		if (toAdd == null)
+			return;
+		LinkedList<Object> records = new LinkedList<Object>();
+		for (Pair<Object, Long> result : toAdd) {
+			records.add((result != null) ? result.getFirst() : null);
+		}
+		BitSet valid = this.getState().getKVChecker().checkRecords(records);
+		level.lock.lock();
+		try {
+			if (level.retired)
+				return;
+			int sizeBefore = level.pool.size();
+			int dropped = level.pool.addAll(toAdd, valid);
+			level.addedCount += level.pool.size() - sizeBefore;
+			level.changed.signalAll();
+			if (dropped > 0)
+				this.getState().getLog().warning("dropped "+dropped+" malformed random walk results");
+		} finally {
+			level.lock.unlock();
 		}
 	}
 	
@@ -386,12 +602,18 @@ public class RandomWalkCache<T> implements MethodThreadInterface{
 	 * 
 	 * @return String
 	 */
-	public synchronized String toString() {
+	public String toString() {
+		Level[] currLevels = this.levels;
 		String result="RandomWalkCache: depth="+this.getDepth()+"\n";
-		result+="Level - #items - #fillCache()\n";
+		result+="Level - #items - #fillCache() - #missing\n";
 		for (int i=WhanauDHTConstants.W;i>=0;i--) {
-			LinkedList<Pair<Object, Long>> currList = this.getIndex(i);
-			result += "\t "+i+" - "+currList.size()+" - "+this.fillCacheCount[i]+"\n";
+			Level level = currLevels[i];
+			level.lock.lock();
+			try {
+				result += "\t "+i+" - "+level.pool.size()+" - "+level.fillCacheCount+" - "+level.missing+"\n";
+			} finally {
+				level.lock.unlock();
+			}
 		}
 		return result;
 	}
@@ -0,0 +1,166 @@
+package edu.mit.csail.whanausip.dht;
+
+import java.util.BitSet;
+import java.util.LinkedList;
+
+import edu.mit.csail.whanausip.commontools.Pair;
+import edu.mit.csail.whanausip.commontools.WhanauRandom;
+import edu.mit.csail.whanausip.dht.kvchecker.KeyValueChecker;
+
+/**
+ * Random walk results of one level of RandomWalkCache,
+ * in a preallocated array. Removing an entry moves the last one into its place,
+ * so taking random entries is O(1) each. Order is not kept.
+ *
+ * Not thread-safe, RandomWalkCache locks it
+ *
+ * @author ryscheng
+ * @date 2010/08/30
+ */
+public class RandomWalkPool {
+	private Walk[] 	walks;		//walks[0..size-1] are stored
+	private int 	size;		//Number of stored walks
+
+	/**
+	 * Result of one random walk
+	 */
+	public static class Walk {
+		private final Object 	record;		//DHT record of the last node
+		private final long 		token;		//Query token of the last node
+
+		/**
+		 * @param record 	Object 	= DHT record
+		 * @param token 	long 	= query token
+		 */
+		public Walk(Object record, long token) {
+			this.record = record;
+			this.token = token;
+		}
+
+		public Object getRecord() {
+			return this.record;
+		}
+
+		public long getToken() {
+			return this.token;
+		}
+
+		/**
+		 * Returns this walk in the format of sampleNodes(...) results
+		 *
+		 * @return Pair<Object, Long> = (DHT record, queryToken)
+		 */
+		public Pair<Object, Long> toPair() {
+			return new Pair<Object, Long>(this.record, this.token);
+		}
+	}
+
+	/**
+	 * Creates an empty pool
+	 *
+	 * @param capacity int = number of walks to preallocate room for
+	 */
+	public RandomWalkPool(int capacity) {
+		this.walks = new Walk[Math.max(1, capacity)];
+		this.size = 0;
+	}
+
+	/**
+	 * Returns the number of stored walks
+	 *
+	 * @return int
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Makes room for at least capacity walks
+	 *
+	 * @param capacity int
+	 */
+	public void ensureCapacity(int capacity) {
+		if (capacity > this.walks.length) {
+			Walk[] newWalks = new Walk[Math.max(capacity, 2*this.walks.length)];
+			System.arraycopy(this.walks, 0, newWalks, 0, this.size);
+			this.walks = newWalks;
+		}
+	}
+
+	/**
+	 * Stores a walk
+	 *
+	 * @param walk Walk
+	 */
+	public void add(Walk walk) {
+		this.ensureCapacity(this.size+1);
+		this.walks[this.size++] = walk;
+	}
+
+	/**
+	 * Stores the walks of a sampleNodes(...) result whose records are valid
+	 *
+	 * @param results 	LinkedList<Pair<Object, Long>> 	= (DHT record, queryToken) pairs
+	 * @param valid 	BitSet 							= bit i is set if the record of results.get(i)
+	 * 													  passed KeyValueChecker.checkRecords(...)
+	 * @return int 										= number of walks dropped
+	 */
+	public int addAll(LinkedList<Pair<Object, Long>> results, BitSet valid) {
+		int dropped = 0;
+		int i = 0;
+		this.ensureCapacity(this.size+results.size());
+		for (Pair<Object, Long> result : results) {
+			if ((result != null) && (result.getSecond() != null) && valid.get(i))
+				this.walks[this.size++] = new Walk(result.getFirst(), result.getSecond());
+			else
+				dropped++;
+			i++;
+		}
+		return dropped;
+	}
+
+	/**
+	 * Removes and returns up to n uniformly random walks
+	 *
+	 * @param n 		int 			= number of walks
+	 * @param random 	WhanauRandom 	= random number generator
+	 * @return Walk[] 					= min(n, size()) walks
+	 */
+	public Walk[] drain(int n, WhanauRandom random) {
+		Walk[] result = new Walk[Math.min(n, this.size)];
+		for (int i=0; i<result.length; i++) {
+			int index = random.nextInt(this.size);
+			result[i] = this.walks[index];
+			this.removeAt(index);
+		}
+		return result;
+	}
+
+	/**
+	 * Removes walks whose record is past its TTL
+	 *
+	 * @param kvChecker KeyValueChecker<?> = checks the TTL
+	 * @return int = number of walks removed
+	 */
+	public int removeExpired(KeyValueChecker<?> kvChecker) {
+		int removed = 0;
+		for (int i=this.size-1; i>=0; i--) {
+			if (!kvChecker.checkRecordTTL(this.walks[i].getRecord())) {
+				this.removeAt(i);
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Removes the walk at index, moving the last walk into its place
+	 *
+	 * @param index int
+	 */
+	private void removeAt(int index) {
+		this.size--;
+		this.walks[index] = this.walks[this.size];
+		this.walks[this.size] = null;
+	}
+}
@@ -6,8 +6,11 @@ import java.util.Hashtable;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManager;
 
 import edu.mit.csail.whanausip.commontools.*;
+import edu.mit.csail.whanausip.dht.ssl.HandshakeCountingTrustManager;
 
 /**
  * Stores the KeyStore and SSL contexts of a WhanauDHT node instance
@@ -26,12 +29,18 @@ public class WhanauKeyState {
 	private static 	SSLContext 						mostRecentSSLContext;
 	/**
 	 * Local instance variables storing the keys, key password,
-	 * SSL Context, and hash of public key
+	 * SSL Context, hash of public key, and the connection pool
+	 * The trust manager and handshake counters track how many
+	 * handshakes resumed a cached SSL session
 	 */
 	private 		String 							pubKeyHash;
 	private 		KeyStore 						keys;
 	private 		String 							keyPassword;
 	private 		SSLContext 						sslCtx;
+	private 		WhanauRPCConnectionPool			connPool;
+	private 		HandshakeCountingTrustManager	trustManager;
+	private 		int								numClientHandshakes;
+	private 		int								numServerHandshakes;
 	
 	/**
 	 * Initiates a new WhanauKeyState with the given keys
@@ -53,11 +62,32 @@ public class WhanauKeyState {
 		SSLContext context = SSLContext.getInstance(WhanauDHTConstants.SECURESOCKETPROTOCOL);
 		KeyManagerFactory kmf = KeyManagerFactory.getInstance(WhanauDHTConstants.KEY_MGMT_ALG);
 		kmf.init(this.getKeys(), this.getKeyPassword().toCharArray());
-		context.init(kmf.getKeyManagers(), CryptoTool.getAllTrustingManager(), null);
+		this.trustManager = new HandshakeCountingTrustManager();
+		context.init(kmf.getKeyManagers(), new TrustManager[]{this.trustManager}, null);
+		WhanauKeyState.setSessionCachePolicy(context.getClientSessionContext());
+		WhanauKeyState.setSessionCachePolicy(context.getServerSessionContext());
+		this.numClientHandshakes = 0;
+		this.numServerHandshakes = 0;
 		this.setSslCtx(context);
+		this.connPool = new WhanauRPCConnectionPool();
 		WhanauKeyState.addSSLContextToStore(this.getPubKeyHash(), this.getSslCtx());
 	}
 	
+	/**
+	 * Sets the size and lifetime of the SSL session cache.
+	 * Client sessions are cached by the peer's host:port, as given to
+	 * SSLSocketFactory.createSocket(host, port), so every stub to the same
+	 * peer resumes the same session and skips the RSA key exchange.
+	 * 
+	 * @param sessions SSLSessionContext = client or server session cache
+	 */
+	private static void setSessionCachePolicy(SSLSessionContext sessions) {
+		if (sessions == null)
+			return;
+		sessions.setSessionCacheSize(WhanauDHTConstants.SSL_SESSION_CACHE_SIZE);
+		sessions.setSessionTimeout(WhanauDHTConstants.SSL_SESSION_TIMEOUT);
+	}
+	
 	/**
 	 * There is a static store that contains all of the SSL Contexts.
 	 * This store is referenced by RMISSLClientSocketFactory
@@ -168,6 +198,44 @@ public class WhanauKeyState {
 		return sslCtx;
 	}
 	
+	/**
+	 * Get the pool of open connections to peers,
+	 * authenticated with these keys
+	 * 
+	 * @return WhanauRPCConnectionPool = connection pool
+	 */
+	public WhanauRPCConnectionPool getConnPool() {
+		return this.connPool;
+	}
+	
+	/**
+	 * Records a completed handshake on a socket we opened (client side)
+	 */
+	public synchronized void recordClientHandshake() {
+		this.numClientHandshakes++;
+	}
+	
+	/**
+	 * Records a completed handshake on a socket we accepted (server side)
+	 */
+	public synchronized void recordServerHandshake() {
+		this.numServerHandshakes++;
+	}
+	
+	/**
+	 * Returns a string with the number of full and resumed handshakes
+	 * 
+	 * @return String
+	 */
+	public synchronized String getHandshakeStatsStr() {
+		int fullClient = this.trustManager.getNumFullClient();
+		int fullServer = this.trustManager.getNumFullServer();
+		return "Handshakes: client full="+fullClient+", client resumed="+
+				Math.max(0, this.numClientHandshakes-fullClient)+
+				", server full="+fullServer+", server resumed="+
+				Math.max(0, this.numServerHandshakes-fullServer)+"\n";
+	}
+	
 	/**
 	 * Set the SSL context
 	 * @param sslCtx SSLContext = new SSL Context
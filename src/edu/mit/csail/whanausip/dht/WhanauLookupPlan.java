@@ -0,0 +1,99 @@
+package edu.mit.csail.whanausip.dht;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import edu.mit.csail.whanausip.commontools.Pair;
+
+/**
+ * Plans the finger queries of one lookupTry.
+ * Collects (layer, finger ID) targets, drops duplicates,
+ * and orders them by distance from the key.
+ *
+ * Fingers are chosen between an ID and the key, so the closest
+ * target is the first finger ID at or before the key on the ring.
+ *
+ * @author ryscheng
+ * @date 2010/08/30
+ */
+public class WhanauLookupPlan<T> {
+	private Comparable<T> 							key;			//Key being looked up
+	private LinkedHashSet<Pair<Integer, Comparable<T>>> targets;	//(layer, finger ID) to query
+	private int										numAdded;		//Targets added, including duplicates
+
+	/**
+	 * Creates an empty plan for a lookup of key
+	 *
+	 * @param key Comparable<T> = key to lookup
+	 */
+	public WhanauLookupPlan(Comparable<T> key) {
+		this.key = key;
+		this.targets = new LinkedHashSet<Pair<Integer, Comparable<T>>>();
+		this.numAdded = 0;
+	}
+
+	/**
+	 * Adds a finger to query, ignored if already in the plan
+	 *
+	 * @param layer		int				= layer of the finger
+	 * @param fingerId	Comparable<T>	= ID of the finger at that layer
+	 * @return boolean					= true if it was not in the plan yet
+	 */
+	public boolean addTarget(int layer, Comparable<T> fingerId) {
+		this.numAdded++;
+		return this.targets.add(new Pair<Integer, Comparable<T>>(layer, fingerId));
+	}
+
+	/**
+	 * Returns the number of distinct targets
+	 *
+	 * @return int
+	 */
+	public int size() {
+		return this.targets.size();
+	}
+
+	/**
+	 * Returns the number of duplicate targets that were dropped
+	 *
+	 * @return int
+	 */
+	public int getNumDuplicates() {
+		return this.numAdded - this.targets.size();
+	}
+
+	/**
+	 * Returns the targets, closest to the key first
+	 *
+	 * @return List<Pair<Integer, Comparable<T>>> = (layer, finger ID)
+	 */
+	public List<Pair<Integer, Comparable<T>>> getOrderedTargets() {
+		ArrayList<Pair<Integer, Comparable<T>>> result = new ArrayList<Pair<Integer, Comparable<T>>>(this.targets);
+		Collections.sort(result, new Comparator<Pair<Integer, Comparable<T>>>() {
+			public int compare(Pair<Integer, Comparable<T>> a, Pair<Integer, Comparable<T>> b) {
+				return compareDistance(a.getSecond(), b.getSecond());
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Compares how far 2 IDs are before the key on the ring.
+	 * IDs at or before the key come first, largest first,
+	 * then the IDs that wrap around, largest first
+	 *
+	 * @param a Comparable<T>
+	 * @param b Comparable<T>
+	 * @return int = negative if a is closer to the key than b
+	 */
+	private int compareDistance(Comparable<T> a, Comparable<T> b) {
+		boolean aBefore = WhanauRingIndex.compareKeys(a, this.key) <= 0;
+		boolean bBefore = WhanauRingIndex.compareKeys(b, this.key) <= 0;
+		if (aBefore != bBefore)
+			return aBefore ? -1 : 1;
+		return WhanauRingIndex.compareKeys(b, a);
+	}
+}
@@ -0,0 +1,924 @@
+package edu.mit.csail.whanausip.dht;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+import edu.mit.csail.whanausip.commontools.*;
+import edu.mit.csail.whanausip.commontools.threads.MethodThreadScheduler;
+
+/**
+ * Non-blocking server for a WhanauVirtualNode.
+ * A few I/O threads, each with its own Selector, run the SSL handshakes
+ * with SSLEngine and read/write the sockets.
+ * The CPU-heavy parts of handshakes (SSLEngine delegated tasks) run on the
+ * crypto pool (MethodThreadScheduler.getCrypto()), not on the I/O threads.
+ * Complete requests are executed on a bounded pool of worker threads,
+ * and idle multiplexed connections do not hold any thread at all.
+ * Requests that would block in waitForSetupStage(...) because this node has
+ * not reached their stage yet (see WhanauVirtualNode.getRequiredStage(...))
+ * run on an unbounded pool instead (virtual threads if enabled), so they
+ * never take all workers and hold up the requests that let setup advance.
+ *
+ * Multiplexed requests are framed (see WhanauRPCFrame) and cut out on the I/O thread.
+ * Older clients send a plain object stream, which can only be split into requests
+ * by deserializing it. Each such connection gets a reader thread that
+ * decodes its stream as the bytes arrive, off the I/O thread.
+ *
+ * The wire format is the same as the blocking server:
+ * the client writes a serialized command String and Object[] parameters,
+ * and resets its stream after every request. The server answers with one
+ * serialized Object per request, and resets its stream after every response.
+ * Client authentication and the peer key hash checks are done the same way,
+ * via WhanauVirtualNode.processCommand(...)
+ *
+ * @author ryscheng
+ * @date 2010/08/24
+ */
+public class WhanauNIOServer<T> {
+	/**
+	 * Stream header of ObjectOutputStream (STREAM_MAGIC, STREAM_VERSION)
+	 * and the TC_RESET marker written by ObjectOutputStream.reset()
+	 */
+	private static final byte[] STREAM_HEADER 	= {(byte)0xAC, (byte)0xED, 0x00, 0x05};
+	private static final byte 	TC_RESET		= 0x79;
+
+	private WhanauVirtualNode<T>	node;			//Node that executes the commands
+	private WhanauState<T>			state;			//State of the node
+	private Logger					log;			//Logger
+	private ServerSocketChannel		serverChannel;	//Listening socket
+	private ArrayList<IOLoop>		loops;			//I/O threads
+	private int						nextLoop;		//Round robin assignment of connections
+	private ThreadPoolExecutor		workers;		//Bounded pool that executes commands
+	private ExecutorService			readers;		//Reader threads of older clients' connections
+	private ExecutorService			stageWaiters;	//Unbounded pool for requests that wait for a setup stage
+	private volatile boolean		isAlive;
+
+	/**
+	 * Creates a new server for the given node
+	 * Does not start listening until start() is called
+	 *
+	 * @param node	WhanauVirtualNode	= node that executes the commands
+	 * @param state	WhanauState			= state of the node
+	 */
+	public WhanauNIOServer(WhanauVirtualNode<T> node, WhanauState<T> state) {
+		this.node = node;
+		this.state = state;
+		this.log = state.getLog();
+		this.nextLoop = 0;
+		this.isAlive = false;
+	}
+
+	/**
+	 * Binds the local port and starts the I/O and worker threads
+	 *
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		final String name = "WhanauNIOServer-"+this.state.getLocalPort();
+		this.isAlive = true;
+		this.workers = new ThreadPoolExecutor(WhanauDHTConstants.NIO_WORKER_THREADS,
+				WhanauDHTConstants.NIO_WORKER_THREADS, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(WhanauDHTConstants.NIO_WORKER_QUEUE_SIZE),
+				new ThreadFactory() {
+					private int count = 0;
+					public synchronized Thread newThread(Runnable r) {
+						Thread t = new Thread(r, name+"-worker-"+(count++));
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		this.workers.allowCoreThreadTimeOut(true);
+		this.readers = MethodThreadScheduler.newConnectionPool();
+		this.stageWaiters = MethodThreadScheduler.newConnectionPool();
+
+		this.serverChannel = ServerSocketChannel.open();
+		this.serverChannel.configureBlocking(false);
+		this.serverChannel.socket().bind(new InetSocketAddress(this.state.getLocalPort()));
+
+		this.loops = new ArrayList<IOLoop>();
+		for (int i = 0; i < Math.max(1, WhanauDHTConstants.NIO_IO_THREADS); i++) {
+			this.loops.add(new IOLoop(name+"-io-"+i));
+		}
+		//The first I/O thread also accepts new connections
+		this.serverChannel.register(this.loops.get(0).selector, SelectionKey.OP_ACCEPT);
+		for (IOLoop loop : this.loops) {
+			loop.thread.start();
+		}
+	}
+
+	/**
+	 * Closes the listening socket and all connections,
+	 * and stops all threads
+	 */
+	public void kill() {
+		this.isAlive = false;
+		try {
+			if (this.serverChannel != null)
+				this.serverChannel.close();
+		} catch (IOException ex) {
+			this.log.warning("Error closing server channel: "+ex.getMessage());
+		}
+		if (this.loops != null) {
+			for (IOLoop loop : this.loops) {
+				loop.selector.wakeup();
+			}
+		}
+		if (this.workers != null)
+			this.workers.shutdownNow();
+		if (this.readers != null)
+			this.readers.shutdownNow();
+		if (this.stageWaiters != null)
+			this.stageWaiters.shutdownNow();
+	}
+
+	/**
+	 * Returns the pool to run a command on: the unbounded pool if it would
+	 * wait for a setup stage this node has not reached, otherwise the workers
+	 *
+	 * @param command 	String 		= name of method
+	 * @param param 	Object[] 	= parameters to method
+	 * @return ExecutorService
+	 */
+	private ExecutorService getPool(String command, Object[] param) {
+		if (this.node.getRequiredStage(command, param) > this.state.getSetupStage())
+			return this.stageWaiters;
+		return this.workers;
+	}
+
+	/**
+	 * Returns a string with the number of connections and pending requests
+	 *
+	 * @return String
+	 */
+	public String toString() {
+		int numConns = 0;
+		if (this.loops != null) {
+			for (IOLoop loop : this.loops) {
+				numConns += loop.selector.keys().size();
+			}
+		}
+		return "NIOServer: connections="+numConns+", activeWorkers="+this.workers.getActiveCount()+
+				", queued="+this.workers.getQueue().size()+"\n";
+	}
+
+	/**
+	 * Accepts all pending connections and hands them to the I/O threads
+	 * round robin
+	 */
+	private void acceptAll() {
+		SocketChannel ch;
+		try {
+			while ((ch = this.serverChannel.accept()) != null) {
+				IOLoop loop = this.loops.get(this.nextLoop);
+				this.nextLoop = (this.nextLoop + 1) % this.loops.size();
+				loop.register(ch);
+			}
+		} catch (IOException ex) {
+			if (this.isAlive)
+				this.log.warning("Error accepting connection: "+ex.getMessage());
+		}
+	}
+
+	/**
+	 * One I/O thread.
+	 * All work on a connection's socket and SSLEngine is done on its I/O thread.
+	 * Other threads submit work with execute(...)
+	 */
+	private class IOLoop implements Runnable {
+		private Selector						selector;	//Connections of this thread
+		private ConcurrentLinkedQueue<Runnable>	tasks;		//Work submitted by other threads
+		private Thread							thread;
+
+		public IOLoop(String name) throws IOException {
+			this.selector = Selector.open();
+			this.tasks = new ConcurrentLinkedQueue<Runnable>();
+			this.thread = new Thread(this, name);
+		}
+
+		/**
+		 * Runs the task on this I/O thread
+		 *
+		 * @param task Runnable
+		 */
+		public void execute(Runnable task) {
+			this.tasks.add(task);
+			this.selector.wakeup();
+		}
+
+		/**
+		 * Hands a newly accepted socket to this I/O thread
+		 *
+		 * @param ch SocketChannel
+		 */
+		public void register(final SocketChannel ch) {
+			final IOLoop loop = this;
+			this.execute(new Runnable() {
+				public void run() {
+					try {
+						new Connection(loop, ch);
+					} catch (IOException ex) {
+						log.warning("Error registering connection: "+ex.getMessage());
+						try {
+							ch.close();
+						} catch (IOException e) {}
+					}
+				}
+			});
+		}
+
+		public void run() {
+			long lastIdleCheck = System.currentTimeMillis();
+			while (isAlive) {
+				try {
+					this.selector.select(WhanauDHTConstants.NIO_SELECT_TIMEOUT);
+				} catch (IOException ex) {
+					log.warning("Error in select: "+ex.getMessage());
+					break;
+				}
+				Runnable task;
+				while ((task = this.tasks.poll()) != null) {
+					task.run();
+				}
+				Iterator<SelectionKey> iter = this.selector.selectedKeys().iterator();
+				while (iter.hasNext()) {
+					SelectionKey key = iter.next();
+					iter.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable()) {
+						acceptAll();
+						continue;
+					}
+					Connection conn = (Connection) key.attachment();
+					if (key.isReadable())
+						conn.onReadable();
+					if (key.isValid() && key.isWritable())
+						conn.onWritable();
+				}
+				long now = System.currentTimeMillis();
+				if (now - lastIdleCheck > WhanauDHTConstants.NIO_SELECT_TIMEOUT) {
+					lastIdleCheck = now;
+					this.closeIdle(now);
+				}
+			}
+			//Shutting down, close all connections
+			for (SelectionKey key : this.selector.keys()) {
+				if (key.attachment() instanceof WhanauNIOServer<?>.Connection)
+					((Connection) key.attachment()).close();
+			}
+			try {
+				this.selector.close();
+			} catch (IOException ex) {}
+		}
+
+		/**
+		 * Closes connections with no request in progress,
+		 * and no activity within SERVER_CONN_IDLE_TIMEOUT
+		 *
+		 * @param now long = current time
+		 */
+		private void closeIdle(long now) {
+			LinkedList<Connection> idle = new LinkedList<Connection>();
+			for (SelectionKey key : this.selector.keys()) {
+				if (key.attachment() instanceof WhanauNIOServer<?>.Connection) {
+					Connection conn = (Connection) key.attachment();
+					if (conn.numBusy == 0 && (now - conn.lastActivity) > WhanauDHTConstants.SERVER_CONN_IDLE_TIMEOUT)
+						idle.add(conn);
+				}
+			}
+			for (Connection conn : idle) {
+				conn.close();
+			}
+		}
+	}
+
+	/**
+	 * One accepted connection.
+	 * Only touched by its I/O thread, except the worker that
+	 * executes a request, which hands the response back with IOLoop.execute(...)
+	 */
+	private class Connection {
+		private IOLoop				loop;
+		private SocketChannel		ch;
+		private SelectionKey		key;
+		private SSLEngine			engine;
+		private ByteBuffer			netIn;			//Encrypted bytes read from socket (write mode)
+		private ByteBuffer			appIn;			//Decrypted bytes (write mode)
+		private ByteBuffer			netOut;			//Encrypted bytes to write to socket (write mode)
+		private LinkedList<ByteBuffer> appOut;		//Responses waiting to be encrypted
+		private byte[]				reqBuf;			//Decrypted bytes of unparsed requests
+		private int					reqLen;			//Number of valid bytes in reqBuf
+		private RequestStream		legacyIn;		//Decrypted bytes of an older client, null if not (yet) known
+		private Semaphore			legacyDone;		//Released when a request of an older client is answered
+		private boolean				firstRequest;	//The first request starts with the stream header
+		private boolean				firstResponse;	//The first response starts with the stream header
+		private boolean				handshakeDone;
+		private String				seeHash;		//Client's public key hash
+		private int					numBusy;		//Number of requests executing on a worker
+		private boolean				mux;			//Multiplexed protocol (see WhanauRPCFrame)
+		private boolean				taskRunning;	//Delegated SSL tasks are running on the crypto pool
+		private volatile boolean	closed;
+		private long				lastActivity;
+
+		public Connection(IOLoop loop, SocketChannel ch) throws IOException {
+			this.loop = loop;
+			this.ch = ch;
+			ch.configureBlocking(false);
+			//Responses are written in one piece, do not delay them
+			ch.socket().setTcpNoDelay(true);
+			this.engine = state.getSSLContext().createSSLEngine();
+			this.engine.setUseClientMode(false);
+			//Require Client Authentication
+			this.engine.setWantClientAuth(true);
+			this.engine.setNeedClientAuth(true);
+			int netSize = this.engine.getSession().getPacketBufferSize();
+			int appSize = this.engine.getSession().getApplicationBufferSize();
+			this.netIn = ByteBuffer.allocate(netSize);
+			this.netOut = ByteBuffer.allocate(netSize);
+			this.appIn = ByteBuffer.allocate(appSize);
+			this.appOut = new LinkedList<ByteBuffer>();
+			this.reqBuf = new byte[appSize];
+			this.reqLen = 0;
+			this.legacyIn = null;
+			this.legacyDone = new Semaphore(0);
+			this.firstRequest = true;
+			this.firstResponse = true;
+			this.handshakeDone = false;
+			this.numBusy = 0;
+			this.mux = false;
+			this.taskRunning = false;
+			this.closed = false;
+			this.lastActivity = System.currentTimeMillis();
+			this.engine.beginHandshake();
+			this.key = ch.register(loop.selector, SelectionKey.OP_READ, this);
+		}
+
+		public void onReadable() {
+			try {
+				int n = this.ch.read(this.netIn);
+				if (n < 0) {
+					//Client closed the connection
+					this.close();
+					return;
+				}
+				this.lastActivity = System.currentTimeMillis();
+				this.pump();
+			} catch (Exception ex) {
+				this.fail(ex);
+			}
+		}
+
+		public void onWritable() {
+			try {
+				this.pump();
+			} catch (Exception ex) {
+				this.fail(ex);
+			}
+		}
+
+		/**
+		 * Drives the SSLEngine as far as possible with the data available:
+		 * handshake, decrypt incoming data, encrypt responses, write to socket.
+		 * Delegated handshake tasks are started on the crypto pool,
+		 * the connection waits (not reading) until they are done
+		 *
+		 * @throws Exception
+		 */
+		private void pump() throws Exception {
+			boolean progress = !this.taskRunning;
+			while (progress && !this.closed) {
+				progress = false;
+				HandshakeStatus hs = this.engine.getHandshakeStatus();
+				if (hs == HandshakeStatus.NEED_TASK) {
+					this.runDelegatedTasks();
+				} else if (hs == HandshakeStatus.NEED_WRAP) {
+					progress = this.wrap(ByteBuffer.allocate(0));
+				} else if (hs != HandshakeStatus.NOT_HANDSHAKING && hs != HandshakeStatus.FINISHED) {
+					//NEED_UNWRAP
+					progress = this.unwrap();
+				} else {
+					if (!this.handshakeDone)
+						this.onHandshakeDone();
+					progress = this.unwrap();
+					this.parseRequest();
+					while (!this.appOut.isEmpty() && this.wrap(this.appOut.getFirst())) {
+						if (!this.appOut.getFirst().hasRemaining())
+							this.appOut.removeFirst();
+					}
+				}
+			}
+			if (!this.closed) {
+				this.flushNet();
+				this.updateInterest();
+			}
+		}
+
+		/**
+		 * Runs the SSLEngine's delegated tasks on the crypto pool,
+		 * then continues pump() on the I/O thread
+		 */
+		private void runDelegatedTasks() {
+			final Connection conn = this;
+			final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+			Runnable task;
+			while ((task = this.engine.getDelegatedTask()) != null) {
+				tasks.add(task);
+			}
+			this.taskRunning = true;
+			MethodThreadScheduler.getCrypto().execute(new Runnable() {
+				public void run() {
+					for (Runnable t : tasks) {
+						t.run();
+					}
+					loop.execute(new Runnable() {
+						public void run() {
+							conn.taskRunning = false;
+							try {
+								conn.pump();
+							} catch (Exception ex) {
+								conn.fail(ex);
+							}
+						}
+					});
+				}
+			});
+		}
+		
+		/**
+		 * Checks the client's key after the handshake
+		 *
+		 * @throws Exception
+		 */
+		private void onHandshakeDone() throws Exception {
+			this.handshakeDone = true;
+			state.getKeyState().recordServerHandshake();
+			this.seeHash = CryptoTool.SHA1toHex(
+					this.engine.getSession().getPeerCertificates()[0].getPublicKey().getEncoded());
+		}
+
+		/**
+		 * Decrypts as much as possible from netIn.
+		 * Decrypted bytes are moved to reqBuf
+		 *
+		 * @return boolean = true if any bytes were consumed or produced
+		 * @throws Exception
+		 */
+		private boolean unwrap() throws Exception {
+			this.netIn.flip();
+			SSLEngineResult res = this.engine.unwrap(this.netIn, this.appIn);
+			this.netIn.compact();
+			this.drainAppIn();
+			switch (res.getStatus()) {
+			case BUFFER_UNDERFLOW:
+				//Need more bytes from the socket
+				int netSize = this.engine.getSession().getPacketBufferSize();
+				if (this.netIn.capacity() < netSize)
+					this.netIn = enlarge(this.netIn, netSize);
+				return false;
+			case BUFFER_OVERFLOW:
+				int appSize = this.engine.getSession().getApplicationBufferSize();
+				if (this.appIn.capacity() < appSize)
+					this.appIn = enlarge(this.appIn, appSize);
+				return true;
+			case CLOSED:
+				this.close();
+				return false;
+			default:
+				return (res.bytesConsumed() > 0 || res.bytesProduced() > 0
+						|| res.getHandshakeStatus() == HandshakeStatus.FINISHED);
+			}
+		}
+
+		/**
+		 * Encrypts data from src into netOut
+		 *
+		 * @param src ByteBuffer = plain text to send
+		 * @return boolean = true if any bytes were produced
+		 * @throws Exception
+		 */
+		private boolean wrap(ByteBuffer src) throws Exception {
+			SSLEngineResult res = this.engine.wrap(src, this.netOut);
+			switch (res.getStatus()) {
+			case BUFFER_OVERFLOW:
+				//Make room by writing to the socket first
+				this.flushNet();
+				if (this.netOut.position() == 0)
+					this.netOut = enlarge(this.netOut, this.engine.getSession().getPacketBufferSize());
+				return (this.netOut.remaining() >= this.engine.getSession().getPacketBufferSize());
+			case CLOSED:
+				this.close();
+				return false;
+			default:
+				return (res.bytesProduced() > 0 || res.bytesConsumed() > 0);
+			}
+		}
+
+		/**
+		 * Writes encrypted bytes to the socket, as much as the socket accepts
+		 *
+		 * @throws IOException
+		 */
+		private void flushNet() throws IOException {
+			this.netOut.flip();
+			this.ch.write(this.netOut);
+			this.netOut.compact();
+		}
+
+		/**
+		 * Only ask for OP_WRITE when the socket could not take everything
+		 */
+		private void updateInterest() {
+			if (!this.key.isValid())
+				return;
+			if (this.taskRunning)
+				this.key.interestOps(0);
+			else if (this.netOut.position() > 0)
+				this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			else
+				this.key.interestOps(SelectionKey.OP_READ);
+		}
+
+		/**
+		 * Moves decrypted bytes from appIn to reqBuf,
+		 * or to the reader thread of an older client
+		 */
+		private void drainAppIn() {
+			this.appIn.flip();
+			int n = this.appIn.remaining();
+			if ((n > 0) && (this.legacyIn != null)) {
+				this.legacyIn.append(this.appIn.array(), this.appIn.arrayOffset()+this.appIn.position(), n);
+			} else if (n > 0) {
+				if (this.reqLen + n > this.reqBuf.length) {
+					byte[] bigger = new byte[Math.max(this.reqBuf.length*2, this.reqLen + n)];
+					System.arraycopy(this.reqBuf, 0, bigger, 0, this.reqLen);
+					this.reqBuf = bigger;
+				}
+				this.appIn.get(this.reqBuf, this.reqLen, n);
+				this.reqLen += n;
+			}
+			this.appIn.clear();
+		}
+
+		/**
+		 * Tries to read complete requests from reqBuf.
+		 * If the bytes are incomplete, wait for more.
+		 * A client that starts with WhanauRPCFrame.MAGIC uses the multiplexed protocol,
+		 * and all complete request frames are executed at once.
+		 * Otherwise the bytes go to a reader thread (see LegacyReader)
+		 *
+		 * @throws IOException
+		 */
+		private void parseRequest() throws IOException {
+			if (this.reqLen == 0 || !this.handshakeDone)
+				return;
+			if (this.firstRequest && this.reqBuf[0] == WhanauRPCFrame.MAGIC[0]) {
+				if (!WhanauRPCFrame.startsWithMagic(this.reqBuf, this.reqLen))
+					throw new IOException("Unknown protocol");
+				if (this.reqLen < WhanauRPCFrame.MAGIC.length)
+					return;
+				this.consume(WhanauRPCFrame.MAGIC.length);
+				this.firstRequest = false;
+				this.mux = true;
+				this.appOut.add(ByteBuffer.wrap(WhanauRPCFrame.MAGIC));
+			}
+			if (this.mux) {
+				WhanauRPCFrame frame;
+				while ((frame = WhanauRPCFrame.parse(this.reqBuf, 0, this.reqLen)) != null) {
+					this.consume(frame.getWireSize());
+					this.executeFrame(frame);
+				}
+				return;
+			}
+			if (this.firstRequest) {
+				//Older client, hand its bytes to a reader thread from now on
+				this.firstRequest = false;
+				this.legacyIn = new RequestStream();
+				this.legacyIn.append(this.reqBuf, 0, this.reqLen);
+				this.reqLen = 0;
+				this.reqBuf = null;
+				try {
+					readers.execute(new LegacyReader(this));
+				} catch (RejectedExecutionException ex) {
+					throw new IOException("Server is shutting down");
+				}
+			}
+		}
+
+		/**
+		 * Removes parsed bytes from the start of reqBuf
+		 *
+		 * @param n int = number of bytes
+		 */
+		private void consume(int n) {
+			System.arraycopy(this.reqBuf, n, this.reqBuf, 0, this.reqLen - n);
+			this.reqLen -= n;
+		}
+
+		/**
+		 * Executes a request frame on the worker pool.
+		 * The response frame is handed back to the I/O thread to be sent.
+		 * Responses are sent in the order they finish
+		 *
+		 * @param request WhanauRPCFrame = request
+		 */
+		private void executeFrame(final WhanauRPCFrame request) {
+			final Connection conn = this;
+			//Binary requests are decoded here to find their stage, the others on the worker
+			Object[] call = null;
+			if (WhanauRPCCodec.isBinary(request.getPayload())) {
+				try {
+					call = WhanauRPCCodec.decodeRequest(request.getPayload());
+				} catch (Exception ex) {
+					//Decoded again on the worker, which answers the error
+					call = null;
+				}
+			}
+			final Object[] decoded = call;
+			ExecutorService pool = workers;
+			if (decoded != null)
+				pool = getPool((String) decoded[0], (Object[]) decoded[1]);
+			this.numBusy++;
+			try {
+				pool.execute(new Runnable() {
+					public void run() {
+						final byte[] toSend = node.processFrame(conn.seeHash, request, decoded).toBytes();
+						loop.execute(new Runnable() {
+							public void run() {
+								conn.onResponse(toSend);
+							}
+						});
+					}
+				});
+			} catch (RejectedExecutionException ex) {
+				//Other requests on this connection can still finish, only fail this one
+				log.warning("Too many pending requests, rejecting request from "+this.seeHash);
+				this.numBusy--;
+				try {
+					this.appOut.add(ByteBuffer.wrap(new WhanauRPCFrame(request.getRequestID(), 
+							WhanauRPCFrame.STATUS_ERROR, WhanauRPCCodec.encodeResponse("Server busy", WhanauRPCCodec.FORMAT_JAVA)).toBytes()));
+				} catch (IOException e) {
+					this.close();
+				}
+			}
+		}
+
+		/**
+		 * Executes a request on the worker pool.
+		 * The response is handed back to the I/O thread to be sent
+		 *
+		 * @param command 	String 		= name of method
+		 * @param param 	Object[] 	= parameters to method
+		 */
+		private void execute(final String command, final Object[] param) {
+			final Connection conn = this;
+			final boolean first = this.firstResponse;
+			this.numBusy++;
+			this.firstResponse = false;
+			try {
+				getPool(command, param).execute(new Runnable() {
+					public void run() {
+						byte[] response = null;
+						try {
+							Object result = node.processCommand(conn.seeHash, command, param);
+							response = serializeResponse(result, first);
+						} catch (Exception ex) {
+							//Answer with an error, the same as the blocking server,
+							//so the client throws and does not send the request again
+							log.warning("Error Processing Request: "+ex.getMessage());
+							try {
+								response = serializeResponse(new WhanauRPCError(
+										ex.getClass().getName()+": "+ex.getMessage()), first);
+							} catch (IOException e) {
+								response = null;
+							}
+						}
+						final byte[] toSend = response;
+						loop.execute(new Runnable() {
+							public void run() {
+								conn.onResponse(toSend);
+							}
+						});
+					}
+				});
+			} catch (RejectedExecutionException ex) {
+				log.warning("Too many pending requests, closing connection from "+this.seeHash);
+				this.close();
+			}
+		}
+
+		/**
+		 * Called on the I/O thread when a worker finished a request
+		 *
+		 * @param response byte[] = serialized response, null if the request failed
+		 */
+		private void onResponse(byte[] response) {
+			if (this.closed)
+				return;
+			if (response == null) {
+				//Could not even answer null, the stream is out of sync
+				this.close();
+				return;
+			}
+			this.numBusy--;
+			if (!this.mux)
+				this.legacyDone.release();
+			this.lastActivity = System.currentTimeMillis();
+			this.appOut.add(ByteBuffer.wrap(response));
+			try {
+				this.pump();
+			} catch (Exception ex) {
+				this.fail(ex);
+			}
+		}
+
+		private void fail(Exception ex) {
+			if (isAlive && !this.closed)
+				log.fine("Closing connection from "+this.seeHash+": "+ex.getMessage());
+			this.close();
+		}
+
+		public void close() {
+			if (this.closed)
+				return;
+			this.closed = true;
+			if (this.legacyIn != null) {
+				this.legacyIn.close();
+				this.legacyDone.release();
+			}
+			this.engine.closeOutbound();
+			this.key.cancel();
+			try {
+				this.ch.close();
+			} catch (IOException ex) {}
+		}
+	}
+
+	/**
+	 * Reader thread of a connection from an older client.
+	 * Decodes the client's object stream as its bytes arrive, one request at a time.
+	 * Each request is executed on the worker pool like the others,
+	 * the next one is read after the response was handed to the I/O thread,
+	 * so responses stay in order
+	 */
+	private class LegacyReader implements Runnable {
+		private Connection conn;
+
+		public LegacyReader(Connection conn) {
+			this.conn = conn;
+		}
+
+		public void run() {
+			final Connection c = this.conn;
+			try {
+				//Requests after the first start with TC_RESET, which one stream handles itself
+				ObjectInputStream objIn = new ObjectInputStream(c.legacyIn);
+				while (!c.closed) {
+					final String command = (String) objIn.readObject();
+					final Object[] param = (Object[]) objIn.readObject();
+					c.loop.execute(new Runnable() {
+						public void run() {
+							if (!c.closed)
+								c.execute(command, param);
+						}
+					});
+					c.legacyDone.acquire();
+				}
+			} catch (EOFException ex) {
+				//Connection closed
+			} catch (final Exception ex) {
+				c.loop.execute(new Runnable() {
+					public void run() {
+						c.fail(ex);
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Bytes of a connection, written by its I/O thread and read by its reader thread.
+	 * Reads block until bytes arrive or the stream is closed
+	 */
+	private static class RequestStream extends InputStream {
+		private byte[] 	buf 	= new byte[4096];
+		private int 	start 	= 0;		//First unread byte
+		private int 	end 	= 0;		//Last written byte + 1
+		private boolean closed 	= false;
+
+		/**
+		 * Adds bytes to the end of the stream
+		 */
+		public synchronized void append(byte[] data, int off, int len) {
+			if (this.end + len > this.buf.length) {
+				int unread = this.end - this.start;
+				byte[] dest = (unread + len > this.buf.length) ? 
+								new byte[Math.max(this.buf.length*2, unread + len)] : this.buf;
+				System.arraycopy(this.buf, this.start, dest, 0, unread);
+				this.buf = dest;
+				this.start = 0;
+				this.end = unread;
+			}
+			System.arraycopy(data, off, this.buf, this.end, len);
+			this.end += len;
+			this.notifyAll();
+		}
+
+		public synchronized void close() {
+			this.closed = true;
+			this.notifyAll();
+		}
+
+		public synchronized int available() {
+			return this.end - this.start;
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return (this.read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+		}
+
+		public synchronized int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			try {
+				while ((this.start == this.end) && !this.closed) {
+					this.wait();
+				}
+			} catch (InterruptedException ex) {
+				throw new InterruptedIOException();
+			}
+			if (this.start == this.end)
+				return -1;
+			int n = Math.min(len, this.end - this.start);
+			System.arraycopy(this.buf, this.start, b, off, n);
+			this.start += n;
+			return n;
+		}
+	}
+
+	/**
+	 * Serializes a single response.
+	 * The first response on a connection starts with the stream header,
+	 * later responses start with TC_RESET instead, the same bytes that
+	 * ObjectOutputStream.reset() produces in the blocking server
+	 *
+	 * @param result 	Object 	= response
+	 * @param first 	boolean = first response on this connection
+	 * @return byte[]
+	 * @throws IOException
+	 */
+	private static byte[] serializeResponse(Object result, boolean first) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(result);
+		out.flush();
+		byte[] data = bytes.toByteArray();
+		if (first)
+			return data;
+		byte[] reset = new byte[data.length - STREAM_HEADER.length + 1];
+		reset[0] = TC_RESET;
+		System.arraycopy(data, STREAM_HEADER.length, reset, 1, data.length - STREAM_HEADER.length);
+		return reset;
+	}
+
+	/**
+	 * Returns a copy of a buffer (in write mode) with at least the given capacity
+	 *
+	 * @param buf 		ByteBuffer 	= buffer to copy
+	 * @param minSize 	int 		= minimum capacity
+	 * @return ByteBuffer
+	 */
+	private static ByteBuffer enlarge(ByteBuffer buf, int minSize) {
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(minSize, buf.capacity()*2));
+		buf.flip();
+		bigger.put(buf);
+		return bigger;
+	}
+}
@@ -0,0 +1,235 @@
+package edu.mit.csail.whanausip.dht;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import edu.mit.csail.whanausip.commontools.WhanauDHTConstants;
+
+/**
+ * Issues and checks query tokens without storing them.
+ * A token is a long:
+ * 	bits 63-56 = setup number (low 8 bits)
+ * 	bits 55-32 = issue number in that setup (low 24 bits)
+ * 	bits 31-0  = MAC over (setup number, issue number) under a per-node secret
+ *
+ * Tokens are valid during the setup they were issued in and the next one.
+ * Within a setup, a token expires after window newer tokens are issued
+ * (the window is chosen per setup, see rotate(..)).
+ * Single use is enforced by a fixed-size replay filter per setup:
+ * slot (issue number % window) remembers the last issue number collected in it.
+ * check(..) tells expired tokens apart from replayed and forged ones.
+ *
+ * Safe to use from many threads without locking
+ *
+ * @author ryscheng
+ * @date 2010/08/30
+ */
+public class WhanauQueryTokens {
+	private static final int 	NUM_BITS 	= 24;					//Bits of the issue number in a token
+	private static final int 	NUM_MASK 	= (1 << NUM_BITS) - 1;
+	private static final int 	SETUP_MASK 	= 0xFF;
+	private static final long 	MAC_MASK 	= 0xFFFFFFFFL;
+
+	public static final int 	VALID 		= 0;	//Token accepted
+	public static final int 	EXPIRED 	= 1;	//Genuine, but its setup or window has passed
+	public static final int 	REPLAYED 	= 2;	//Genuine, but already collected
+	public static final int 	FORGED 		= 3;	//Never issued by this node
+
+	private final SecretKeySpec 	secret;				//Per-node MAC key, never sent
+	private final ThreadLocal<Mac> 	macs;				//Mac is not thread-safe
+	private volatile Epoch 			current;			//Tokens of the current setup
+	private volatile Epoch 			previous;			//Tokens of the previous setup, null if none
+	private final AtomicLong 		numIssued 	= new AtomicLong();
+	private final AtomicLong 		numExpired 	= new AtomicLong();
+	private final AtomicLong 		numReplayed = new AtomicLong();
+	private final AtomicLong 		numForged 	= new AtomicLong();
+
+	/**
+	 * Tokens of one setup
+	 */
+	private static class Epoch {
+		private final int 					setupNumber;	//Full setup number
+		private final int 					window;			//Valid tokens in this setup
+		private final AtomicInteger 		issued;			//Next issue number
+		private final AtomicIntegerArray 	collected;		//Last issue number collected per slot, -1 if none
+
+		private Epoch(int setupNumber, int window) {
+			this.setupNumber = setupNumber;
+			this.window = window;
+			this.issued = new AtomicInteger();
+			this.collected = new AtomicIntegerArray(window);
+			for (int i=0; i<window; i++) {
+				this.collected.set(i, -1);
+			}
+		}
+	}
+
+	/**
+	 * Creates a token issuer with a new random secret
+	 *
+	 * @param setupNumber 	int = current setup number
+	 * @param window 		int = number of valid tokens in this setup (< 2^24)
+	 * @throws GeneralSecurityException = MAC algorithm not supported
+	 */
+	public WhanauQueryTokens(int setupNumber, int window) throws GeneralSecurityException {
+		checkWindow(window);
+		byte[] key = new byte[20];
+		new SecureRandom().nextBytes(key);
+		this.secret = new SecretKeySpec(key, WhanauDHTConstants.QUERY_TOKEN_MAC_ALG);
+		//Fail now, not in the first thread that needs a Mac
+		Mac.getInstance(WhanauDHTConstants.QUERY_TOKEN_MAC_ALG).init(this.secret);
+		this.macs = new ThreadLocal<Mac>() {
+			protected Mac initialValue() {
+				try {
+					Mac mac = Mac.getInstance(WhanauDHTConstants.QUERY_TOKEN_MAC_ALG);
+					mac.init(secret);
+					return mac;
+				} catch (GeneralSecurityException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+		this.current = new Epoch(setupNumber, window);
+		this.previous = null;
+	}
+
+	/**
+	 * Starts a new setup. Tokens of the current setup stay valid
+	 * until the next call, older tokens become invalid
+	 *
+	 * @param setupNumber 	int = new setup number
+	 * @param window 		int = number of valid tokens in the new setup (< 2^24)
+	 */
+	public synchronized void rotate(int setupNumber, int window) {
+		checkWindow(window);
+		this.previous = this.current;
+		this.current = new Epoch(setupNumber, window);
+	}
+
+	/**
+	 * Returns the largest window a setup can have
+	 *
+	 * @return int
+	 */
+	public static int getMaxWindow() {
+		return NUM_MASK;
+	}
+
+	private static void checkWindow(int window) {
+		if ((window <= 0) || (window > NUM_MASK))
+			throw new IllegalArgumentException("window must be in [1, "+NUM_MASK+"], got "+window);
+	}
+
+	/**
+	 * Issues a new token
+	 *
+	 * @return long = query token
+	 */
+	public long generate() {
+		Epoch epoch = this.current;
+		int num = epoch.issued.getAndIncrement();
+		this.numIssued.incrementAndGet();
+		long header = (((long) (epoch.setupNumber & SETUP_MASK)) << 56) | (((long) (num & NUM_MASK)) << 32);
+		return header | this.mac(epoch.setupNumber, num & NUM_MASK);
+	}
+
+	/**
+	 * Checks a token and marks it as used.
+	 *
+	 * @param tok 	long 	= query token
+	 * @return 		boolean = true if valid and not used before, false otherwise
+	 */
+	public boolean collect(long tok) {
+		return (this.check(tok) == VALID);
+	}
+
+	/**
+	 * Checks a token and marks it as used, and tells why a token was rejected.
+	 * A token of an older setup cannot be told apart from a forged one,
+	 * since the MAC depends on the full setup number: it counts as EXPIRED
+	 *
+	 * @param tok 	long 	= query token
+	 * @return 		int 	= VALID, EXPIRED, REPLAYED or FORGED
+	 */
+	public int check(long tok) {
+		int setupBits = (int) (tok >>> 56) & SETUP_MASK;
+		int numBits = (int) (tok >>> 32) & NUM_MASK;
+		Epoch epoch = this.current;
+		if ((epoch.setupNumber & SETUP_MASK) != setupBits) {
+			epoch = this.previous;
+			if ((epoch == null) || ((epoch.setupNumber & SETUP_MASK) != setupBits))
+				return this.reject(EXPIRED);
+		}
+		if ((tok & MAC_MASK) != this.mac(epoch.setupNumber, numBits))
+			return this.reject(FORGED);
+		//Recover the full issue number, it is within window of the next one
+		int issued = epoch.issued.get();
+		int age = (issued - numBits) & NUM_MASK;
+		if ((age == 0) || (age > issued))
+			return this.reject(FORGED);
+		if (age > epoch.window)
+			return this.reject(EXPIRED);
+		int num = issued - age;
+		//Replay filter
+		int slot = num % epoch.window;
+		while (true) {
+			int last = epoch.collected.get(slot);
+			if (last >= num)
+				return this.reject(REPLAYED);
+			if (epoch.collected.compareAndSet(slot, last, num))
+				return VALID;
+		}
+	}
+
+	/**
+	 * Returns counters of issued and rejected tokens
+	 *
+	 * @return String
+	 */
+	public String getStatsStr() {
+		Epoch epoch = this.current;
+		return "QueryTokens: setup="+epoch.setupNumber+
+				", window="+epoch.window+
+				", issued="+this.numIssued.get()+
+				", expired="+this.numExpired.get()+
+				", replayed="+this.numReplayed.get()+
+				", forged="+this.numForged.get()+"\n";
+	}
+
+	private int reject(int status) {
+		if (status == EXPIRED)
+			this.numExpired.incrementAndGet();
+		else if (status == REPLAYED)
+			this.numReplayed.incrementAndGet();
+		else
+			this.numForged.incrementAndGet();
+		return status;
+	}
+
+	/**
+	 * Returns the low 32 bits of MAC(secret, setupNumber || num)
+	 *
+	 * @param setupNumber 	int = full setup number
+	 * @param num 			int = issue number (low 24 bits)
+	 * @return long 			= MAC, in the low 32 bits
+	 */
+	private long mac(int setupNumber, int num) {
+		Mac mac = this.macs.get();
+		byte[] data = new byte[8];
+		for (int i=0; i<4; i++) {
+			data[i] = (byte) (setupNumber >>> (24 - 8*i));
+			data[4+i] = (byte) (num >>> (24 - 8*i));
+		}
+		byte[] digest = mac.doFinal(data);
+		long result = 0;
+		for (int i=0; i<4; i++) {
+			result = (result << 8) | (digest[i] & 0xFF);
+		}
+		return result;
+	}
+}
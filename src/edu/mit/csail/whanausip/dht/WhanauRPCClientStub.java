@@ -1,12 +1,13 @@
 package edu.mit.csail.whanausip.dht;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InterruptedIOException;
 import java.net.UnknownHostException;
 import java.security.KeyStore;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Logger;
 
 import javax.net.ssl.SSLContext;
@@ -28,7 +29,7 @@ public class WhanauRPCClientStub<T> {
 	private String 		hostname;			//Peer's hostname or IP
 	private int 		port;				//Peer's public reference port
 	private String 		pubKeyHash;			//Peer's public key hash
-	private SSLContext	sslCtx;				//Client socket factory
+	private WhanauKeyState keyState;		//Local node's keys, SSL context and connection pool
 	private boolean		activeStatus;		//true if SSL sockets can be made,
 											//false if host is not at hostname:port
 	
@@ -37,18 +38,18 @@ public class WhanauRPCClientStub<T> {
 	 * No network connection is necessary to run
 	 * This should be used for actual neighbors connected by social links
 	 * 
-	 * @param log			Logger		= log entries to this Logger
-	 * @param mySSLCtx		SSLContext	= local node's SSL Context
-	 * @param pubKeyHash 	String 		= hash of peer's public key
-	 * @param host 			String		= peer's hostname or IP
-	 * @param port 			int			= peer's public reference port
+	 * @param log			Logger			= log entries to this Logger
+	 * @param myKeyState	WhanauKeyState	= local node's key state
+	 * @param pubKeyHash 	String 			= hash of peer's public key
+	 * @param host 			String			= peer's hostname or IP
+	 * @param port 			int				= peer's public reference port
 	 */
-	public WhanauRPCClientStub(Logger log, SSLContext mySSLCtx ,String pubKeyHash, String host, int port) {
+	public WhanauRPCClientStub(Logger log, WhanauKeyState myKeyState, String pubKeyHash, String host, int port) {
 		this.log = log;
 		this.pubKeyHash=pubKeyHash;
 		this.hostname = host;
 		this.port = port;
-		this.sslCtx = mySSLCtx;
+		this.keyState = myKeyState;
 		this.activeStatus = true;
 	}
 
@@ -95,7 +96,25 @@ public class WhanauRPCClientStub<T> {
 	 * @return SSLContext
 	 */
 	public synchronized SSLContext getSSLCtx() {
-		return this.sslCtx;
+		return this.keyState.getSslCtx();
+	}
+	
+	/**
+	 * Returns the local node's pool of open connections
+	 * 
+	 * @return WhanauRPCConnectionPool
+	 */
+	public synchronized WhanauRPCConnectionPool getConnPool() {
+		return this.keyState.getConnPool();
+	}
+	
+	/**
+	 * Returns the key of this peer in the connection pool
+	 * 
+	 * @return String
+	 */
+	public synchronized String getPoolKey() {
+		return WhanauRPCConnectionPool.makeKey(this.getPubKeyHash(), this.getHostname(), this.getPort());
 	}
 	
 	/**
@@ -120,6 +139,9 @@ public class WhanauRPCClientStub<T> {
 	 * Creates a new SSLSocket to this node.
 	 * Also checks that it has the proper keys, otherwise throws
 	 * UnknownHostException for man-in-the-middle
+	 * If a session to this host:port is cached, the handshake resumes it.
+	 * The resumed session carries the peer's certificate,
+	 * so the man-in-the-middle check is the same
 	 * 
 	 * @return SSLSocket = new secure socket
 	 * @throws UnknownHostException
@@ -129,6 +151,11 @@ public class WhanauRPCClientStub<T> {
 	private SSLSocket createSocket() throws UnknownHostException, IOException, NoSuchAlgorithmException {
 		SSLSocketFactory factory = this.getSSLCtx().getSocketFactory();
 		SSLSocket socket = (SSLSocket) factory.createSocket(this.getHostname(), this.getPort());
+		//Requests are written in one piece, do not delay them
+		socket.setTcpNoDelay(true);
+		//Full or resumed handshake, the peer certificate is checked either way
+		socket.startHandshake();
+		this.keyState.recordClientHandshake();
 		String seeHash = CryptoTool.SHA1toHex(
 				socket.getSession().getPeerCertificates()[0].
 				getPublicKey().getEncoded());
@@ -141,32 +168,101 @@ public class WhanauRPCClientStub<T> {
 	/**
 	 * Calls a remote method
 	 * Marshalls entire Java Objects using the builtin ObjectOutputStream.
-	 * Notice that each method call requires its own SSLSocket.
-	 * ObjectInputStream requires that the entire stream is read to EOF before it will 
-	 * convert what it read into Objects.
-	 * Inefficient, but working
+	 * If the peer speaks the multiplexed protocol, all calls to it share one
+	 * connection and can be outstanding at the same time (see WhanauRPCFrame).
+	 * Otherwise connections are taken from the local node's connection pool,
+	 * one call at a time per connection.
 	 * 
 	 * @param command 	String 		= name of method
 	 * @param param 	Object[] 	= parameters to remote method
 	 * @return Object				= return Object
 	 */
 	public Object remoteCall(String command, Object... param) throws Exception{
+		if (WhanauDHTConstants.RPC_MUX_ENABLED && !this.getConnPool().isLegacyPeer(this.getPoolKey())) {
+			WhanauRPCMuxConnection mux;
+			try {
+				mux = this.getMuxConnection();
+			} catch (Exception ex) {
+				this.setActiveStatus(false);
+				this.log.fine(this.getHashHostPort()+" failed:"+ex.getMessage());
+				throw ex;
+			}
+			if (mux != null)
+				return this.remoteCallMux(mux, command, param);
+		}
+		return this.remoteCallSingle(command, param);
+	}
+	
+	/**
+	 * Calls a remote method on the shared multiplexed connection
+	 * 
+	 * @param conn		WhanauRPCMuxConnection	= connection to the peer
+	 * @param command 	String 					= name of method
+	 * @param param 	Object[] 				= parameters to remote method
+	 * @return Object							= return Object
+	 */
+	private Object remoteCallMux(WhanauRPCMuxConnection conn, String command, Object[] param) throws Exception {
+		WhanauRPCConnectionPool pool = this.getConnPool();
+		Object result = null;
+		try {
+			try {
+				result = conn.call(command, param);
+			} catch (WhanauRPCConnection.RetryableException ex) {
+				//The peer may have closed the idle connection, retry once on a new one.
+				//Calls that failed after the request was sent are not retried,
+				//the peer may have executed them
+				pool.discardMux(conn);
+				conn = this.getMuxConnection();
+				if (conn == null)
+					result = this.remoteCallSingle(command, param);
+				else
+					result = conn.call(command, param);
+			}
+		} catch (Exception ex) {
+			this.setActiveStatus(false);
+			this.log.fine(this.getHashHostPort()+" failed:"+ex.getMessage());
+			throw ex;
+		}
+		this.log.fine(this.getHashHostPort()+"."+command+"(...) complete");
+		this.setActiveStatus(true);
+		return result;
+	}
+	
+	/**
+	 * Calls a remote method on a pooled connection, one call per connection at a time.
+	 * Used for peers without the multiplexed protocol
+	 * 
+	 * @param command 	String 		= name of method
+	 * @param param 	Object[] 	= parameters to remote method
+	 * @return Object				= return Object
+	 */
+	private Object remoteCallSingle(String command, Object[] param) throws Exception {
 		Object result = null;
-		SSLSocket sock = null;
+		WhanauRPCConnectionPool pool = this.getConnPool();
+		WhanauRPCConnection conn = pool.checkOut(this.getPoolKey());
 		try {
-			sock = this.createSocket();
-			ObjectOutputStream out = new ObjectOutputStream(sock.getOutputStream());
-			out.writeObject(command);
-			out.writeObject(param);
-			
-			ObjectInputStream in = new ObjectInputStream(sock.getInputStream());			
-			result = in.readObject();
-			sock.close();
+			try {
+				if (conn == null) 
+					conn = this.createConnection();
+				result = conn.call(command, param);
+			} catch (WhanauRPCConnection.RetryableException ex) {
+				//A pooled connection may have been closed by the peer while idle,
+				//(idle timeout, restart, or an older node that serves one request per socket)
+				//so the request never reached the peer. Retry once on a new socket.
+				//Other failures are not retried, the peer may have executed the request
+				if ((conn == null) || (conn.getNumCalls() == 0))
+					throw ex;
+				pool.discard(conn);
+				conn = null;
+				conn = this.createConnection();
+				result = conn.call(command, param);
+			}
+			pool.checkIn(conn);
 		} catch (Exception ex) {
 			this.setActiveStatus(false);
 			this.log.fine(this.getHashHostPort()+" failed:"+ex.getMessage());
-			if (sock != null)
-				sock.close();
+			if (conn != null)
+				pool.discard(conn);
 			throw ex;
 		}
 		this.log.fine(this.getHashHostPort()+"."+command+"(...) complete");
@@ -174,6 +270,100 @@ public class WhanauRPCClientStub<T> {
 		return result;
 	}
 	
+	/**
+	 * Returns the shared multiplexed connection to this peer,
+	 * opening it if necessary.
+	 * Concurrent callers share a single connect in progress,
+	 * instead of each opening a connection of their own.
+	 * If the peer does not speak the multiplexed protocol, it is
+	 * remembered in the connection pool for a while and null is returned
+	 * 
+	 * @return WhanauRPCMuxConnection = connection, or null for older peers
+	 * @throws UnknownHostException
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	private WhanauRPCMuxConnection getMuxConnection() throws UnknownHostException, IOException, 
+												NoSuchAlgorithmException {
+		WhanauRPCConnectionPool pool = this.getConnPool();
+		WhanauRPCMuxConnection conn = pool.getMux(this.getPoolKey());
+		if (conn != null)
+			return conn;
+		FutureTask<WhanauRPCMuxConnection> task = new FutureTask<WhanauRPCMuxConnection>(
+				new Callable<WhanauRPCMuxConnection>() {
+					public WhanauRPCMuxConnection call() throws Exception {
+						return openMuxConnection();
+					}
+				});
+		FutureTask<WhanauRPCMuxConnection> running = pool.startMuxConnect(this.getPoolKey(), task);
+		if (running == task) {
+			try {
+				task.run();
+			} finally {
+				pool.endMuxConnect(this.getPoolKey(), task);
+			}
+		}
+		try {
+			return running.get();
+		} catch (InterruptedException ex) {
+			throw new InterruptedIOException("Interrupted while connecting to "+this.getHashHostPort());
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof NoSuchAlgorithmException)
+				throw (NoSuchAlgorithmException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException("Connect to "+this.getHashHostPort()+" failed: "+cause);
+		}
+	}
+	
+	/**
+	 * Opens the multiplexed connection to this peer and adds it to the pool.
+	 * Only called by the thread running the connect (see getMuxConnection())
+	 * 
+	 * @return WhanauRPCMuxConnection = connection, or null for older peers
+	 * @throws UnknownHostException
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	private WhanauRPCMuxConnection openMuxConnection() throws UnknownHostException, IOException, 
+												NoSuchAlgorithmException {
+		WhanauRPCConnectionPool pool = this.getConnPool();
+		//Another connect may have finished since getMux(...)
+		WhanauRPCMuxConnection conn = pool.getMux(this.getPoolKey());
+		if (conn != null)
+			return conn;
+		if (pool.isLegacyPeer(this.getPoolKey()))
+			return null;
+		try {
+			conn = new WhanauRPCMuxConnection(this.getPoolKey(), this.createSocket());
+		} catch (WhanauRPCMuxConnection.NotSupportedException ex) {
+			this.log.info(this.getHashHostPort()+" does not support multiplexed calls: "+ex.getMessage());
+			pool.setLegacyPeer(this.getPoolKey());
+			return null;
+		}
+		return pool.putMux(conn);
+	}
+	
+	/**
+	 * Opens a new connection to this peer for the connection pool
+	 * 
+	 * @return WhanauRPCConnection = new connection
+	 * @throws UnknownHostException
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	private WhanauRPCConnection createConnection() throws UnknownHostException, IOException, 
+												NoSuchAlgorithmException {
+		WhanauRPCConnection conn = new WhanauRPCConnection(this.getPoolKey(), this.createSocket());
+		this.getConnPool().recordCreated();
+		return conn;
+	}
+	
 	
 	
 	public static void main(String args[]) {
@@ -187,7 +377,7 @@ public class WhanauRPCClientStub<T> {
 			Logger log = LogUtil.createLogger("whanau", null);
 			KeyStore keys = CryptoTool.loadKeyStore(keyFile, password); 
 			WhanauKeyState keyState = new WhanauKeyState(keys, password);
-			WhanauRPCClientStub<String> peer = new WhanauRPCClientStub<String>(log, keyState.getSslCtx(), serverPubKeyHash, host, port);
+			WhanauRPCClientStub<String> peer = new WhanauRPCClientStub<String>(log, keyState, serverPubKeyHash, host, port);
 			Object result = peer.remoteCall("getStateStr", (Object[])null);
 			System.out.println(result);
 		} catch (Exception ex) {
@@ -0,0 +1,448 @@
+package edu.mit.csail.whanausip.dht;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.util.Hashtable;
+import java.util.LinkedList;
+
+import edu.mit.csail.whanausip.commontools.*;
+import edu.mit.csail.whanausip.dht.kvchecker.DHTRecordHandle;
+import edu.mit.csail.whanausip.dht.kvchecker.Ed25519DHTRecordHandle;
+import edu.mit.csail.whanausip.dht.kvchecker.SignedDHTRecordHandle;
+
+/**
+ * Encodes the payload of WhanauRPCFrame requests and responses.
+ *
+ * Every payload starts with a format byte.
+ * FORMAT_JAVA: 	the rest is Java serialization (command String and Object[] parameters,
+ * 					or the return Object). Used for control commands like createNode
+ * FORMAT_BINARY:	compact encoding for the DHT commands that are called
+ * 					many times per setup and lookup:
+ * 	request 	= [opcode][varint numParams][value]...
+ * 	response 	= [value]
+ * 	value 		= [tag][data], where data is
+ * 					nothing 							(TAG_NULL, TAG_TRUE, TAG_FALSE)
+ * 					zigzag varint 						(TAG_INT, TAG_LONG)
+ * 					varint length + UTF-8 bytes 		(TAG_STRING)
+ * 					varint length + values 				(TAG_ARRAY, Object[])
+ * 					varint length + (value, varint)... 	(TAG_PAIRLIST, results of sampleNodes)
+ * 					20 bytes of the digest 				(TAG_KEY, WhanauKey)
+ * 					[kind] + varint length + content
+ * 					+ varint length + signature 		(TAG_SIGNED, SignedDHTRecordHandle)
+ * 					varint length + serialized object 	(TAG_BLOB, other DHT records and keys)
+ * The server answers in the format of the request
+ *
+ * Signed records are sent as their signed bytes and signature only,
+ * without a Java serialization stream (and its class descriptors) around each one.
+ * Other DHT records are immutable, and the same records are sent many times
+ * (successor tables, random walk results), so each DHTRecordHandle
+ * keeps its serialized bytes (see DHTRecordHandle.getSerialized())
+ *
+ * @author ryscheng
+ * @date 2010/08/28
+ */
+public class WhanauRPCCodec {
+	public static final byte FORMAT_JAVA 	= 0;
+	public static final byte FORMAT_BINARY 	= 1;
+
+	private static final byte TAG_NULL		= 0;
+	private static final byte TAG_TRUE		= 1;
+	private static final byte TAG_FALSE		= 2;
+	private static final byte TAG_INT		= 3;
+	private static final byte TAG_LONG		= 4;
+	private static final byte TAG_STRING	= 5;
+	private static final byte TAG_ARRAY		= 6;
+	private static final byte TAG_PAIRLIST	= 7;
+	private static final byte TAG_BLOB		= 8;
+	private static final byte TAG_KEY		= 9;
+	private static final byte TAG_SIGNED	= 10;
+
+	private static final byte KIND_RSA		= 0;	//SignedDHTRecordHandle
+	private static final byte KIND_ED25519	= 1;	//Ed25519DHTRecordHandle
+
+	/**
+	 * Opcode of each command is its index in this array.
+	 * Only append new commands at the end, the opcodes are part of the wire format
+	 */
+	private static final String[] OPCODES = {
+		WhanauDHTConstants.CREATENODE_CMD,
+		WhanauDHTConstants.GETSTATE_CMD,
+		WhanauDHTConstants.GETSTATESTR_CMD,
+		WhanauDHTConstants.GETLOGSTR_CMD,
+		WhanauDHTConstants.ADDPEER_CMD,
+		WhanauDHTConstants.REMOVEALLPEERS_CMD,
+		WhanauDHTConstants.SETSETUPSTAGE_CMD,
+		WhanauDHTConstants.RUNSETUPPART1THREAD_CMD,
+		WhanauDHTConstants.RUNSETUPPART2THREAD_CMD,
+		WhanauDHTConstants.JOINSETUPTHREAD_CMD,
+		WhanauDHTConstants.GETSETUPTHREADRESULT_CMD,
+		WhanauDHTConstants.LOOKUP_CMD,
+		WhanauDHTConstants.PUBLISHVALUE_CMD,
+		WhanauDHTConstants.SAMPLENODES_CMD,
+		WhanauDHTConstants.GETID_CMD,
+		WhanauDHTConstants.SUCCESSORSSAMPLE_CMD,
+		WhanauDHTConstants.LOOKUPTRY_CMD,
+		WhanauDHTConstants.GETPUBKEYHASH_CMD,
+		WhanauDHTConstants.WAITSTAGE_CMD,
+		WhanauDHTConstants.QUERY_CMD
+	};
+
+	/**
+	 * Commands sent in FORMAT_BINARY, all others use FORMAT_JAVA
+	 */
+	private static final String[] BINARY_COMMANDS = {
+		WhanauDHTConstants.SAMPLENODES_CMD,
+		WhanauDHTConstants.GETID_CMD,
+		WhanauDHTConstants.SUCCESSORSSAMPLE_CMD,
+		WhanauDHTConstants.LOOKUPTRY_CMD,
+		WhanauDHTConstants.GETPUBKEYHASH_CMD,
+		WhanauDHTConstants.WAITSTAGE_CMD,
+		WhanauDHTConstants.QUERY_CMD
+	};
+
+	private static final Hashtable<String, Byte> 	opcodeOf;		//key=command, value=opcode
+	private static final Hashtable<String, Boolean> isBinary;		//key=command
+
+	static {
+		opcodeOf = new Hashtable<String, Byte>();
+		for (int i = 0; i < OPCODES.length; i++) {
+			opcodeOf.put(OPCODES[i], (byte) i);
+		}
+		isBinary = new Hashtable<String, Boolean>();
+		for (String command : BINARY_COMMANDS) {
+			isBinary.put(command, Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * Encodes a request. DHT commands are encoded in FORMAT_BINARY,
+	 * all other commands in FORMAT_JAVA
+	 *
+	 * @param command 	String 		= name of method
+	 * @param param 	Object[] 	= parameters to method
+	 * @return byte[]
+	 * @throws IOException
+	 */
+	public static byte[] encodeRequest(String command, Object[] param) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		if (isBinary.containsKey(command)) {
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(FORMAT_BINARY);
+			out.writeByte(opcodeOf.get(command));
+			writeVarLong(out, param.length);
+			for (Object p : param) {
+				writeValue(out, p);
+			}
+			out.flush();
+		} else {
+			bytes.write(FORMAT_JAVA);
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(command);
+			out.writeObject(param);
+			out.flush();
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Checks if a request payload is in FORMAT_BINARY
+	 * (cheap to decode, only small parameters)
+	 *
+	 * @param payload byte[] = encoded request
+	 * @return boolean
+	 */
+	public static boolean isBinary(byte[] payload) {
+		return (payload.length > 0) && (payload[0] == FORMAT_BINARY);
+	}
+
+	/**
+	 * Decodes a request
+	 *
+	 * @param payload byte[] = encoded request
+	 * @return Object[] = {String command, Object[] param, Byte format}
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public static Object[] decodeRequest(byte[] payload) throws IOException, ClassNotFoundException {
+		if (payload.length == 0)
+			throw new StreamCorruptedException("Empty request");
+		ByteArrayInputStream bytes = new ByteArrayInputStream(payload, 1, payload.length-1);
+		if (payload[0] == FORMAT_JAVA) {
+			ObjectInputStream in = new ObjectInputStream(bytes);
+			String command = (String) in.readObject();
+			Object[] param = (Object[]) in.readObject();
+			return new Object[]{command, param, FORMAT_JAVA};
+		} else if (payload[0] == FORMAT_BINARY) {
+			DataInputStream in = new DataInputStream(bytes);
+			int opcode = in.readUnsignedByte();
+			if (opcode >= OPCODES.length)
+				throw new StreamCorruptedException("Unknown opcode "+opcode);
+			Object[] param = new Object[readLength(in)];
+			for (int i = 0; i < param.length; i++) {
+				param[i] = readValue(in);
+			}
+			return new Object[]{OPCODES[opcode], param, FORMAT_BINARY};
+		}
+		throw new StreamCorruptedException("Unknown format "+payload[0]);
+	}
+
+	/**
+	 * Encodes a response
+	 *
+	 * @param result Object = return Object
+	 * @param format byte 	= format of the request
+	 * @return byte[]
+	 * @throws IOException
+	 */
+	public static byte[] encodeResponse(Object result, byte format) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		bytes.write(format);
+		if (format == FORMAT_BINARY) {
+			DataOutputStream out = new DataOutputStream(bytes);
+			writeValue(out, result);
+			out.flush();
+		} else {
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(result);
+			out.flush();
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes a response
+	 *
+	 * @param payload byte[] = encoded response
+	 * @return Object = return Object
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public static Object decodeResponse(byte[] payload) throws IOException, ClassNotFoundException {
+		if (payload.length == 0)
+			throw new StreamCorruptedException("Empty response");
+		ByteArrayInputStream bytes = new ByteArrayInputStream(payload, 1, payload.length-1);
+		if (payload[0] == FORMAT_JAVA)
+			return new ObjectInputStream(bytes).readObject();
+		else if (payload[0] == FORMAT_BINARY)
+			return readValue(new DataInputStream(bytes));
+		throw new StreamCorruptedException("Unknown format "+payload[0]);
+	}
+
+	/**
+	 * Writes a single value with its tag
+	 *
+	 * @param out 	DataOutputStream
+	 * @param value Object
+	 * @throws IOException
+	 */
+	private static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(TAG_NULL);
+		} else if (value instanceof Boolean) {
+			out.writeByte(((Boolean) value) ? TAG_TRUE : TAG_FALSE);
+		} else if (value instanceof Integer) {
+			out.writeByte(TAG_INT);
+			writeVarLong(out, zigzag((Integer) value));
+		} else if (value instanceof Long) {
+			out.writeByte(TAG_LONG);
+			writeVarLong(out, zigzag((Long) value));
+		} else if (value instanceof String) {
+			byte[] utf = ((String) value).getBytes("UTF-8");
+			out.writeByte(TAG_STRING);
+			writeVarLong(out, utf.length);
+			out.write(utf);
+		} else if (value instanceof WhanauKey) {
+			out.writeByte(TAG_KEY);
+			out.write(((WhanauKey) value).toDigest());
+		} else if (value instanceof Object[]) {
+			Object[] array = (Object[]) value;
+			out.writeByte(TAG_ARRAY);
+			writeVarLong(out, array.length);
+			for (Object o : array) {
+				writeValue(out, o);
+			}
+		} else if (isPairList(value)) {
+			LinkedList<Pair<Object, Long>> list = (LinkedList<Pair<Object, Long>>) value;
+			out.writeByte(TAG_PAIRLIST);
+			writeVarLong(out, list.size());
+			for (Pair<Object, Long> p : list) {
+				writeValue(out, p.getFirst());
+				writeVarLong(out, zigzag(p.getSecond()));
+			}
+		} else if (value instanceof SignedDHTRecordHandle<?>) {
+			SignedDHTRecordHandle<?> handle = (SignedDHTRecordHandle<?>) value;
+			out.writeByte(TAG_SIGNED);
+			out.writeByte((value instanceof Ed25519DHTRecordHandle<?>) ? KIND_ED25519 : KIND_RSA);
+			writeVarLong(out, handle.getContent().length);
+			out.write(handle.getContent());
+			writeVarLong(out, handle.getSignature().length);
+			out.write(handle.getSignature());
+		} else {
+			byte[] blob = toBlob(value);
+			out.writeByte(TAG_BLOB);
+			writeVarLong(out, blob.length);
+			out.write(blob);
+		}
+	}
+
+	/**
+	 * Reads a single value with its tag
+	 *
+	 * @param in DataInputStream
+	 * @return Object
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	private static Object readValue(DataInputStream in) throws IOException, ClassNotFoundException {
+		byte tag = in.readByte();
+		switch (tag) {
+		case TAG_NULL:
+			return null;
+		case TAG_TRUE:
+			return Boolean.TRUE;
+		case TAG_FALSE:
+			return Boolean.FALSE;
+		case TAG_INT:
+			return (int) unzigzag(readVarLong(in));
+		case TAG_LONG:
+			return unzigzag(readVarLong(in));
+		case TAG_STRING:
+			byte[] utf = new byte[readLength(in)];
+			in.readFully(utf);
+			return new String(utf, "UTF-8");
+		case TAG_KEY:
+			byte[] digest = new byte[WhanauKey.LENGTH];
+			in.readFully(digest);
+			return WhanauKey.fromDigest(digest);
+		case TAG_ARRAY:
+			Object[] array = new Object[readLength(in)];
+			for (int i = 0; i < array.length; i++) {
+				array[i] = readValue(in);
+			}
+			return array;
+		case TAG_PAIRLIST:
+			LinkedList<Pair<Object, Long>> list = new LinkedList<Pair<Object, Long>>();
+			int size = readLength(in);
+			for (int i = 0; i < size; i++) {
+				Object first = readValue(in);
+				list.add(new Pair<Object, Long>(first, unzigzag(readVarLong(in))));
+			}
+			return list;
+		case TAG_BLOB:
+			byte[] blob = new byte[readLength(in)];
+			in.readFully(blob);
+			return new ObjectInputStream(new ByteArrayInputStream(blob)).readObject();
+		case TAG_SIGNED:
+			byte kind = in.readByte();
+			byte[] content = new byte[readLength(in)];
+			in.readFully(content);
+			byte[] signature = new byte[readLength(in)];
+			in.readFully(signature);
+			if (kind == KIND_RSA)
+				return new SignedDHTRecordHandle<Object>(content, signature);
+			else if (kind == KIND_ED25519)
+				return new Ed25519DHTRecordHandle<Object>(content, signature);
+			throw new StreamCorruptedException("Unknown record kind "+kind);
+		default:
+			throw new StreamCorruptedException("Unknown tag "+tag);
+		}
+	}
+
+	/**
+	 * Checks if value is a non-empty list of Pair<Object, Long>,
+	 * the result of sampleNodes(...)
+	 * Empty lists are sent as blobs
+	 *
+	 * @param value Object
+	 * @return boolean
+	 */
+	private static boolean isPairList(Object value) {
+		if (!(value instanceof LinkedList<?>) || ((LinkedList<?>) value).isEmpty())
+			return false;
+		for (Object o : (LinkedList<?>) value) {
+			if (!(o instanceof Pair<?,?>) || !(((Pair<?,?>) o).getSecond() instanceof Long))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Serializes a single object.
+	 * DHT records keep their serialized bytes, other objects are serialized each time
+	 *
+	 * @param value Object
+	 * @return byte[]
+	 * @throws IOException
+	 */
+	private static byte[] toBlob(Object value) throws IOException {
+		if (value instanceof DHTRecordHandle<?>)
+			return ((DHTRecordHandle<?>) value).getSerialized();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(value);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/******************
+	 * VARINT ENCODING
+	 ******************/
+	/**
+	 * Writes 7 bits per byte, lowest bits first.
+	 * The high bit is set on all bytes but the last
+	 *
+	 * @param out 	DataOutputStream
+	 * @param value long = unsigned value
+	 * @throws IOException
+	 */
+	private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException {
+		long result = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			result |= ((long) (b & 0x7F)) << shift;
+			if ((b & 0x80) == 0)
+				return result;
+		}
+		throw new StreamCorruptedException("Varint too long");
+	}
+
+	/**
+	 * Reads a length, checked against WhanauRPCFrame.MAX_FRAME_SIZE
+	 *
+	 * @param in DataInputStream
+	 * @return int
+	 * @throws IOException
+	 */
+	private static int readLength(DataInputStream in) throws IOException {
+		long length = readVarLong(in);
+		if (length < 0 || length > WhanauRPCFrame.MAX_FRAME_SIZE)
+			throw new StreamCorruptedException("Invalid length "+length);
+		return (int) length;
+	}
+
+	/**
+	 * Maps signed to unsigned values, so small negative values stay short
+	 * (0 -> 0, -1 -> 1, 1 -> 2, ...)
+	 */
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
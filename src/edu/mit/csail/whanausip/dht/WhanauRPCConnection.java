@@ -0,0 +1,161 @@
+package edu.mit.csail.whanausip.dht;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.SocketTimeoutException;
+import java.rmi.RemoteException;
+
+import javax.net.ssl.SSLSocket;
+
+/**
+ * A single authenticated SSL connection to a peer that can carry
+ * many remote calls, one after another.
+ * The object streams are kept open for the lifetime of the socket.
+ * The output stream is reset after every request, so each request is
+ * self-contained and previously sent objects are never written as back-references
+ * A call that failed before the request was written, or before any byte of
+ * the response arrived, throws RetryableException. Any other failure may
+ * have happened after the peer executed the request, so it must not be sent again.
+ * A request that failed on the peer is answered with a WhanauRPCError,
+ * which call(...) throws as a RemoteException (not retried)
+ *
+ * @author ryscheng
+ * @date 2010/08/20
+ */
+public class WhanauRPCConnection {
+	private String 				poolKey;	//Identifies the peer in WhanauRPCConnectionPool
+	private SSLSocket 			sock;		//Authenticated socket to the peer
+	private ObjectOutputStream 	out;		//Requests to the peer
+	private CountingInputStream rawIn;		//Input of the socket, counts bytes read
+	private ObjectInputStream 	in;			//Responses from the peer, opened on first read
+	private long 				lastUsed;	//Time the last call completed
+	private int 				numCalls;	//Number of completed calls on this connection
+
+	/**
+	 * Wraps a socket that has already passed the man-in-the-middle check
+	 *
+	 * @param poolKey	String		= key of this peer in the connection pool
+	 * @param sock		SSLSocket	= connected socket
+	 * @throws IOException
+	 */
+	public WhanauRPCConnection(String poolKey, SSLSocket sock) throws IOException {
+		this.poolKey = poolKey;
+		this.sock = sock;
+		this.out = new ObjectOutputStream(sock.getOutputStream());
+		this.rawIn = new CountingInputStream(sock.getInputStream());
+		this.in = null;
+		this.lastUsed = System.currentTimeMillis();
+		this.numCalls = 0;
+	}
+
+	/**
+	 * Thrown when a call failed before the peer could have executed it:
+	 * the request was not written, or the connection closed
+	 * before any byte of the response arrived.
+	 * The call can be sent again on another connection
+	 */
+	public static class RetryableException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public RetryableException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Sends a single request and blocks until the response is read
+	 *
+	 * @param command 	String 		= name of method
+	 * @param param 	Object[] 	= parameters to remote method
+	 * @return Object				= return Object
+	 * @throws RetryableException	= the peer did not execute the request
+	 * @throws RemoteException		= the request failed on the peer (WhanauRPCError)
+	 * @throws IOException			= the peer may have executed the request
+	 * @throws ClassNotFoundException
+	 */
+	public Object call(String command, Object[] param) throws IOException, ClassNotFoundException {
+		try {
+			this.out.writeObject(command);
+			this.out.writeObject(param);
+			this.out.flush();
+			this.out.reset();
+		} catch (IOException ex) {
+			throw new RetryableException("Request not sent: "+ex.getMessage());
+		}
+		long readBefore = this.rawIn.getCount();
+		Object result;
+		try {
+			if (this.in == null) {
+				this.in = new ObjectInputStream(this.rawIn);
+			}
+			result = this.in.readObject();
+		} catch (SocketTimeoutException ex) {
+			//The peer may still be executing the request
+			throw ex;
+		} catch (IOException ex) {
+			if (this.rawIn.getCount() == readBefore)
+				throw new RetryableException("No response: "+ex.getMessage());
+			throw ex;
+		}
+		this.lastUsed = System.currentTimeMillis();
+		this.numCalls++;
+		if (result instanceof WhanauRPCError)
+			throw new RemoteException("Remote call failed: "+((WhanauRPCError) result).getMessage());
+		return result;
+	}
+
+	/**
+	 * Health check before a connection is handed out again.
+	 * The socket must still be open in both directions
+	 * and must not have been idle for too long
+	 *
+	 * @param now		long	= current time
+	 * @param maxIdle	long	= maximum idle time (milliseconds)
+	 * @return boolean			= true if connection can be reused
+	 */
+	public boolean isReusable(long now, long maxIdle) {
+		return (!this.sock.isClosed() && this.sock.isConnected()
+				&& !this.sock.isInputShutdown() && !this.sock.isOutputShutdown()
+				&& (now - this.lastUsed) < maxIdle);
+	}
+
+	/**
+	 * Closes the socket, ignoring errors
+	 */
+	public void close() {
+		try {
+			this.sock.close();
+		} catch (IOException ex) {
+			//Already broken, nothing to do
+		}
+	}
+
+	/**
+	 * Returns the key of this peer in the connection pool
+	 *
+	 * @return String
+	 */
+	public String getPoolKey() {
+		return this.poolKey;
+	}
+
+	/**
+	 * Returns the number of completed calls on this connection
+	 * 0 means this connection was never used
+	 *
+	 * @return int
+	 */
+	public int getNumCalls() {
+		return this.numCalls;
+	}
+
+	/**
+	 * Returns the time the last call completed
+	 *
+	 * @return long
+	 */
+	public long getLastUsed() {
+		return this.lastUsed;
+	}
+}
@@ -0,0 +1,378 @@
+package edu.mit.csail.whanausip.dht;
+
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.FutureTask;
+
+import edu.mit.csail.whanausip.commontools.WhanauDHTConstants;
+
+/**
+ * Keeps idle connections to peers open so remote calls can reuse them
+ * instead of performing a new SSL handshake for every call.
+ * Connections are keyed by pubKeyHash:host:port of the peer.
+ * A connection is checked out for exclusive use during a call,
+ * and checked back in afterwards.
+ * Idle connections are closed by a background sweep.
+ * 
+ * Peers that speak the multiplexed protocol get a single shared
+ * WhanauRPCMuxConnection instead, used by all calls at the same time.
+ * Peers that do not (older nodes) are remembered, and get pooled
+ * one-call-at-a-time connections
+ *
+ * One pool exists per WhanauKeyState, since connections are
+ * authenticated with that node's keys
+ *
+ * @author ryscheng
+ * @date 2010/08/20
+ */
+public class WhanauRPCConnectionPool {
+	private Hashtable<String, LinkedList<WhanauRPCConnection>>
+							idle;			//key=pubKeyHash:host:port, value=idle connections
+	private long			idleTimeout;	//Idle connections older than this are closed
+	private int				maxIdlePerPeer;	//Maximum number of idle connections per peer
+	private Timer			evictTimer;		//Runs the idle connection sweep
+	private Hashtable<String, WhanauRPCMuxConnection>
+							mux;			//key=pubKeyHash:host:port, value=shared connection
+	private Hashtable<String, FutureTask<WhanauRPCMuxConnection>>
+							connecting;		//key=pubKeyHash:host:port, value=connect in progress
+	private Hashtable<String, Long>
+							legacyPeers;	//keys of peers without the multiplexed protocol,
+											//value=time the mark expires
+	//Statistics
+	private int				numCreated;		//Number of new connections
+	private int				numReused;		//Number of calls served by a pooled connection
+	private int				numEvicted;		//Number of idle connections closed
+
+	/**
+	 * Creates a new pool with the default timeouts in WhanauDHTConstants
+	 */
+	public WhanauRPCConnectionPool() {
+		this(WhanauDHTConstants.CONNPOOL_IDLE_TIMEOUT, WhanauDHTConstants.CONNPOOL_MAX_IDLE_PER_PEER,
+				WhanauDHTConstants.CONNPOOL_EVICT_PERIOD);
+	}
+
+	/**
+	 * Creates a new pool
+	 *
+	 * @param idleTimeout		long	= idle connections older than this are closed (ms)
+	 * @param maxIdlePerPeer	int		= max idle connections kept per peer
+	 * @param evictPeriod		long	= period between idle sweeps (ms)
+	 */
+	public WhanauRPCConnectionPool(long idleTimeout, int maxIdlePerPeer, long evictPeriod) {
+		this.idle = new Hashtable<String, LinkedList<WhanauRPCConnection>>();
+		this.mux = new Hashtable<String, WhanauRPCMuxConnection>();
+		this.connecting = new Hashtable<String, FutureTask<WhanauRPCMuxConnection>>();
+		this.legacyPeers = new Hashtable<String, Long>();
+		this.idleTimeout = idleTimeout;
+		this.maxIdlePerPeer = maxIdlePerPeer;
+		this.numCreated = 0;
+		this.numReused = 0;
+		this.numEvicted = 0;
+		this.evictTimer = new Timer("WhanauRPCConnectionPool-evict", true);
+		this.evictTimer.schedule(new TimerTask() {
+			public void run() {
+				evictIdle();
+			}
+		}, evictPeriod, evictPeriod);
+	}
+
+	/**
+	 * Builds the key that identifies a peer in the pool
+	 *
+	 * @param pubKeyHash	String	= peer's public key hash (may be null)
+	 * @param host			String	= peer's hostname
+	 * @param port			int		= peer's port
+	 * @return String
+	 */
+	public static String makeKey(String pubKeyHash, String host, int port) {
+		return (pubKeyHash+":"+host+":"+port);
+	}
+
+	/**
+	 * Takes an idle connection to this peer out of the pool.
+	 * Connections that fail the health check are closed.
+	 *
+	 * @param key	String				= pubKeyHash:host:port
+	 * @return WhanauRPCConnection		= healthy connection, or null if none
+	 */
+	public WhanauRPCConnection checkOut(String key) {
+		LinkedList<WhanauRPCConnection> toClose = new LinkedList<WhanauRPCConnection>();
+		WhanauRPCConnection result = null;
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			LinkedList<WhanauRPCConnection> list = this.idle.get(key);
+			while ((list != null) && !list.isEmpty() && (result == null)) {
+				//Most recently used first, so older connections age out
+				WhanauRPCConnection conn = list.removeFirst();
+				if (conn.isReusable(now, this.idleTimeout)) {
+					result = conn;
+					this.numReused++;
+				} else {
+					toClose.add(conn);
+					this.numEvicted++;
+				}
+			}
+			if ((list != null) && list.isEmpty()) {
+				this.idle.remove(key);
+			}
+		}
+		for (WhanauRPCConnection conn : toClose) {
+			conn.close();
+		}
+		return result;
+	}
+
+	/**
+	 * Records that a new connection was opened, because
+	 * no idle connection to the peer was available
+	 */
+	public synchronized void recordCreated() {
+		this.numCreated++;
+	}
+
+	/**
+	 * Returns a connection to the pool after a successful call.
+	 * If there are already enough idle connections to this peer, it is closed instead
+	 *
+	 * @param conn WhanauRPCConnection = connection to return
+	 */
+	public void checkIn(WhanauRPCConnection conn) {
+		synchronized (this) {
+			if (conn.isReusable(System.currentTimeMillis(), this.idleTimeout)) {
+				LinkedList<WhanauRPCConnection> list = this.idle.get(conn.getPoolKey());
+				if (list == null) {
+					list = new LinkedList<WhanauRPCConnection>();
+					this.idle.put(conn.getPoolKey(), list);
+				}
+				if (list.size() < this.maxIdlePerPeer) {
+					list.addFirst(conn);
+					return;
+				}
+			}
+		}
+		conn.close();
+	}
+
+	/**
+	 * Closes a connection that failed during a call.
+	 * It is never returned to the pool
+	 *
+	 * @param conn WhanauRPCConnection = broken connection
+	 */
+	public void discard(WhanauRPCConnection conn) {
+		conn.close();
+	}
+
+	/**
+	 * Returns the shared multiplexed connection to this peer
+	 * 
+	 * @param key	String				= pubKeyHash:host:port
+	 * @return WhanauRPCMuxConnection	= open connection, or null if none
+	 */
+	public WhanauRPCMuxConnection getMux(String key) {
+		WhanauRPCMuxConnection conn;
+		synchronized (this) {
+			conn = this.mux.get(key);
+			if (conn == null)
+				return null;
+			if (conn.isReusable(System.currentTimeMillis(), this.idleTimeout)) {
+				this.numReused++;
+				return conn;
+			}
+			this.mux.remove(key);
+			this.numEvicted++;
+		}
+		conn.close();
+		return null;
+	}
+	
+	/**
+	 * Adds a new multiplexed connection to this peer.
+	 * If another thread added one first, the new connection
+	 * is closed and the existing one is returned
+	 * 
+	 * @param conn	WhanauRPCMuxConnection	= new connection
+	 * @return WhanauRPCMuxConnection		= connection to use
+	 */
+	public WhanauRPCMuxConnection putMux(WhanauRPCMuxConnection conn) {
+		WhanauRPCMuxConnection existing;
+		synchronized (this) {
+			this.numCreated++;
+			existing = this.mux.get(conn.getPoolKey());
+			if (existing == null || !existing.isReusable(System.currentTimeMillis(), this.idleTimeout)) {
+				this.mux.put(conn.getPoolKey(), conn);
+				existing = null;
+			}
+		}
+		if (existing != null) {
+			conn.close();
+			return existing;
+		}
+		return conn;
+	}
+	
+	/**
+	 * Registers a new multiplexed connect to this peer,
+	 * unless another thread is already connecting.
+	 * Only one connect per peer is in progress at a time,
+	 * the other callers wait for its result
+	 * 
+	 * @param key	String									= pubKeyHash:host:port
+	 * @param task	FutureTask<WhanauRPCMuxConnection>		= new connect, not started
+	 * @return FutureTask<WhanauRPCMuxConnection>			= connect in progress,
+	 * 														  task if the caller must run it
+	 */
+	public synchronized FutureTask<WhanauRPCMuxConnection> startMuxConnect(String key,
+												FutureTask<WhanauRPCMuxConnection> task) {
+		FutureTask<WhanauRPCMuxConnection> running = this.connecting.get(key);
+		if (running != null)
+			return running;
+		this.connecting.put(key, task);
+		return task;
+	}
+	
+	/**
+	 * Called when a connect registered with startMuxConnect(...) finished
+	 * 
+	 * @param key	String								= pubKeyHash:host:port
+	 * @param task	FutureTask<WhanauRPCMuxConnection>	= finished connect
+	 */
+	public synchronized void endMuxConnect(String key, FutureTask<WhanauRPCMuxConnection> task) {
+		if (this.connecting.get(key) == task)
+			this.connecting.remove(key);
+	}
+	
+	/**
+	 * Closes a multiplexed connection that failed
+	 * 
+	 * @param conn WhanauRPCMuxConnection = broken connection
+	 */
+	public void discardMux(WhanauRPCMuxConnection conn) {
+		synchronized (this) {
+			if (this.mux.get(conn.getPoolKey()) == conn)
+				this.mux.remove(conn.getPoolKey());
+		}
+		conn.close();
+	}
+	
+	/**
+	 * Remembers that this peer does not speak the multiplexed protocol,
+	 * for RPC_LEGACY_PEER_TTL (the peer may be upgraded)
+	 * 
+	 * @param key String = pubKeyHash:host:port
+	 */
+	public void setLegacyPeer(String key) {
+		this.legacyPeers.put(key, System.currentTimeMillis() + WhanauDHTConstants.RPC_LEGACY_PEER_TTL);
+	}
+	
+	/**
+	 * Checks if this peer does not speak the multiplexed protocol
+	 * 
+	 * @param key String = pubKeyHash:host:port
+	 * @return boolean
+	 */
+	public boolean isLegacyPeer(String key) {
+		Long expiry = this.legacyPeers.get(key);
+		if (expiry == null)
+			return false;
+		if (System.currentTimeMillis() > expiry) {
+			this.legacyPeers.remove(key);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Closes all idle connections that exceeded the idle timeout
+	 * or fail the health check
+	 */
+	public void evictIdle() {
+		LinkedList<WhanauRPCConnection> toClose = new LinkedList<WhanauRPCConnection>();
+		LinkedList<WhanauRPCMuxConnection> toCloseMux = new LinkedList<WhanauRPCMuxConnection>();
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			Iterator<String> keyIter = this.idle.keySet().iterator();
+			while (keyIter.hasNext()) {
+				LinkedList<WhanauRPCConnection> list = this.idle.get(keyIter.next());
+				Iterator<WhanauRPCConnection> connIter = list.iterator();
+				while (connIter.hasNext()) {
+					WhanauRPCConnection conn = connIter.next();
+					if (!conn.isReusable(now, this.idleTimeout)) {
+						connIter.remove();
+						toClose.add(conn);
+						this.numEvicted++;
+					}
+				}
+				if (list.isEmpty()) {
+					keyIter.remove();
+				}
+			}
+			Iterator<WhanauRPCMuxConnection> muxIter = this.mux.values().iterator();
+			while (muxIter.hasNext()) {
+				WhanauRPCMuxConnection conn = muxIter.next();
+				if (!conn.isReusable(now, this.idleTimeout)) {
+					muxIter.remove();
+					toCloseMux.add(conn);
+					this.numEvicted++;
+				}
+			}
+		}
+		for (WhanauRPCConnection conn : toClose) {
+			conn.close();
+		}
+		for (WhanauRPCMuxConnection conn : toCloseMux) {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Closes every idle connection and stops the sweep.
+	 * Called when the node is killed
+	 */
+	public void closeAll() {
+		LinkedList<WhanauRPCConnection> toClose = new LinkedList<WhanauRPCConnection>();
+		LinkedList<WhanauRPCMuxConnection> toCloseMux = new LinkedList<WhanauRPCMuxConnection>();
+		synchronized (this) {
+			for (LinkedList<WhanauRPCConnection> list : this.idle.values()) {
+				toClose.addAll(list);
+			}
+			this.idle.clear();
+			toCloseMux.addAll(this.mux.values());
+			this.mux.clear();
+		}
+		this.evictTimer.cancel();
+		for (WhanauRPCConnection conn : toClose) {
+			conn.close();
+		}
+		for (WhanauRPCMuxConnection conn : toCloseMux) {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Returns the number of idle connections in the pool
+	 *
+	 * @return int
+	 */
+	public synchronized int getNumIdle() {
+		int result = 0;
+		for (LinkedList<WhanauRPCConnection> list : this.idle.values()) {
+			result += list.size();
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a string with the pool statistics
+	 *
+	 * @return String
+	 */
+	public synchronized String toString() {
+		return "ConnectionPool: idle="+this.getNumIdle()+", multiplexed="+this.mux.size()+
+				", legacyPeers="+this.legacyPeers.size()+", created="+this.numCreated+
+				", reused="+this.numReused+", evicted="+this.numEvicted+"\n";
+	}
+}
@@ -0,0 +1,36 @@
+package edu.mit.csail.whanausip.dht;
+
+import java.io.Serializable;
+
+/**
+ * Sent instead of the return Object when a request of the
+ * one-call-at-a-time protocol failed on the server
+ * (not authorized, bad parameters, or the method threw).
+ * WhanauRPCConnection.call(...) turns it into a RemoteException,
+ * the same as a STATUS_ERROR frame of the multiplexed protocol.
+ * The connection stays in sync, the response was written in full
+ *
+ * @author ryscheng
+ * @date 2010/08/30
+ */
+public class WhanauRPCError implements Serializable {
+	private static final long serialVersionUID = 6148203471395627416L;
+	
+	private final String message;	//Description of the failure
+	
+	/**
+	 * @param message String = description of the failure
+	 */
+	public WhanauRPCError(String message) {
+		this.message = message;
+	}
+	
+	/**
+	 * Returns the description of the failure
+	 * 
+	 * @return String
+	 */
+	public String getMessage() {
+		return this.message;
+	}
+}
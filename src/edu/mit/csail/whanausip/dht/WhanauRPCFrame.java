@@ -0,0 +1,176 @@
+package edu.mit.csail.whanausip.dht;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+/**
+ * A single frame of the multiplexed RPC protocol.
+ * Many calls can be outstanding on one connection,
+ * responses carry the ID of their request and may arrive in any order.
+ *
+ * A connection starts with the client sending MAGIC, and the server
+ * answering with MAGIC. Older nodes read MAGIC as a broken object stream
+ * and close the connection, so the client falls back to one request per call.
+ *
+ * Wire format of a frame:
+ * 	[int length][int requestID][byte status][payload]
+ * length counts requestID, status and payload
+ * Request payload = command and parameters (see WhanauRPCCodec)
+ * Response payload = return Object (STATUS_OK)
+ * 					or String error message (STATUS_ERROR)
+ *
+ * @author ryscheng
+ * @date 2010/08/26
+ */
+public class WhanauRPCFrame {
+	public static final byte[] 	MAGIC 			= {'W', 'H', 'M', '1'};
+	public static final byte 	STATUS_OK 		= 0;
+	public static final byte 	STATUS_ERROR 	= 1;
+	/**
+	 * Bytes before the payload: length, requestID and status
+	 */
+	public static final int 	HEADER_SIZE 	= 9;
+	/**
+	 * Frames larger than this are treated as a broken stream
+	 */
+	public static final int 	MAX_FRAME_SIZE	= 64*1024*1024;
+
+	private int 	requestID;		//Matches responses to requests
+	private byte 	status;			//STATUS_OK or STATUS_ERROR
+	private byte[] 	payload;		//Serialized request or response
+
+	/**
+	 * Creates a new frame
+	 *
+	 * @param requestID	int		= ID of the request
+	 * @param status	byte	= STATUS_OK or STATUS_ERROR
+	 * @param payload	byte[]	= serialized request or response
+	 */
+	public WhanauRPCFrame(int requestID, byte status, byte[] payload) {
+		this.requestID = requestID;
+		this.status = status;
+		this.payload = payload;
+	}
+
+	/**
+	 * Return the request ID
+	 *
+	 * @return int
+	 */
+	public int getRequestID() {
+		return this.requestID;
+	}
+
+	/**
+	 * Return the status
+	 *
+	 * @return byte = STATUS_OK or STATUS_ERROR
+	 */
+	public byte getStatus() {
+		return this.status;
+	}
+
+	/**
+	 * Return the payload
+	 *
+	 * @return byte[]
+	 */
+	public byte[] getPayload() {
+		return this.payload;
+	}
+
+	/**
+	 * Return the number of bytes of this frame on the wire
+	 *
+	 * @return int
+	 */
+	public int getWireSize() {
+		return HEADER_SIZE + this.payload.length;
+	}
+
+	/**
+	 * Writes this frame to a stream. Does not flush
+	 *
+	 * @param out DataOutputStream
+	 * @throws IOException
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(HEADER_SIZE - 4 + this.payload.length);
+		out.writeInt(this.requestID);
+		out.writeByte(this.status);
+		out.write(this.payload);
+	}
+
+	/**
+	 * Returns the bytes of this frame on the wire
+	 *
+	 * @return byte[]
+	 */
+	public byte[] toBytes() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(this.getWireSize());
+		try {
+			this.write(new DataOutputStream(bytes));
+		} catch (IOException ex) {
+			//Cannot happen when writing to memory
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Blocks until a whole frame is read from the stream
+	 *
+	 * @param in DataInputStream
+	 * @return WhanauRPCFrame
+	 * @throws IOException = stream closed or broken
+	 */
+	public static WhanauRPCFrame read(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < HEADER_SIZE - 4 || length > MAX_FRAME_SIZE)
+			throw new StreamCorruptedException("Invalid frame length "+length);
+		int requestID = in.readInt();
+		byte status = in.readByte();
+		byte[] payload = new byte[length - (HEADER_SIZE - 4)];
+		in.readFully(payload);
+		return new WhanauRPCFrame(requestID, status, payload);
+	}
+
+	/**
+	 * Reads a frame from a buffer, without blocking
+	 *
+	 * @param buf 	byte[] 	= buffer
+	 * @param off 	int 	= start of frame in buffer
+	 * @param len 	int 	= number of valid bytes after off
+	 * @return WhanauRPCFrame = the frame, or null if the buffer does not hold a whole frame yet
+	 * @throws IOException = broken stream
+	 */
+	public static WhanauRPCFrame parse(byte[] buf, int off, int len) throws IOException {
+		if (len < HEADER_SIZE)
+			return null;
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf, off, len));
+		int length = in.readInt();
+		if (length < HEADER_SIZE - 4 || length > MAX_FRAME_SIZE)
+			throw new StreamCorruptedException("Invalid frame length "+length);
+		if (len < length + 4)
+			return null;
+		return read(new DataInputStream(new ByteArrayInputStream(buf, off, len)));
+	}
+
+	/**
+	 * Checks if the bytes are the start of MAGIC
+	 *
+	 * @param buf 	byte[] 	= buffer
+	 * @param len 	int 	= number of valid bytes
+	 * @return boolean = true if the first min(len, MAGIC.length) bytes match MAGIC
+	 */
+	public static boolean startsWithMagic(byte[] buf, int len) {
+		for (int i = 0; i < Math.min(len, MAGIC.length); i++) {
+			if (buf[i] != MAGIC[i])
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,233 @@
+package edu.mit.csail.whanausip.dht;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLSocket;
+
+import edu.mit.csail.whanausip.commontools.WhanauDHTConstants;
+
+/**
+ * An authenticated SSL connection to a peer that carries many
+ * concurrent remote calls (see WhanauRPCFrame).
+ * Any number of threads can call() at the same time,
+ * a reader thread hands each response to the thread waiting for it,
+ * so a slow call does not hold up the others
+ *
+ * @author ryscheng
+ * @date 2010/08/26
+ */
+public class WhanauRPCMuxConnection implements Runnable {
+	private String 				poolKey;	//Identifies the peer in WhanauRPCConnectionPool
+	private SSLSocket 			sock;		//Authenticated socket to the peer
+	private DataOutputStream 	out;		//Request frames, writes are synchronized on out
+	private DataInputStream 	in;			//Response frames, only read by the reader thread
+	private ConcurrentHashMap<Integer, PendingCall>
+								pending;	//Calls waiting for a response, key=requestID
+	private AtomicInteger		nextID;		//ID of the next request
+	private volatile long 		lastUsed;	//Time the last call completed
+	private volatile boolean	closed;
+	private Thread				reader;		//Reads responses
+
+	/**
+	 * A call waiting for its response
+	 */
+	private static class PendingCall {
+		private CountDownLatch 	done 	= new CountDownLatch(1);
+		private Object 			result;
+		private Exception 		error;
+	}
+
+	/**
+	 * Wraps a socket that has already passed the man-in-the-middle check,
+	 * and asks the peer to use the multiplexed protocol.
+	 * Throws WhanauRPCMuxConnection.NotSupportedException if the peer only
+	 * understands one request per call (older node): it closes the connection
+	 * or answers something else. Other failures (timeouts, resets)
+	 * throw a plain IOException, the peer may just be busy
+	 *
+	 * @param poolKey	String		= key of this peer in the connection pool
+	 * @param sock		SSLSocket	= connected socket
+	 * @throws IOException
+	 */
+	public WhanauRPCMuxConnection(String poolKey, SSLSocket sock) throws IOException {
+		this.poolKey = poolKey;
+		this.sock = sock;
+		this.out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+		this.in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+		this.pending = new ConcurrentHashMap<Integer, PendingCall>();
+		this.nextID = new AtomicInteger(0);
+		this.lastUsed = System.currentTimeMillis();
+		this.closed = false;
+
+		//Negotiate
+		byte[] ack = new byte[WhanauRPCFrame.MAGIC.length];
+		try {
+			this.out.write(WhanauRPCFrame.MAGIC);
+			this.out.flush();
+			sock.setSoTimeout(WhanauDHTConstants.GETREMOTE_TIMEOUT);
+			this.in.readFully(ack);
+			sock.setSoTimeout(0);
+		} catch (EOFException ex) {
+			this.close();
+			throw new NotSupportedException("Connection closed after multiplexed protocol request");
+		} catch (IOException ex) {
+			this.close();
+			throw ex;
+		}
+		if (!Arrays.equals(ack, WhanauRPCFrame.MAGIC)) {
+			this.close();
+			throw new NotSupportedException("Unknown answer to multiplexed protocol");
+		}
+		this.reader = new Thread(this, "WhanauRPCMuxConnection-"+poolKey);
+		this.reader.setDaemon(true);
+		this.reader.start();
+	}
+
+	/**
+	 * Thrown when the peer does not speak the multiplexed protocol
+	 */
+	public static class NotSupportedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public NotSupportedException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Sends a request and blocks until its response is read.
+	 * Other threads can send requests on this connection at the same time
+	 *
+	 * @param command 	String 		= name of method
+	 * @param param 	Object[] 	= parameters to remote method
+	 * @return Object				= return Object
+	 * @throws WhanauRPCConnection.RetryableException = the request was not sent
+	 * @throws IOException			= connection failed after the request was sent,
+	 * 								  or no response within RPC_CALL_TIMEOUT,
+	 * 								  the peer may have executed it
+	 * @throws Exception			= the remote method failed
+	 */
+	public Object call(String command, Object[] param) throws Exception {
+		int id = this.nextID.incrementAndGet();
+		PendingCall call = new PendingCall();
+		WhanauRPCFrame request = new WhanauRPCFrame(id, WhanauRPCFrame.STATUS_OK,
+											WhanauRPCCodec.encodeRequest(command, param));
+		this.pending.put(id, call);
+		if (this.closed) {
+			this.pending.remove(id);
+			throw new WhanauRPCConnection.RetryableException("Connection closed");
+		}
+		try {
+			synchronized (this.out) {
+				request.write(this.out);
+				this.out.flush();
+			}
+		} catch (IOException ex) {
+			this.pending.remove(id);
+			this.close();
+			throw new WhanauRPCConnection.RetryableException("Request not sent: "+ex.getMessage());
+		}
+		try {
+			if (!call.done.await(WhanauDHTConstants.RPC_CALL_TIMEOUT, TimeUnit.MILLISECONDS))
+				throw new SocketTimeoutException("No response from "+this.poolKey+" to "+command);
+		} finally {
+			//A late response finds no pending call and is dropped
+			this.pending.remove(id);
+		}
+		this.lastUsed = System.currentTimeMillis();
+		if (call.error != null)
+			throw call.error;
+		return call.result;
+	}
+
+	/**
+	 * Reader thread
+	 * Hands each response to the waiting call.
+	 * When the connection fails, all waiting calls fail
+	 */
+	public void run() {
+		try {
+			while (!this.closed) {
+				WhanauRPCFrame response = WhanauRPCFrame.read(this.in);
+				PendingCall call = this.pending.get(response.getRequestID());
+				if (call == null)
+					continue;
+				try {
+					Object result = WhanauRPCCodec.decodeResponse(response.getPayload());
+					if (response.getStatus() == WhanauRPCFrame.STATUS_OK)
+						call.result = result;
+					else
+						call.error = new RemoteException("Remote call failed: "+result);
+				} catch (Exception ex) {
+					//Only this call failed, the stream is still in sync
+					call.error = ex;
+				}
+				call.done.countDown();
+			}
+		} catch (IOException ex) {
+			//Connection closed or broken
+		}
+		this.close();
+		for (PendingCall call : this.pending.values()) {
+			call.error = new IOException("Connection to "+this.poolKey+" closed");
+			call.done.countDown();
+		}
+	}
+
+	/**
+	 * Health check before the connection is used again.
+	 * A connection with calls in progress is always kept
+	 *
+	 * @param now		long	= current time
+	 * @param maxIdle	long	= maximum idle time (milliseconds)
+	 * @return boolean			= true if connection can be reused
+	 */
+	public boolean isReusable(long now, long maxIdle) {
+		if (this.closed || this.sock.isClosed())
+			return false;
+		return (!this.pending.isEmpty() || (now - this.lastUsed) < maxIdle);
+	}
+
+	/**
+	 * Closes the socket, ignoring errors
+	 * The reader thread fails all waiting calls
+	 */
+	public void close() {
+		this.closed = true;
+		try {
+			this.sock.close();
+		} catch (IOException ex) {
+			//Already broken, nothing to do
+		}
+	}
+
+	/**
+	 * Returns the key of this peer in the connection pool
+	 *
+	 * @return String
+	 */
+	public String getPoolKey() {
+		return this.poolKey;
+	}
+
+	/**
+	 * Returns the number of calls waiting for a response
+	 *
+	 * @return int
+	 */
+	public int getNumPending() {
+		return this.pending.size();
+	}
+}
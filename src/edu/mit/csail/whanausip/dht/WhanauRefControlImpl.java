@@ -3,15 +3,18 @@ package edu.mit.csail.whanausip.dht;
 import java.io.Serializable;
 import java.rmi.RemoteException;
 import java.security.KeyStore;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
 import java.util.logging.Logger;
 
 import edu.mit.csail.whanausip.commontools.*;
 import edu.mit.csail.whanausip.commontools.remote.*;
 import edu.mit.csail.whanausip.commontools.threads.*;
+import edu.mit.csail.whanausip.dht.kvchecker.KVCheckerBatch;
 import edu.mit.csail.whanausip.dht.kvchecker.KeyValueChecker;
 
 /**
@@ -109,7 +112,7 @@ public class WhanauRefControlImpl<T> //extends UnicastRemoteObject
 		this.state.getLog().info("setuppart1(w="+w+",rd="+rd+",rf="+rf+",rs="+rs+") STARTED");
 		//Reset our temporary state
 		this.state.resignValues();
-		this.state.clearQueryTokens();
+		this.state.clearQueryTokens((rd + this.state.getNumLayers() * (rf + rs)));
 		this.state.resetRandWalks((rd + this.state.getNumLayers() * (rf + rs)));
 		this.state.resetPeerRandWalkCount();
 		this.state.resetPeerActiveStatus();
@@ -125,8 +128,11 @@ public class WhanauRefControlImpl<T> //extends UnicastRemoteObject
 		}
 		batch.joinTermination(WhanauDHTConstants.WAITSETUP_TIMEOUT);
 		batch.getFinalResults();
+		//All peers reset their caches, start refilling ours
+		this.state.prefillRandWalks();
 		//Stage 2 - Fill Database
-		LinkedList<Pair<Object, Long>> sampleNodesResult = this.persistentSampleNodes(currSetupNum, rd, w);
+		LinkedList<Pair<Object, Long>> sampleNodesResult = this.persistentSampleNodes(currSetupNum, rd, w, 
+																					this.getMinSampleNodes(rd));
 		if (sampleNodesResult == null) {
 			this.state.getLog().severe("failed in stage 2: sampleRecords");
 			return 0;
@@ -197,7 +203,7 @@ public class WhanauRefControlImpl<T> //extends UnicastRemoteObject
 			this.state.getLog().info(this.state.getPubKeyHash()+" finished stage="+stage+": got ID for layer="+i);
 			stage++;
 			//FINGERS
-			parallelResult = this.parallelQuery(currSetupNum, rf, w, WhanauDHTConstants.GETID_TIMEOUT, "getID", i, null);
+			parallelResult = this.parallelQuery(currSetupNum, rf, w, WhanauDHTConstants.GETID_TIMEOUT, "getID", i, null, null, rf);
 			if (parallelResult == null) {
 				this.state.getLog().severe("failed in stage "+stage+": get fingers for layer "+i);
 				return 0;
@@ -209,29 +215,36 @@ public class WhanauRefControlImpl<T> //extends UnicastRemoteObject
 			}
 			//SUCCESSORS
 			parallelResult = this.parallelQuery(currSetupNum, rf, w, WhanauDHTConstants.SUCCESSORSSAMPLE_TIMEOUT,
-													"successorsSample", this.state.idGet(i), null);
+													"successorsSample", this.state.idGet(i), null, null, rf);
 			if (parallelResult == null) {
 				this.state.getLog().severe("failed in stage "+stage+": get successors for layer "+i);
 				return 0;
 			}
-			Hashtable<Comparable<T>,Object> succTable = new Hashtable<Comparable<T>,Object>();
+			//Check the records of all nodes as one batch
+			LinkedList<Object> succRecords = new LinkedList<Object>();
 			for (WhanauRPCClientStub<T> node: parallelResult.keySet()) {
 				Object[] currResult = (Object[]) parallelResult.get(node);
 				if (currResult != null) {
 					for (int j=0;j<currResult.length;j++) {
-						if (currResult[j] != null) {
-							Comparable<T> key = this.state.getKVChecker().getKeyFromRecord(currResult[j]);
-							if (this.state.getKVChecker().checkKeyRecord(key,currResult[j])) {
-								succTable.put(key, currResult[j]);
-							} else {
-								this.state.getLog().warning("encountered a malformed value in successorsSample result");
-							}
-						}
+						if (currResult[j] != null)
+							succRecords.add(currResult[j]);
 					}
 				} else {
 					this.state.getLog().warning("encountered a null result from successorsSample");
 				}
 			}
+			BitSet succValid = this.state.getKVChecker().checkRecords(succRecords);
+			Hashtable<Comparable<T>,Object> succTable = new Hashtable<Comparable<T>,Object>();
+			int j = 0;
+			for (Object record : succRecords) {
+				Comparable<T> key = this.state.getKVChecker().getKeyFromRecord(record);
+				if (succValid.get(j) && (key != null)) {
+					succTable.put(key, record);
+				} else {
+					this.state.getLog().warning("encountered a malformed value in successorsSample result");
+				}
+				j++;
+			}
 			this.state.succPut(i, succTable);
 			
 			this.state.setSetupStage(stage);
@@ -263,34 +276,73 @@ public class WhanauRefControlImpl<T> //extends UnicastRemoteObject
 		}
 	}
 	
+	/**
+	 * Returns the number of random walks that a caller asking for numNodes
+	 * goes ahead with (see SAMPLENODES_MIN_PERCENT)
+	 * 
+	 * @param numNodes 	int = number of random walks requested
+	 * @return int 			= minimum number of random walks, between 1 and numNodes
+	 */
+	private int getMinSampleNodes(int numNodes) {
+		int minNodes = (numNodes*WhanauDHTConstants.SAMPLENODES_MIN_PERCENT + 99)/100;
+		return Math.min(numNodes, Math.max(1, minNodes));
+	}
+	
 	/**
 	 * Checks if the setup number is what we expect.
 	 * If not, return null
 	 * Otherwise, keeps trying to call sampleNodes(...) until we reach our retry limit.
-	 * SampleNodes only returns with results if we get all numNodes results
+	 * Each try is best effort: walks it returns are kept, and the next try
+	 * asks only for the ones still missing. Tries that return nothing
+	 * are followed by an exponential backoff
 	 * 
 	 * @param currSetupNum 	int = expected setup number 
 	 * @param numNodes		int	= number of random walks we want
 	 * @param steps			int = number of steps in random walk
-	 * @return LinkedList<Pair<Object, Long>> = random walk results in a list
+	 * @param minNodes		int = fewest random walks to accept
+	 * @return LinkedList<Pair<Object, Long>> = random walk results in a list,
+	 * 											between minNodes and numNodes of them;
+	 * 											null if fewer
 	 */
-	private LinkedList<Pair<Object, Long>> persistentSampleNodes(int currSetupNum, int numNodes, int steps) {
-		LinkedList<Pair<Object, Long>> records = null;
+	private LinkedList<Pair<Object, Long>> persistentSampleNodes(int currSetupNum, int numNodes, int steps, int minNodes) {
+		LinkedList<Pair<Object, Long>> records = new LinkedList<Pair<Object, Long>>();
+		int backoff = WhanauDHTConstants.SAMPLENODES_BACKOFF_MIN;
 		int i=0;
 		
-		if (currSetupNum != this.state.getSetupNumber()) {
-			this.state.getLog().severe("failed sampleNodes: current setupNumber="+currSetupNum+
-										", new setupNumber="+this.state.getSetupNumber());
-			return null;
-		}
-		//Samplenodes must return all numNodes results, otherwise returns null
 		//Only try a limited number of times
 		//50% to add an extra step to account for certain types of graphs
 		//if (this.state.nextRandInt(100) < 50) steps--;
-		while ((i < WhanauDHTConstants.MAX_SAMPLENODE_FAILURES) && records == null) {
-			records = this.state.sampleNodes(numNodes, steps); 
+		while ((i < WhanauDHTConstants.MAX_SAMPLENODE_FAILURES) && (records.size() < numNodes)) {
+			if (currSetupNum != this.state.getSetupNumber()) {
+				this.state.getLog().severe("failed sampleNodes: current setupNumber="+currSetupNum+
+											", new setupNumber="+this.state.getSetupNumber());
+				return null;
+			}
+			LinkedList<Pair<Object, Long>> part = this.state.sampleNodes(numNodes - records.size(), steps, true);
 			i++;
+			if ((part != null) && (part.size() > 0)) {
+				records.addAll(part);
+				backoff = WhanauDHTConstants.SAMPLENODES_BACKOFF_MIN;
+			} else if (i < WhanauDHTConstants.MAX_SAMPLENODE_FAILURES) {
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException e) {
+					this.state.getLog().warning("Interrupted backoff");
+					break;
+				}
+				backoff = Math.min(2*backoff, WhanauDHTConstants.SAMPLENODES_BACKOFF_MAX);
+			}
 		}
+		if (records.size() < minNodes) {
+			this.state.getLog().severe("got "+records.size()+" of "+numNodes+" random walks (minimum="+minNodes+
+										",steps="+steps+") in "+i+" tries");
+			return null;
+		}
+		if (records.size() < numNodes)
+			this.state.getLog().warning("going ahead with "+records.size()+" of "+numNodes+" random walks (steps="+steps+
+										") after "+i+" tries");
+		else
+			this.state.getLog().fine("got "+numNodes+" random walks (steps="+steps+") in "+i+" tries");
 		return records;
 	}
 	
@@ -301,15 +353,20 @@ public class WhanauRefControlImpl<T> //extends UnicastRemoteObject
 	 * fingers = parallelQuery(rf, w, "getID", layer)
 	 * successors = parallelQuery(rs, w, "successorsSample", id(layer))
 	 * lookup = parallelQuery(threads, w, "lookupTry", key)
+	 * Returns once quorum results pass the filter, or all queries are done,
+	 * and cancels the remaining queries
 	 * 
-	 * @param numNodes 		int 				= number of random walks to perform
+	 * @param numNodes 		int 				= number of random walks to perform (goes ahead with SAMPLENODES_MIN_PERCENT of them)
 	 * @param steps 		int 				= number of steps in random walk
 	 * @param parallelCmd 	String 				= command to perform in methodThread
 	 * @param args 			Object 				= argument to parallelCmd (at most 1)
-	 * @return 	Hashtable<Comparable, Object> 	= table of (key,value) from random walks
+	 * @param filter		MethodThreadResultFilter = accepts results, null accepts any non-null result
+	 * @param quorum		int					= number of accepted results to wait for
+	 * @return 	Hashtable<Comparable, Object> 	= table of (key,value) of accepted results
 	 */
 	private Hashtable<WhanauRPCClientStub<T>, Object> parallelQuery(int currSetupNum, int numNodes, int steps, 
-																int timeout, String parallelCmd, Object arg1, Object arg2) {
+																int timeout, String parallelCmd, Object arg1, Object arg2,
+																MethodThreadResultFilter filter, int quorum) {
 		this.state.getLog().fine("(currSetupNum="+currSetupNum+",numNodes="+numNodes+",stepsize="+steps+
 									",timeout="+timeout+",parallelCmd="+parallelCmd+",arg1="+arg1+",arg2="+arg2+")");
 		Hashtable<WhanauRPCClientStub<T>, Object> finalResult = new Hashtable<WhanauRPCClientStub<T>, Object>();
@@ -318,7 +375,7 @@ public class WhanauRefControlImpl<T> //extends UnicastRemoteObject
 		LinkedList<Pair<Object, Long>> records = null;
 		int i=0;
 		
-		records = this.persistentSampleNodes(currSetupNum, numNodes, steps);
+		records = this.persistentSampleNodes(currSetupNum, numNodes, steps, this.getMinSampleNodes(numNodes));
 		//If keeps failing, just give up
 		if (records == null) {
 			this.state.getLog().severe("cannot sample enough nodes (currSetupNum="+currSetupNum+",numNodes="+numNodes+
@@ -332,8 +389,7 @@ public class WhanauRefControlImpl<T> //extends UnicastRemoteObject
 			nodeTable.put(Integer.toString(i), n);
 			i++;
 		}
-		batch.joinFixedTime(timeout);
-		Hashtable<String, Object> batchResult = batch.getFinalResults();
+		Hashtable<String, Object> batchResult = batch.joinQuorum(timeout, filter, quorum);
 		//Add to the final result
 		for (String index:batchResult.keySet()) {
 			WhanauRPCClientStub<T> key = nodeTable.get(index);
@@ -420,7 +476,7 @@ public class WhanauRefControlImpl<T> //extends UnicastRemoteObject
 	 * @throws RemoteException
 	 */
 	public boolean addPeer(String pubKeyHash, String host, int port) throws RemoteException {
-		WhanauRPCClientStub<T> p = new WhanauRPCClientStub<T>(this.state.getLog(),this.state.getSSLContext(),
+		WhanauRPCClientStub<T> p = new WhanauRPCClientStub<T>(this.state.getLog(),this.state.getKeyState(),
 												pubKeyHash,host,port);
 		this.state.addPeer(p);
 		this.state.getLog().info(this.state.getHashHostPort()+" added "+pubKeyHash+":"+host+":"+port+" as a peer");
@@ -556,24 +612,35 @@ public class WhanauRefControlImpl<T> //extends UnicastRemoteObject
 			return value;
 		}
 		**/
-		//Now try random walks
+		//Now try random walks, stop at the first self-certifying record
+		final Comparable<T> lookupKey = key;
+		MethodThreadBatchFilter filter = new MethodThreadBatchFilter() {
+			public boolean accept(Object result) {
+				if (state.getKVChecker().checkKeyRecord(lookupKey, result))
+					return true;
+				state.getLog().warning("found a fraudulent value: "+state.getKVChecker().valueToString(result));
+				return false;
+			}
+			public BitSet acceptAll(List<Object> results) {
+				BitSet accepted = KVCheckerBatch.checkKeyRecords(state.getKVChecker(), lookupKey, results);
+				int i = 0;
+				for (Object result : results) {
+					if (!accepted.get(i++))
+						state.getLog().warning("found a fraudulent value: "+state.getKVChecker().valueToString(result));
+				}
+				return accepted;
+			}
+		};
 		Hashtable<WhanauRPCClientStub<T>, Object> parallelResult = this.parallelQuery(this.state.getSetupNumber(),
-											numThreads, w, lookupTimeout, "lookupTry", (Integer)queryTimeout, key);
+											numThreads, w, lookupTimeout, "lookupTry", (Integer)queryTimeout, key, filter, 1);
 		if (parallelResult == null) {
 			this.state.getLog().severe("lookup threads returned nothing");
 			return null;
 		}
-		for (WhanauRPCClientStub<T> index: parallelResult.keySet()) {
-			value = parallelResult.get(index);
-			if (this.state.getKVChecker().checkKeyRecord(key, value)) {
-				this.state.getLog().info("success! value="+this.state.getKVChecker().valueToString(value));
-				return value;
-			} else {
-				this.state.getLog().warning("found a fraudulent value: "+this.state.getKVChecker().valueToString(value));
-			}
-		}
-		this.state.getLog().severe("failed, lookup threads returned nothing");
-		return null;
+		//Only records that passed checkKeyRecord are returned
+		value = parallelResult.values().iterator().next();
+		this.state.getLog().info("success! value="+this.state.getKVChecker().valueToString(value));
+		return value;
 	}
 	
 	/**
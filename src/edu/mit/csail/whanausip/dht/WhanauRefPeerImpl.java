@@ -5,6 +5,7 @@ import java.rmi.server.UnicastRemoteObject;
 import java.util.LinkedList;
 
 import edu.mit.csail.whanausip.commontools.Pair;
+import edu.mit.csail.whanausip.commontools.WhanauDHTConstants;
 import edu.mit.csail.whanausip.commontools.remote.WhanauRefPeer;
 import edu.mit.csail.whanausip.dht.ssl.*;
 
@@ -56,7 +57,8 @@ public class WhanauRefPeerImpl<T> //extends UnicastRemoteObject
 	 * @param steps 	int 					= number of steps to take in each random walk
 	 * @return LinkedList<Pair<Object, Long>> 	= list of random walk results;
 	 * 											each pair contains a DHT record
-	 * 											and a corresponding query token
+	 * 											and a corresponding query token;
+	 * 											fewer than numNodes in pipelined fill mode
 	 * @throws RemoteException
 	 */
 	public LinkedList<Pair<Object, Long>> sampleNodes(int numNodes, int steps) throws RemoteException{
@@ -69,7 +71,8 @@ public class WhanauRefPeerImpl<T> //extends UnicastRemoteObject
 			return null;
 		}
 		**/
-		result = this.getState().sampleNodes(numNodes, steps);
+		//Peers merge partial batches into their cache and ask again for the rest
+		result = this.getState().sampleNodes(numNodes, steps, WhanauDHTConstants.RANDWALK_PIPELINED_FILL);
 		this.getState().getLog().fine("(numNodes="+numNodes+", steps="+steps+") success!");
 		return result;
 	}
@@ -2,14 +2,14 @@ package edu.mit.csail.whanausip.dht;
 
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.Arrays;
-import java.util.Hashtable;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.List;
 
 import edu.mit.csail.whanausip.commontools.*;
 import edu.mit.csail.whanausip.commontools.remote.WhanauRefPublic;
 import edu.mit.csail.whanausip.commontools.threads.*;
+import edu.mit.csail.whanausip.dht.kvchecker.KVCheckerBatch;
 import edu.mit.csail.whanausip.dht.ssl.*;
 
 
@@ -77,12 +77,11 @@ public class WhanauRefPublicImpl<T>// extends UnicastRemoteObject
 	 * 
 	 * @param id0 Comparable<T> = id to compare to
 	 * @param key Comparable<T> = key that we're currently looking up
-	 * @return Pair<Integer, WhanauRefPublic<T>> = fingers in range
+	 * @return Pair<Integer, Comparable<T>> = (layer, finger ID) in range
 	 */
-	private Pair<Integer, WhanauRPCClientStub<T>> chooseFinger(Comparable<T> id0, Comparable<T> key) {
+	private Pair<Integer, Comparable<T>> chooseFinger(Comparable<T> id0, Comparable<T> key) {
 		int numLayers = this.getState().getNumLayers();
 		int indices[] = new int[numLayers];
-		HashSet<Comparable<T>> currPool;
 		
 		for (int i = 0; i< numLayers; i++) {
 			indices[i] = i;
@@ -95,26 +94,18 @@ public class WhanauRefPublicImpl<T>// extends UnicastRemoteObject
 			indices[x] = indices[y];
 			indices[y] = z;
 		}
-		//Choose the finger
+		//Choose the finger: a random one between id0 and key on the ring
 		for (int i = 0; i < numLayers; i++) {
 			int index = indices[i];
-			currPool = new HashSet<Comparable<T>>();
-			Set<Comparable<T>> fingerIds = this.getState().fingerKeys(index);
+			WhanauRingIndex<T> fingerIds = this.getState().getFingerIndex(index);
 			if (fingerIds != null) {
-				for (Comparable<T> currId : fingerIds) {
-					if ((id0.compareTo((T)key) <= 0) && (currId.compareTo((T)id0) >= 0) && (currId.compareTo((T)key) <= 0)) { 
-						currPool.add(currId);
-					} else if ((id0.compareTo((T)key) >= 0) && ((currId.compareTo((T)id0) >= 0) || (currId.compareTo((T)key) <= 0))) {
-						currPool.add(currId);
-					}
+				int count = fingerIds.rangeSize(id0, key);
+				if (count > 0) {
+					this.getState().getLog().fine("success! on layer "+index);
+					return new Pair<Integer, Comparable<T>>(index,
+							fingerIds.getKeyInRange(id0, key, this.getState().nextRandInt(count)));
 				}
 			}
-			if (! currPool.isEmpty()){
-				this.getState().getLog().fine("success! on layer "+index);
-				Comparable<T>[] randArray = currPool.toArray((Comparable<T>[]) new Comparable[0]);
-				Comparable<T> k = randArray[this.getState().nextRandInt(randArray.length)];
-				return new Pair<Integer, WhanauRPCClientStub<T>>(index, this.getState().fingerGet(index, k));
-			}
 		}
 		this.getState().getLog().warning("failed: cannot find any fingers in range");
 		return null;
@@ -136,56 +127,78 @@ public class WhanauRefPublicImpl<T>// extends UnicastRemoteObject
 	 * @throws RemoteException
 	 */
 	public Object lookupTry(long queryToken, int queryTimeout, Comparable<T> key) throws RemoteException {
-		//Get query token
+		//Get query token, collectQueryToken(..) logs why it failed
 		if (! this.getState().collectQueryToken(queryToken)) {
-			this.getState().getLog().severe("ERROR: Wrong query token: "+queryToken);
 			return null;
 		}
-		//Get all finger keys at layer 0
-		Set<Comparable<T>> fingerids0 = this.getState().fingerKeys(0);
+		//Get all finger keys at layer 0, already sorted
+		WhanauRingIndex<T> fingerids0 = this.getState().getFingerIndex(0);
 		if (fingerids0 == null) {
 			this.getState().getLog().warning("failed: no fingers for layer 0");
 			return null;
 		}
-		HashSet<Comparable<T>> idSet = new HashSet<Comparable<T>>(fingerids0);
-		idSet.add(key);
-		Comparable<T> idArray[] = idSet.toArray((Comparable<T>[])new Comparable[0]);
-		int pos, index;
-		//Sort and store ordered result in idArray
-		Arrays.sort(idArray);
-		//Find position of lookup key
-		pos = Arrays.binarySearch(idArray, key);
-		//Setup a batch request of queries
-		MethodThreadBatchRun batch = new MethodThreadBatchRun();
-		for (int i=1;i<idArray.length;i++) {
-			index = (pos-i);
+		int pos = fingerids0.predecessorIndex(key);
+		//Plan the queries: one per distinct (layer, finger), closest first
+		WhanauLookupPlan<T> plan = new WhanauLookupPlan<T>(key);
+		//Walk the layer 0 fingers backwards from the key, skipping the key itself
+		for (int i=0;i<fingerids0.size();i++) {
+			int index = (pos-i);
 			if (index < 0){
-				index += idArray.length;
+				index += fingerids0.size();
 			}
-			Pair<Integer, WhanauRPCClientStub<T>> finger = this.chooseFinger(idArray[index],key);
+			Comparable<T> id0 = fingerids0.getKey(index);
+			if (id0.compareTo((T)key) == 0)
+				continue;
+			Pair<Integer, Comparable<T>> finger = this.chooseFinger(id0,key);
 			if (finger != null) {
-				batch.addThread(Integer.toString(i), this, finger.getSecond(), "query", key, finger.getFirst());				
+				plan.addTarget(finger.getFirst(), finger.getSecond());
 			}
 		}
-		if (batch.getNumThreads() > 0) {
-			batch.joinTermination(queryTimeout);
-			Hashtable<String,Object> results = batch.getFinalResults();
-			//Find a self-certifying result
-			for (String i : results.keySet()){
-				Object value = results.get(i);
-				if (this.getState().getKVChecker().checkKeyRecord(key, value)){
-					this.getState().getLog().fine("success! returns: "+this.getState().getKVChecker().valueToString(value));
-					return value;
-				} else {
-					this.getState().getLog().warning("lookupTry: query result failed record checking");
-				}
-			}
-			this.getState().getLog().warning("failed lookupTry: "+batch.getNumThreads()+" threads to query fingers returned "+results.size()+" results");
-			return null;
-		} else {
+		if (plan.size() <= 0) {
 			this.getState().getLog().warning("failed lookupTry: no suitable fingers to query");
 			return null;
 		}
+		//Query closest first, at most LOOKUP_QUERY_CONCURRENCY at once,
+		//until one finger has a self-certifying result
+		final Comparable<T> lookupKey = key;
+		MethodThreadBatchFilter filter = new MethodThreadBatchFilter() {
+			public boolean accept(Object result) {
+				if (getState().getKVChecker().checkKeyRecord(lookupKey, result))
+					return true;
+				getState().getLog().warning("lookupTry: query result failed record checking");
+				return false;
+			}
+			public BitSet acceptAll(List<Object> results) {
+				BitSet accepted = KVCheckerBatch.checkKeyRecords(getState().getKVChecker(), lookupKey, results);
+				if (accepted.cardinality() < results.size())
+					getState().getLog().warning("lookupTry: "+(results.size()-accepted.cardinality())+
+												" query results failed record checking");
+				return accepted;
+			}
+		};
+		//Sliding window: the next finger is queried as soon as a query
+		//finishes or fails, so a silent finger holds up one slot only.
+		//lookupTry serves a remote request, so its queries do not
+		//compete with the caller's batch for threads of the shared pool
+		MethodThreadBatchRun batch = new MethodThreadBatchRun(MethodThreadScheduler.getServer());
+		batch.setMaxRunning(WhanauDHTConstants.LOOKUP_QUERY_CONCURRENCY);
+		int numQueries = 0;
+		for (Pair<Integer, Comparable<T>> target : plan.getOrderedTargets()) {
+			WhanauRPCClientStub<T> n = this.getState().fingerGet(target.getFirst(), target.getSecond());
+			if (n != null)
+				batch.addThread(Integer.toString(numQueries++), this, n, "query", key, target.getFirst());
+		}
+		if (batch.getNumThreads() > 0) {
+			Object value = batch.joinFirst(queryTimeout, filter);
+			if (value != null) {
+				this.getState().getLog().fine("success! returns: "+this.getState().getKVChecker().valueToString(value)+
+												" from "+numQueries+" planned queries to "+plan.size()+" fingers");
+				return value;
+			}
+		}
+		this.getState().getLog().warning("failed lookupTry: "+numQueries+" queries to "+plan.size()+" fingers ("+
+											plan.getNumDuplicates()+" duplicates dropped) returned no valid result");
+		return null;
 	}
 	
 	/**
@@ -196,9 +209,8 @@ public class WhanauRefPublicImpl<T>// extends UnicastRemoteObject
 	 * @return Comparable<T> 		= ID at layer i
 	 */
 	public Comparable<T> getID(long queryToken, int layer) throws RemoteException {
-		//Get query token
+		//Get query token, collectQueryToken(..) logs why it failed
 		if (! this.getState().collectQueryToken(queryToken)) {
-			this.getState().getLog().severe("ERROR: wrong query token: "+queryToken);
 			return null;
 		}
 		Comparable<T> result;
@@ -228,9 +240,8 @@ public class WhanauRefPublicImpl<T>// extends UnicastRemoteObject
 	 * @throws RemoteException
 	 */
 	public Object[] successorsSample(long queryToken, Comparable<T> id) throws RemoteException {
-		//Get query token
+		//Get query token, collectQueryToken(..) logs why it failed
 		if (! this.getState().collectQueryToken(queryToken)) {
-			this.getState().getLog().severe("ERROR: Wrong query token: "+queryToken);
 			return null;
 		}
 		//Wait until we have our database
@@ -241,23 +252,8 @@ public class WhanauRefPublicImpl<T>// extends UnicastRemoteObject
 			this.getState().getLog().severe("fail due to InterruptedException on wait for setupStage 2");
 			return null;
 		}
-		//Sample successors
-		Object result[] = new Object[WhanauDHTConstants.SUCCESSORS_SAMPLE_SIZE];
-		Set<Comparable<T>> keySet = this.getState().getDatabase().keySet();
-		HashSet<Comparable<T>> newKeySet = new HashSet<Comparable<T>>(keySet);
-		newKeySet.add(id);
-		Object[] keyArray = newKeySet.toArray((Comparable<T>[])new Comparable[0]);
-		int pos, i;
-
-		//Sort
-		Arrays.sort(keyArray);
-		//Find where our id is in this array
-		pos = Arrays.binarySearch(keyArray, id);
-		//Copy first few into our results
-		for (i=0;i<WhanauDHTConstants.SUCCESSORS_SAMPLE_SIZE;i++) {
-			Comparable<T> key = (Comparable<T>) keyArray[(pos+i+1) % keyArray.length];
-			result[i] = this.getState().databaseGet(key);
-		}
+		//Sample successors from the sorted database, wrapping around
+		Object result[] = this.getState().getDatabaseIndex().successors(id, WhanauDHTConstants.SUCCESSORS_SAMPLE_SIZE);
 		this.getState().getLog().fine("success!");
 		return result;
 	}
@@ -308,7 +304,7 @@ public class WhanauRefPublicImpl<T>// extends UnicastRemoteObject
 	 */
 	public Object query(Comparable<T> key, int layer) throws RemoteException {
 		Object result;
-		Hashtable<Comparable<T>,Object> succTable = this.getState().succGet(layer);
+		Map<Comparable<T>,Object> succTable = this.getState().succGet(layer);
 		//Check if successor table at this layer exists
 		if (succTable == null) {
 			this.getState().getLog().warning("no successor table for that layer="+layer);
@@ -0,0 +1,187 @@
+package edu.mit.csail.whanausip.dht;
+
+import java.util.Arrays;
+
+import edu.mit.csail.whanausip.commontools.IndexedHashMap;
+
+/**
+ * Immutable sorted view of a table keyed by Comparable<T>,
+ * for lookups on the ring of keys (successors wrap around).
+ * Built once from a table, then read by any number of threads without locking.
+ * Rebuild it when the table changes.
+ *
+ * @author ryscheng
+ * @date 2010/08/30
+ */
+public class WhanauRingIndex<T> {
+	private Comparable<T>[] keys;		//Sorted keys
+	private Object[]		values;		//values[i] is the value of keys[i]
+
+	/**
+	 * Builds the index from a snapshot of table.
+	 * The caller must hold the lock of table, if any
+	 *
+	 * @param table IndexedHashMap<Comparable<T>, ?> = table to index
+	 */
+	public WhanauRingIndex(IndexedHashMap<Comparable<T>, ?> table) {
+		@SuppressWarnings("unchecked")
+		Comparable<T>[] sorted = (Comparable<T>[]) new Comparable[table.size()];
+		this.keys = sorted;
+		for (int i=0; i<this.keys.length; i++) {
+			this.keys[i] = table.getKey(i);
+		}
+		Arrays.sort(this.keys);
+		this.values = new Object[this.keys.length];
+		for (int i=0; i<this.keys.length; i++) {
+			this.values[i] = table.get(this.keys[i]);
+		}
+	}
+
+	/**
+	 * Returns the number of keys
+	 *
+	 * @return int
+	 */
+	public int size() {
+		return this.keys.length;
+	}
+
+	/**
+	 * Returns the key at a position
+	 *
+	 * @param i int = position, 0 <= i < size()
+	 * @return Comparable<T>
+	 */
+	public Comparable<T> getKey(int i) {
+		return this.keys[i];
+	}
+
+	/**
+	 * Returns the value at a position
+	 *
+	 * @param i int = position, 0 <= i < size()
+	 * @return Object
+	 */
+	public Object getValue(int i) {
+		return this.values[i];
+	}
+
+	/**
+	 * Returns the value of a key
+	 *
+	 * @param key Comparable<T>
+	 * @return Object = value, null if key is not in the index
+	 */
+	public Object get(Comparable<T> key) {
+		int pos = Arrays.binarySearch(this.keys, key);
+		return (pos >= 0) ? this.values[pos] : null;
+	}
+
+	/**
+	 * Returns the position of the first key after id (strictly greater),
+	 * wrapping around to 0 past the largest key
+	 *
+	 * @param id Comparable<T> = id to search for
+	 * @return int = position, 0 if the index is empty
+	 */
+	public int successorIndex(Comparable<T> id) {
+		int pos = this.upperBound(id);
+		return (pos >= this.keys.length) ? 0 : pos;
+	}
+
+	/**
+	 * Returns the position of the last key before id (strictly smaller),
+	 * wrapping around to size()-1 before the smallest key
+	 *
+	 * @param id Comparable<T> = id to search for
+	 * @return int = position, -1 if the index is empty
+	 */
+	public int predecessorIndex(Comparable<T> id) {
+		int pos = this.lowerBound(id) - 1;
+		return (pos < 0) ? this.keys.length-1 : pos;
+	}
+
+	/**
+	 * Returns the number of keys between id0 and key on the ring,
+	 * both included. If id0 > key, the range wraps around
+	 *
+	 * @param id0 	Comparable<T> = start of the range
+	 * @param key 	Comparable<T> = end of the range
+	 * @return int
+	 */
+	public int rangeSize(Comparable<T> id0, Comparable<T> key) {
+		int lo = this.lowerBound(id0);
+		int hi = this.upperBound(key);
+		if (compareKeys(id0, key) <= 0)
+			return Math.max(0, hi - lo);
+		return (this.keys.length - lo) + hi;
+	}
+
+	/**
+	 * Returns the key at offset in the range between id0 and key
+	 * (see rangeSize(...))
+	 *
+	 * @param id0 		Comparable<T> 	= start of the range
+	 * @param key 		Comparable<T> 	= end of the range
+	 * @param offset 	int 			= 0 <= offset < rangeSize(id0, key)
+	 * @return Comparable<T>
+	 */
+	public Comparable<T> getKeyInRange(Comparable<T> id0, Comparable<T> key, int offset) {
+		return this.keys[(this.lowerBound(id0) + offset) % this.keys.length];
+	}
+
+	/**
+	 * Returns the position of the first key >= id, size() if none
+	 *
+	 * @param id Comparable<T>
+	 * @return int
+	 */
+	private int lowerBound(Comparable<T> id) {
+		int pos = Arrays.binarySearch(this.keys, id);
+		return (pos >= 0) ? pos : -(pos+1);
+	}
+
+	/**
+	 * Returns the position of the first key > id, size() if none
+	 *
+	 * @param id Comparable<T>
+	 * @return int
+	 */
+	private int upperBound(Comparable<T> id) {
+		int pos = Arrays.binarySearch(this.keys, id);
+		return (pos >= 0) ? pos+1 : -(pos+1);
+	}
+
+	/**
+	 * Returns the values of the num keys after id on the ring.
+	 * If the index has fewer than num keys, the rest of the array is null
+	 *
+	 * @param id 	Comparable<T> 	= id to find successors of
+	 * @param num 	int 			= number of successors
+	 * @return Object[] 			= values of the successors, closest first
+	 */
+	public Object[] successors(Comparable<T> id, int num) {
+		Object[] result = new Object[num];
+		int n = Math.min(num, this.keys.length);
+		if (n <= 0)
+			return result;
+		int pos = this.successorIndex(id);
+		for (int i=0; i<n; i++) {
+			result[i] = this.values[(pos+i) % this.keys.length];
+		}
+		return result;
+	}
+
+	/**
+	 * Compares 2 keys of the ring.
+	 * Keys are only compared with keys of the same type T, so the cast is safe
+	 *
+	 * @param a Comparable<T>
+	 * @param b Comparable<T>
+	 * @return int = negative if a < b, 0 if equal, positive if a > b
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> int compareKeys(Comparable<T> a, Comparable<T> b) {
+		return a.compareTo((T) b);
+	}
+}
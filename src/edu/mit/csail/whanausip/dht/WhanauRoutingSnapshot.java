@@ -0,0 +1,179 @@
+package edu.mit.csail.whanausip.dht;
+
+import java.util.List;
+import java.util.Map;
+
+import edu.mit.csail.whanausip.commontools.IndexedHashMap;
+
+/**
+ * Immutable copy of the routing state of a node:
+ * database, ids, fingers and successors of every layer.
+ * WhanauState publishes a new snapshot after setup changes the routing state,
+ * so lookups and remote calls read it without taking any lock.
+ * Parts that did not change are shared with the previous snapshot.
+ *
+ * @author ryscheng
+ * @date 2010/08/30
+ */
+public class WhanauRoutingSnapshot<T> {
+	private final int 											setupNumber;	//setup() that built this
+	private final IndexedHashMap<Comparable<T>, Object> 		database;		//Database of random DHT records
+	private final WhanauRingIndex<T> 							databaseIndex;	//Sorted database
+	private final Comparable<T>[] 								ids;			//ID's per layer
+	private final IndexedHashMap<Comparable<T>, WhanauRPCClientStub<T>>[] 	
+																fingers;		//Fingers per layer, null if none
+	private final WhanauRingIndex<T>[] 							fingerIndex;	//Sorted fingers per layer
+	private final Map<Comparable<T>, Object>[] 					succ;			//Successors per layer
+
+	/**
+	 * Creates an empty snapshot
+	 *
+	 * @param numLayers int = number of layers
+	 */
+	public WhanauRoutingSnapshot(int numLayers) {
+		this.setupNumber = 0;
+		this.database = new IndexedHashMap<Comparable<T>, Object>();
+		this.databaseIndex = new WhanauRingIndex<T>(this.database);
+		@SuppressWarnings("unchecked")
+		Comparable<T>[] newIds = (Comparable<T>[]) new Comparable[numLayers];
+		this.ids = newIds;
+		this.fingers = newFingers(numLayers);
+		this.fingerIndex = newFingerIndex(numLayers);
+		this.succ = newSucc(numLayers);
+	}
+
+	/**
+	 * Creates a snapshot of the tables of WhanauState.
+	 * Must be called with the lock that guards those tables.
+	 * The database and fingers are copied only if they changed since prev.
+	 * Successor tables are already read-only copies (see WhanauState.succPut(...))
+	 *
+	 * @param prev 				WhanauRoutingSnapshot<T> 	= previous snapshot
+	 * @param setupNumber 		int 						= current setup number
+	 * @param database 			IndexedHashMap 				= database table
+	 * @param databaseChanged 	boolean 					= true if database changed since prev
+	 * @param ids 				Comparable<T>[] 			= ID's per layer
+	 * @param fingers 			List<IndexedHashMap> 		= finger tables per layer
+	 * @param fingersChanged 	boolean[] 					= true if a layer's fingers changed since prev
+	 * @param succ 				List<Map> 					= read-only successor tables per layer
+	 */
+	public WhanauRoutingSnapshot(WhanauRoutingSnapshot<T> prev, int setupNumber,
+								IndexedHashMap<Comparable<T>, Object> database, boolean databaseChanged,
+								Comparable<T>[] ids,
+								List<IndexedHashMap<Comparable<T>, WhanauRPCClientStub<T>>> fingers, boolean[] fingersChanged,
+								List<Map<Comparable<T>, Object>> succ) {
+		int numLayers = ids.length;
+		this.setupNumber = setupNumber;
+		if (databaseChanged) {
+			this.database = new IndexedHashMap<Comparable<T>, Object>(database);
+			this.databaseIndex = new WhanauRingIndex<T>(this.database);
+		} else {
+			this.database = prev.database;
+			this.databaseIndex = prev.databaseIndex;
+		}
+		this.ids = ids.clone();
+		this.fingers = newFingers(numLayers);
+		this.fingerIndex = newFingerIndex(numLayers);
+		this.succ = newSucc(numLayers);
+		for (int i=0; i<numLayers; i++) {
+			IndexedHashMap<Comparable<T>, WhanauRPCClientStub<T>> layer = fingers.get(i);
+			if (!fingersChanged[i]) {
+				this.fingers[i] = prev.fingers[i];
+				this.fingerIndex[i] = prev.fingerIndex[i];
+			} else if (layer != null) {
+				this.fingers[i] = new IndexedHashMap<Comparable<T>, WhanauRPCClientStub<T>>(layer);
+				this.fingerIndex[i] = new WhanauRingIndex<T>(this.fingers[i]);
+			}
+			this.succ[i] = succ.get(i);
+		}
+	}
+
+	/**
+	 * Returns the setup number when this snapshot was taken
+	 *
+	 * @return int
+	 */
+	public int getSetupNumber() {
+		return this.setupNumber;
+	}
+
+	/**
+	 * Returns the database (read-only, do not modify)
+	 *
+	 * @return IndexedHashMap<Comparable<T>, Object>
+	 */
+	public IndexedHashMap<Comparable<T>, Object> getDatabase() {
+		return this.database;
+	}
+
+	/**
+	 * Returns the sorted database
+	 *
+	 * @return WhanauRingIndex<T>
+	 */
+	public WhanauRingIndex<T> getDatabaseIndex() {
+		return this.databaseIndex;
+	}
+
+	/**
+	 * Returns the ID of a layer
+	 *
+	 * @param layer int
+	 * @return Comparable<T> = id, null if not chosen yet
+	 */
+	public Comparable<T> getId(int layer) {
+		return this.ids[layer];
+	}
+
+	/**
+	 * Returns the fingers of a layer (read-only, do not modify)
+	 *
+	 * @param layer int
+	 * @return IndexedHashMap<Comparable<T>, WhanauRPCClientStub<T>> = null if no finger table
+	 */
+	public IndexedHashMap<Comparable<T>, WhanauRPCClientStub<T>> getFingers(int layer) {
+		return this.fingers[layer];
+	}
+
+	/**
+	 * Returns the sorted fingers of a layer
+	 *
+	 * @param layer int
+	 * @return WhanauRingIndex<T> = null if no finger table
+	 */
+	public WhanauRingIndex<T> getFingerIndex(int layer) {
+		return this.fingerIndex[layer];
+	}
+
+	/**
+	 * Returns the successors of a layer
+	 *
+	 * @param layer int
+	 * @return Map<Comparable<T>, Object> = null if no successor table
+	 */
+	public Map<Comparable<T>, Object> getSucc(int layer) {
+		return this.succ[layer];
+	}
+
+	/**
+	 * Creates the per-layer arrays.
+	 * Generic arrays cannot be created directly, the casts are safe
+	 * since the arrays are only filled with elements of the right type
+	 *
+	 * @param numLayers int = number of layers
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> IndexedHashMap<Comparable<T>, WhanauRPCClientStub<T>>[] newFingers(int numLayers) {
+		return (IndexedHashMap<Comparable<T>, WhanauRPCClientStub<T>>[]) new IndexedHashMap[numLayers];
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> WhanauRingIndex<T>[] newFingerIndex(int numLayers) {
+		return (WhanauRingIndex<T>[]) new WhanauRingIndex[numLayers];
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> Map<Comparable<T>, Object>[] newSucc(int numLayers) {
+		return (Map<Comparable<T>, Object>[]) new Map[numLayers];
+	}
+}
@@ -1,12 +1,19 @@
 package edu.mit.csail.whanausip.dht;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Set;
-import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 import java.io.BufferedReader;
 import java.io.FileReader;
@@ -24,8 +31,13 @@ import edu.mit.csail.whanausip.sip.SIPMessageProcessor;
  * of the protocol (fingers, database, ids, (k,v) etc)
  * Also keeps track of all peers on the social network
  * 
- * This state object is protected by a lock (synchronized),
- * because different RMI threads may access it.
+ * Different RPC threads access this state concurrently.
+ * The routing state (database, ids, fingers, successors) is written
+ * by setup() into staging tables guarded by routingLock, and published
+ * as an immutable WhanauRoutingSnapshot at every setup stage.
+ * Lookups and remote calls read the published snapshot without locking.
+ * Peers are concurrent collections and query tokens are stateless (WhanauQueryTokens).
+ * The remaining (rarely written) state is protected by synchronized.
  * Ideally this will become serializable to be stored to file
  * 
  * @author ryscheng
@@ -43,35 +55,55 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	public static final int STAGE6 = 6;	//Node has fingers(layer=1) and succ(layer=1)
 										//Etc etc. last stage = numLayers*2 + 2
 	//Local Node Variables
-	private Hashtable<String,WhanauRPCClientStub<T>>	
+	private ConcurrentHashMap<String,WhanauRPCClientStub<T>>	
 								peers;			//All peers (key=name)
-	private Hashtable<String,Integer>
+	private ConcurrentHashMap<String,AtomicInteger>
 								peerRandWalkCount;//Counts numNodes*steps in calls to sampleNodes(..)
-	private Random 				randomGen;		//Random Number generator
-	private String 				localHostname;	//Local rmiregistry host
+	private WhanauRandom 		randomGen;		//Random Number generator (per-thread streams)
+	private volatile String 	localHostname;	//Local rmiregistry host
 	private int 				localPort;		//local rmiregistry port
 	private WhanauKeyState 		keyState;		//Stores the keys for this node
 	private RandomWalkCache<T> 	randWalks;		//Store cache of random walks
 	private Logger 				log;			//Logs activity
 	private String				logFile;		//File path to log file
 	//Whanau Variables
-	private int 				setupNumber;	//Indicates which setup() we're on
-	private int 				setupStage;		//Completed stage in setup()
+	private final AtomicInteger setupNumber = new AtomicInteger();
+												//Indicates which setup() we're on
+	private volatile int 		setupStage;		//Completed stage in setup()
+	private final ReentrantLock stageLock = new ReentrantLock();
+												//Guards waiting on setupStage, instead of
+												//the monitor, so waiting virtual threads
+												//do not pin their carrier thread
+	private final Condition 	stageChanged = stageLock.newCondition();
+												//Signaled when setupStage changes
 	private Hashtable <Comparable<T>, Serializable> 
 								myValues;		//Published values at this node
-	private Hashtable<Comparable<T>, Object>
+	private volatile IndexedHashMap<Comparable<T>, Object>
 								myRecords;		//Prepared DHT records containing our values
+												//Replaced, never modified, once published
 	private KeyValueChecker<T> 	kvChecker;		//Performs all functions with DHT records (ie. verify)
-	private HashSet<Long> 		queryTokens1;	//Set of valid queryTokens for public remote methods
-	private HashSet<Long> 		queryTokens2;	//Set of valid queryTokens for public remote methods
-	private Hashtable<Comparable<T>, Object>
+	private WhanauQueryTokens 	queryTokens;	//Issues and checks queryTokens for public remote methods
+	//Routing state being built by setup(), guarded by routingLock
+	private final ReentrantLock routingLock = new ReentrantLock();
+	private IndexedHashMap<Comparable<T>, Object>
 								database;		//Database of random DHT records
-	private ArrayList<Hashtable<Comparable<T>,WhanauRPCClientStub<T>>> 
+	private boolean 			databaseChanged;//database changed since last publish
+	private ArrayList<IndexedHashMap<Comparable<T>,WhanauRPCClientStub<T>>> 
 								fingers;		//A list of fingers per layer 
-												//Hashtable (key=id(layer) of finger, value=remote reference)
+												//(key=id(layer) of finger, value=remote reference)
+	private boolean[] 			fingersChanged;	//fingers of a layer changed since last publish
 	private Comparable<T>[] 	ids;			//ID's per layer (WhanauDHT)
-	private ArrayList<Hashtable<Comparable<T>, Object>>
-								succ;			//Successor list per layer (stored as [k,v])
+	private ArrayList<Map<Comparable<T>, Object>>
+								succ;			//Successor list per layer (stored as [k,v], read-only)
+	//Published routing state, read without locking
+	private volatile WhanauRoutingSnapshot<T>
+								routing;		//Last published snapshot
+	private final AtomicLong 	routingPublishes = new AtomicLong();
+												//Number of snapshots published
+	private final AtomicLong 	routingLockCount = new AtomicLong();
+												//Number of times routingLock was taken
+	private final AtomicLong 	routingLockContended = new AtomicLong();
+												//Number of times routingLock was already held
 	
 	/**
 	 * Creates a new set of WhanauDHT node state
@@ -116,37 +148,38 @@ public class WhanauState<T> implements SIPMessageProcessor {
         }
 		System.setProperty("java.rmi.server.hostname", host);
 		**/
-		this.setSetupStage(0);
-		this.setupNumber = 0;
+		this.setupNumber.set(0);
 		//Local node
 		this.localHostname = host;
 		this.localPort = port;
-		this.peers = new Hashtable<String,WhanauRPCClientStub<T>>();
-		this.peerRandWalkCount = new Hashtable<String, Integer>();
-		this.randomGen = new Random();
+		this.peers = new ConcurrentHashMap<String,WhanauRPCClientStub<T>>();
+		this.peerRandWalkCount = new ConcurrentHashMap<String, AtomicInteger>();
+		this.randomGen = new WhanauRandom();
 		this.log = log;
 		this.logFile = logFile;
 		//Whanau DHT
 		this.kvChecker = kvChecker;
-		this.database = new Hashtable<Comparable<T>, Object>();
+		this.database = new IndexedHashMap<Comparable<T>, Object>();
 		this.myValues = new Hashtable<Comparable<T>, Serializable>();
-		this.myRecords = new Hashtable<Comparable<T>, Object>();
+		this.myRecords = new IndexedHashMap<Comparable<T>, Object>();
 		this.addMyValue(value);
-		this.queryTokens1 = new HashSet<Long>();
-		this.queryTokens2 = new HashSet<Long>();
-		this.fingers = new ArrayList<Hashtable<Comparable<T>, WhanauRPCClientStub<T>>>(this.getNumLayers());
+		this.queryTokens = new WhanauQueryTokens(this.getSetupNumber(), WhanauDHTConstants.QUERY_TOKEN_WINDOW);
+		this.fingers = new ArrayList<IndexedHashMap<Comparable<T>, WhanauRPCClientStub<T>>>(this.getNumLayers());
 		for (int i=0;i<this.getNumLayers();i++) {
 			this.fingers.add(null);
 		}
+		this.fingersChanged = new boolean[this.getNumLayers()];
 		this.ids = (Comparable<T>[]) new Comparable[this.getNumLayers()];
 		this.clearIds();
-		this.succ = new ArrayList<Hashtable<Comparable<T>,Object>>(this.getNumLayers());
+		this.succ = new ArrayList<Map<Comparable<T>,Object>>(this.getNumLayers());
 		for (int i=0;i<this.getNumLayers();i++) {
 			this.succ.add(null);
 		}
+		this.routing = new WhanauRoutingSnapshot<T>(this.getNumLayers());
 		this.randWalks = new RandomWalkCache<T>(this, WhanauDHTConstants.DEFAULT_RANDWALK_CACHE_SIZE);
 		//Crypto
 		this.keyState = keyState;
+		this.setSetupStage(0);
 		
 		return;
 	}
@@ -224,7 +257,7 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	 * 
 	 * @return String
 	 */
-	public synchronized String getPubKeyHash() {
+	public String getPubKeyHash() {
 		return this.keyState.getPubKeyHash();
 	}
 	
@@ -233,7 +266,7 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	 * 
 	 * @return String
 	 */
-	public synchronized String getLocalHostname() {
+	public String getLocalHostname() {
 		return localHostname;
 	}
 	
@@ -242,7 +275,7 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	 * 
 	 * @param host String = new hostname
 	 */
-	public synchronized void setLocalHostname(String host) {
+	public void setLocalHostname(String host) {
 		this.localHostname = host;
 	}
 	
@@ -251,7 +284,7 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	 * 
 	 * @return int
 	 */
-	public synchronized int getLocalPort() {
+	public int getLocalPort() {
 		return localPort;
 	}
 	
@@ -261,16 +294,25 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	 * 
 	 * @return SSLContex
 	 */
-	public synchronized SSLContext getSSLContext(){
+	public SSLContext getSSLContext(){
 		return keyState.getSslCtx();
 	}
 	
+	/**
+	 * Returns the key state (keys, SSL context and connection pool)
+	 * 
+	 * @return WhanauKeyState
+	 */
+	public WhanauKeyState getKeyState(){
+		return this.keyState;
+	}
+	
 	/**
 	 * Returns the public key hash
 	 * 
 	 * @return String
 	 */
-	public synchronized String getHashHostPort(){
+	public String getHashHostPort(){
 		return (this.getPubKeyHash()+":"+this.getLocalHostname()+":"+this.getLocalPort());
 	}
 	
@@ -279,7 +321,7 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	 * 
 	 * @return String
 	 */
-	public synchronized String getStateStr(){
+	public String getStateStr(){
 		
 		Comparable<T> id;
 		String result="-----State "+this.getLocalHostname()+":"+this.getLocalPort()+":"+this.getPubKeyHash()+"-----\n";
@@ -296,14 +338,20 @@ public class WhanauState<T> implements SIPMessageProcessor {
 			result+="\t \t "+p.getHashHostPort()+" - ";
 			if (this.peers.get(key).isActive()) result+="active";
 			else result+="inactive";
-			result += " - "+this.peerRandWalkCount.get(key);
+			result += " - "+this.peerRandWalkCount.get(key).get();
 			result += "\n";
 		}
 		result+=this.randWalks.toString();
+		result+=this.keyState.getConnPool().toString();
+		result+=this.keyState.getHandshakeStatsStr();
+		result+=MethodThreadScheduler.getStatsStr();
+		result+=this.getRoutingStatsStr();
+		result+=this.queryTokens.getStatsStr();
 		result+="Database\n";
 		result+="\t <key>==<value>\n";
-		for (Comparable<T> key: this.getDatabase().keySet()) {
-			result+="\t "+this.getKVChecker().keyToString(key)+"=="+this.getKVChecker().valueToString(this.databaseGet(key))+"\n";
+		IndexedHashMap<Comparable<T>,Object> db = this.getDatabase();
+		for (int i=0; i<db.size(); i++) {
+			result+="\t "+this.getKVChecker().keyToString(db.getKey(i))+"=="+this.getKVChecker().valueToString(db.getValue(i))+"\n";
 		}
 		for (int j=0; j<this.getNumLayers();j++){
 			id = this.idGet(j);
@@ -311,10 +359,10 @@ public class WhanauState<T> implements SIPMessageProcessor {
 				//Fingers
 				result+="ID"+j+"="+this.getKVChecker().keyToString(id)+"\n";
 				result+="\t Fingers to ID"+j+" \n";
-				Set<Comparable<T>> fingerKeys = this.fingerKeys(j);
-				if (fingerKeys != null) {
-					for (Comparable<T> key:fingerKeys) {
-						result+="\t "+this.getKVChecker().keyToString(key)+"\n";
+				WhanauRingIndex<T> fingerIds = this.getFingerIndex(j);
+				if (fingerIds != null) {
+					for (int i=0; i<fingerIds.size(); i++) {
+						result+="\t "+this.getKVChecker().keyToString(fingerIds.getKey(i))+"\n";
 					}
 				} else {
 					result+="\t\t NULL Finger Table \n";
@@ -323,7 +371,7 @@ public class WhanauState<T> implements SIPMessageProcessor {
 				//Successors
 				result+="\t Successors to ID"+j+"\n";
 				result+="\t <key>:<value>\n";
-				Hashtable<Comparable<T>,Object> succTable = this.succGet(j);
+				Map<Comparable<T>,Object> succTable = this.succGet(j);
 				if (succTable != null) {
 					for (Comparable<T> key:succTable.keySet()) {
 						result+="\t "+this.getKVChecker().keyToString(key)+"="+this.getKVChecker().valueToString(succTable.get(key))+"\n";
@@ -345,17 +393,36 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	 * 
 	 * @return int = number of layers
 	 */
-	public synchronized int getNumLayers(){
+	public int getNumLayers(){
 		return WhanauDHTConstants.NUMLAYERS;
 	}
 	
+	/**
+	 * Returns the random number generator of this node
+	 * 
+	 * @return WhanauRandom
+	 */
+	public WhanauRandom getRandom() {
+		return this.randomGen;
+	}
+	
+	/**
+	 * Makes the random numbers of this node reproducible
+	 * 
+	 * @param seed long = root seed of all threads' random streams
+	 */
+	public void setRandomSeed(long seed) {
+		this.randomGen.setSeed(seed);
+	}
+	
 	/**
 	 * Returns a random integer between [0, i-1]
+	 * Draws from the calling thread's stream, so this takes no lock
 	 * 
 	 * @param i 	= ceiling for random number
 	 * @return int 	= random number
 	 */
-	public synchronized int nextRandInt(int i){
+	public int nextRandInt(int i){
 		return this.randomGen.nextInt(i);
 	}
 	
@@ -364,7 +431,7 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	 * 
 	 * @return Long = random numberS
 	 */
-	public synchronized Long nextRandLong(){
+	public Long nextRandLong(){
 		return this.randomGen.nextLong();
 	}
 	
@@ -372,41 +439,48 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	 *************** QUERY TOKENS ***************
 	*********************************************/
 	/**
-	 * Generate a new query token (random long)
-	 * Make sure that it hasn't already been generated
+	 * Generate a new query token, valid for this setup and the next
+	 * Nothing is stored per token (see WhanauQueryTokens)
 	 * 
 	 * @return long = new query token
 	 */
-	public synchronized long generateQueryToken() {
-		long result = this.nextRandLong();
-		while (this.queryTokens1.contains(result)) {
-			result = this.nextRandLong();
-		}
-		this.queryTokens1.add(result);
-		return result;
+	public long generateQueryToken() {
+		return this.queryTokens.generate();
 	}
 	
 	/**
 	 * Consumes the given query token.
 	 * If it was valid, return true
-	 * otherwise return false
+	 * otherwise log why and return false.
+	 * Expired tokens are genuine but too old, only logged as a warning
 	 * 
 	 * @param tok 	long 	= query token
 	 * @return 		boolean = true if valid token, false otherwise
 	 */
-	public synchronized boolean collectQueryToken(long tok) {
-		if (this.queryTokens1.contains(tok))
-			return this.queryTokens1.remove(tok);
-		else
-			return this.queryTokens2.remove(tok);
+	public boolean collectQueryToken(long tok) {
+		int status = this.queryTokens.check(tok);
+		if (status == WhanauQueryTokens.EXPIRED)
+			this.getLog().warning("Expired query token: "+tok);
+		else if (status == WhanauQueryTokens.REPLAYED)
+			this.getLog().severe("ERROR: Replayed query token: "+tok);
+		else if (status == WhanauQueryTokens.FORGED)
+			this.getLog().severe("ERROR: Wrong query token: "+tok);
+		return (status == WhanauQueryTokens.VALID);
 	}
 	
 	/**
-	 * Remove all query tokens
+	 * Starts a new query token period for the current setup number.
+	 * Tokens from the previous setup stay valid until the next call.
+	 * The window of the new setup is sized from the walks per setup
+	 * (see QUERY_TOKEN_WALK_FACTOR)
+	 * 
+	 * @param walksPerSetup int = random walks of a node per setup, rd + l*(rf + rs)
 	 */
-	public synchronized void clearQueryTokens() {
-		this.queryTokens2 = this.queryTokens1;
-		this.queryTokens1 = new HashSet<Long>();
+	public void clearQueryTokens(int walksPerSetup) {
+		long window = (long) walksPerSetup * WhanauDHTConstants.QUERY_TOKEN_WALK_FACTOR;
+		window = Math.max(window, WhanauDHTConstants.QUERY_TOKEN_WINDOW);
+		window = Math.min(window, WhanauQueryTokens.getMaxWindow());
+		this.queryTokens.rotate(this.getSetupNumber(), (int) window);
 	}
 
 	/******************************************
@@ -420,22 +494,22 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	public synchronized void addMyValue(Serializable value) {
 		Object record = this.getKVChecker().createRecord(value, this.getLocalHostname(), this.getLocalPort());
 		this.myValues.put(this.getKVChecker().getKeyFromRecord(record), value);
-		this.myRecords.put(this.getKVChecker().getKeyFromRecord(record), record);
+		IndexedHashMap<Comparable<T>, Object> newRecords = new IndexedHashMap<Comparable<T>, Object>(this.myRecords);
+		newRecords.put(this.getKVChecker().getKeyFromRecord(record), record);
+		this.myRecords = newRecords;
 	}
 	
 	/**
 	 * Returns a random publishable record from this node
+	 * Called for every random walk: O(1), without locking or allocating
 	 * 
 	 * @return Object = random record 
 	 */
-	public synchronized Object getRandomMyRecord() {
-		Comparable<T>[] keys = this.myRecords.keySet().toArray((Comparable<T>[]) new Comparable[0]);
-		if (keys.length<=0) {
+	public Object getRandomMyRecord() {
+		Object result = this.myRecords.randomValue(this.randomGen);
+		if (result == null)
 			this.getLog().warning("No stored key/value pairs");
-			return null;
-		}
-		Comparable<T> k = keys[randomGen.nextInt(keys.length)];
-		return this.myRecords.get(k);
+		return result;
 	}
 	
 	/**
@@ -443,10 +517,11 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	 * moves them to the record store
 	 */
 	public synchronized void resignValues() {
-		this.myRecords = new Hashtable<Comparable<T>, Object>();
+		IndexedHashMap<Comparable<T>, Object> newRecords = new IndexedHashMap<Comparable<T>, Object>();
 		for (Comparable<T> key : this.myValues.keySet()) {
-			this.myRecords.put(key, this.getKVChecker().createRecord(this.myValues.get(key), this.getLocalHostname(), this.getLocalPort()));
+			newRecords.put(key, this.getKVChecker().createRecord(this.myValues.get(key), this.getLocalHostname(), this.getLocalPort()));
 		}
+		this.myRecords = newRecords;
 	}
 	
 	/***************************************
@@ -460,9 +535,9 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	 * @return WhanauRPCClientStub<T>	= previous value associated with
 	 * 									the key (p.getIdentifier())
 	 */
-	public synchronized WhanauRPCClientStub<T> addPeer(WhanauRPCClientStub<T> p) {
+	public WhanauRPCClientStub<T> addPeer(WhanauRPCClientStub<T> p) {
 		WhanauRPCClientStub<T> result = this.peers.put(p.getPubKeyHash(), p);
-		this.peerRandWalkCount.put(p.getPubKeyHash(), 0);
+		this.peerRandWalkCount.put(p.getPubKeyHash(), new AtomicInteger());
 		this.getLog().finest("peer="+p.getHashHostPort());
 		return result;
 	}
@@ -470,9 +545,9 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	/**
 	 * Removes all peers and resets the random walk counters
 	 */
-	public synchronized void removeAllPeers() {
-		this.peers = new Hashtable<String,WhanauRPCClientStub<T>>();
-		this.peerRandWalkCount = new Hashtable<String, Integer>();
+	public void removeAllPeers() {
+		this.peers.clear();
+		this.peerRandWalkCount.clear();
 		this.getLog().fine("Done");
 	}
 	
@@ -482,7 +557,7 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	 * @param p WhanauRPCClientStub<T> 	= peer to remove
 	 * @return WhanauRPCClientStub<T> 	= peer removed. null if peer does not exist
 	 */
-	public synchronized WhanauRPCClientStub<T> removePeer(WhanauRPCClientStub<T> p) {
+	public WhanauRPCClientStub<T> removePeer(WhanauRPCClientStub<T> p) {
 		WhanauRPCClientStub<T> result = this.peers.remove(p.getPubKeyHash());
 		this.peerRandWalkCount.remove(p.getPubKeyHash());
 		this.getLog().finest("peer="+p.getHashHostPort());
@@ -495,7 +570,7 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	 * @param hash String 				= peer's public key hash
 	 * @return WhanauRPCClientStub<T> 	= peer's reference. null if does not exist
 	 */
-	public synchronized WhanauRPCClientStub<T> getPeerByPubKeyHash(String hash) {
+	public WhanauRPCClientStub<T> getPeerByPubKeyHash(String hash) {
 		return peers.get(hash);
 	}
 	
@@ -504,7 +579,7 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	 * 
 	 * @return Set<String>
 	 */
-	public synchronized Set<String> getAllPeerKeys() {
+	public Set<String> getAllPeerKeys() {
 		return this.peers.keySet();
 	}
 	
@@ -514,7 +589,7 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	 * 
 	 * @return Set<WhanauRPCClientStub<T>> = active peer references
 	 */
-	public synchronized Set<WhanauRPCClientStub<T>> getActivePeers(){
+	public Set<WhanauRPCClientStub<T>> getActivePeers(){
 		Set<String> keySet = this.getAllPeerKeys();
 		HashSet<WhanauRPCClientStub<T>> activePeerSet = new HashSet<WhanauRPCClientStub<T>>();
 		
@@ -530,7 +605,7 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	/**
 	 * Resets all peer's active status to true
 	 */
-	public synchronized void resetPeerActiveStatus() {
+	public void resetPeerActiveStatus() {
 		Set<String> keys = this.getAllPeerKeys();
 		for (String key : keys) {
 			this.getPeerByPubKeyHash(key).setActiveStatus(true);
@@ -544,16 +619,16 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	 * @param pubKeyHash String = pubKeyHash of peer
 	 * @return int 				= random walk count
 	 */
-	public synchronized int getPeerRandWalkCount(String pubKeyHash) {
-		return this.peerRandWalkCount.get(pubKeyHash);
+	public int getPeerRandWalkCount(String pubKeyHash) {
+		return this.peerRandWalkCount.get(pubKeyHash).get();
 	}
 	
 	/**
 	 * Resets all random walk counts without removing peers
 	 */
-	public synchronized void resetPeerRandWalkCount(){
-		for (String key : this.peerRandWalkCount.keySet()) {
-			this.peerRandWalkCount.put(key, 0);
+	public void resetPeerRandWalkCount(){
+		for (AtomicInteger count : this.peerRandWalkCount.values()) {
+			count.set(0);
 		}
 	}
 	
@@ -564,11 +639,10 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	 * @param pubKeyHash String = pubKeyHash of peer
 	 * @param toAdd		 int	= count to add
 	 */
-	public synchronized void addPeerRandWalkCount(String pubKeyHash, int toAdd) {
-		if (this.peerRandWalkCount.containsKey(pubKeyHash)) {
-			int newValue = this.peerRandWalkCount.get(pubKeyHash)+toAdd;
-			this.peerRandWalkCount.put(pubKeyHash, newValue);
-		}
+	public void addPeerRandWalkCount(String pubKeyHash, int toAdd) {
+		AtomicInteger count = this.peerRandWalkCount.get(pubKeyHash);
+		if (count != null)
+			count.addAndGet(toAdd);
 	}
 	
 	/**
@@ -582,6 +656,14 @@ public class WhanauState<T> implements SIPMessageProcessor {
 		this.randWalks.reset(depth);
 	}
 	
+	/**
+	 * Starts filling all levels of the random walk cache in the background
+	 * (only in background refill mode)
+	 */
+	public void prefillRandWalks() {
+		this.randWalks.prefill();
+	}
+	
 	/*******************************************
 	 *************** SETUP STAGE ***************
 	 *******************************************/
@@ -590,32 +672,48 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	 * 
 	 * @return int = setup stage
 	 */
-	public synchronized int getSetupStage() {
+	public int getSetupStage() {
 		return setupStage;
 	}
 	
 	/**
 	 * Waits for the setupState of this to be at least desiredStage.
 	 * If not, the thread will wait until.
+	 * Waits on stageLock, not on this, so many waiting requests
+	 * neither block the rest of the state nor pin virtual threads
 	 * 
 	 * @param desiredStage int = The setupStage should be at least as large as this
 	 * @throws InterruptedException = if another thread interrupts this while waiting
 	 */
-	public synchronized void waitForSetupStage(int desiredStage) throws InterruptedException {
-		while (this.getSetupStage() < desiredStage)	{
-			this.wait();
+	public void waitForSetupStage(int desiredStage) throws InterruptedException {
+		if (this.setupStage >= desiredStage)
+			return;
+		this.stageLock.lock();
+		try {
+			while (this.setupStage < desiredStage) {
+				this.stageChanged.await();
+			}
+		} finally {
+			this.stageLock.unlock();
 		}
 	}
 	
 	/**
 	 * Indicate that the whanu protocol has reached the next setup state.
-	 * Notify all sleeping threads
+	 * Publishes the routing state built so far, then
+	 * notifies all sleeping threads
 	 * 
 	 * @param setupState int = new state of setup
 	 */
-	public synchronized void setSetupStage(int setupStage) {
-		this.setupStage = setupStage;
-		this.notifyAll();
+	public void setSetupStage(int setupStage) {
+		this.publishRouting();
+		this.stageLock.lock();
+		try {
+			this.setupStage = setupStage;
+			this.stageChanged.signalAll();
+		} finally {
+			this.stageLock.unlock();
+		}
 	}
 	
 	/**
@@ -624,8 +722,8 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	 * 
 	 * @return int
 	 */
-	public synchronized int getSetupNumber() {
-		return setupNumber;
+	public int getSetupNumber() {
+		return this.setupNumber.get();
 	}
 	
 	/**
@@ -634,8 +732,65 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	 * 
 	 * @return int
 	 */
-	public synchronized int incSetupNumber() {
-		return ++this.setupNumber;
+	public int incSetupNumber() {
+		return this.setupNumber.incrementAndGet();
+	}
+	
+	/***************************************
+	 *************** ROUTING ***************
+	 ***************************************/
+	/**
+	 * Takes routingLock, counting how often it was already held
+	 * (by another setup writer or a publish)
+	 */
+	private void lockRouting() {
+		this.routingLockCount.incrementAndGet();
+		if (!this.routingLock.tryLock()) {
+			this.routingLockContended.incrementAndGet();
+			this.routingLock.lock();
+		}
+	}
+	
+	/**
+	 * Publishes the staging tables as a new routing snapshot.
+	 * Only tables that changed since the last publish are copied.
+	 * Called at every setup stage, so a stage is visible to readers
+	 * before other nodes are told that it is finished
+	 */
+	private void publishRouting() {
+		this.lockRouting();
+		try {
+			this.routing = new WhanauRoutingSnapshot<T>(this.routing, this.getSetupNumber(), 
+										this.database, this.databaseChanged, this.ids, 
+										this.fingers, this.fingersChanged, this.succ);
+			this.databaseChanged = false;
+			Arrays.fill(this.fingersChanged, false);
+			this.routingPublishes.incrementAndGet();
+		} finally {
+			this.routingLock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the last published routing state.
+	 * Never locks, the snapshot is immutable
+	 * 
+	 * @return WhanauRoutingSnapshot<T>
+	 */
+	public WhanauRoutingSnapshot<T> getRouting() {
+		return this.routing;
+	}
+	
+	/**
+	 * Returns the routing lock counters, to measure contention
+	 * 
+	 * @return String
+	 */
+	public String getRoutingStatsStr() {
+		return "Routing: snapshot of setup="+this.routing.getSetupNumber()+
+				", publishes="+this.routingPublishes.get()+
+				", lock taken="+this.routingLockCount.get()+
+				", contended="+this.routingLockContended.get()+"\n";
 	}
 	
 	/****************************************
@@ -644,13 +799,20 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	
 	/**
 	 * Just a shell function for put into database
+	 * Readers see it at the next setup stage
 	 * 
 	 * @param key 	Comparable 	= key
 	 * @param value Object 		= value
 	 * @return 		Object 		= result from database.put
 	 */
-	public synchronized Object databasePut(Comparable<T> key, Object value){
-		return this.database.put(key,value);
+	public Object databasePut(Comparable<T> key, Object value){
+		this.lockRouting();
+		try {
+			this.databaseChanged = true;
+			return this.database.put(key,value);
+		} finally {
+			this.routingLock.unlock();
+		}
 	}
 
 	/**
@@ -659,17 +821,27 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	 * @param key Comparable = key
 	 * @return Object = result from database.get
 	 */
-	public synchronized Object databaseGet(Comparable<T> key){
-		return this.database.get(key);
+	public Object databaseGet(Comparable<T> key){
+		return this.routing.getDatabase().get(key);
+	}
+	
+	/**
+	 * Returns entire database (read-only, do not modify)
+	 * 
+	 * @return IndexedHashMap<Comparable<T>,Object>
+	 */
+	public IndexedHashMap<Comparable<T>,Object> getDatabase() {
+		return this.routing.getDatabase();
 	}
 	
 	/**
-	 * Returns entire database
+	 * Returns a sorted view of the database, for successorsSample.
+	 * Built once per published snapshot
 	 * 
-	 * @return Hashtable<Comparable<T>,Object>
+	 * @return WhanauRingIndex<T>
 	 */
-	public synchronized Hashtable<Comparable<T>,Object> getDatabase() {
-		return this.database;
+	public WhanauRingIndex<T> getDatabaseIndex() {
+		return this.routing.getDatabaseIndex();
 	}
 	
 	/**
@@ -677,21 +849,24 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	 * 
 	 * @return Comparable = random key
 	 */
-	public synchronized Comparable<T> getRandomKeyInDatabase() {
-		Set<Comparable<T>> keySet = this.database.keySet();
-		Comparable<T>[] keys = keySet.toArray((Comparable<T>[]) new Comparable[0]);
-		if (keys.length<=0) {
+	public Comparable<T> getRandomKeyInDatabase() {
+		Comparable<T> result = this.getDatabase().randomKey(this.randomGen);
+		if (result == null)
 			this.getLog().warning("No entries in database");
-			return null;
-		}
-		return keys[randomGen.nextInt(keys.length)];
+		return result;
 	}
 	
 	/**
 	 * Clears out the database before we get a new one
 	 */
-	public synchronized void clearDatabase() {
-		this.database = new Hashtable<Comparable<T>, Object>();
+	public void clearDatabase() {
+		this.lockRouting();
+		try {
+			this.database = new IndexedHashMap<Comparable<T>, Object>();
+			this.databaseChanged = true;
+		} finally {
+			this.routingLock.unlock();
+		}
 	}
 	
 	/***************************************
@@ -699,22 +874,30 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	 ***************************************/
 	/**
 	 * Just a shell function for put into finger hashtable
+	 * Readers see it at the next setup stage
 	 * 
 	 * @param layer	int						= layer to place finger
 	 * @param id_i 	Comparable<T> 			= id(i) for this finger
 	 * @param n 	WhanauRPCClientStub<T> 	= new finger
 	 * @return WhanauRPCClientStub<T> 		= result from fingers.put(id0,n)
 	 */
-	public synchronized WhanauRPCClientStub<T> fingerPut(int layer, Comparable<T> id_i, WhanauRPCClientStub<T> n){
-		Hashtable<Comparable<T>, WhanauRPCClientStub<T>> currTable = this.fingers.get(layer);
-		if (currTable == null) {
-			currTable = new Hashtable<Comparable<T>, WhanauRPCClientStub<T>>();
-			this.fingers.set(layer, currTable);
-		}
-		if ((id_i != null) && (n != null)) { 
-			return currTable.put(id_i,n);
-		} else {
-			return null;
+	public WhanauRPCClientStub<T> fingerPut(int layer, Comparable<T> id_i, WhanauRPCClientStub<T> n){
+		this.lockRouting();
+		try {
+			IndexedHashMap<Comparable<T>, WhanauRPCClientStub<T>> currTable = this.fingers.get(layer);
+			if (currTable == null) {
+				currTable = new IndexedHashMap<Comparable<T>, WhanauRPCClientStub<T>>();
+				this.fingers.set(layer, currTable);
+				this.fingersChanged[layer] = true;
+			}
+			if ((id_i != null) && (n != null)) { 
+				this.fingersChanged[layer] = true;
+				return currTable.put(id_i,n);
+			} else {
+				return null;
+			}
+		} finally {
+			this.routingLock.unlock();
 		}
 	}
 	
@@ -723,8 +906,25 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	 * 
 	 * @param layer int = layer to reset finger table
 	 */
-	public synchronized void clearFingers(int layer) {
-		this.fingers.set(layer, new Hashtable<Comparable<T>, WhanauRPCClientStub<T>>());
+	public void clearFingers(int layer) {
+		this.lockRouting();
+		try {
+			this.fingers.set(layer, new IndexedHashMap<Comparable<T>, WhanauRPCClientStub<T>>());
+			this.fingersChanged[layer] = true;
+		} finally {
+			this.routingLock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns a sorted view of the finger IDs at a layer, for chooseFinger.
+	 * Built once per published snapshot
+	 * 
+	 * @param layer int 			= layer of the fingers
+	 * @return WhanauRingIndex<T> 	= finger IDs and references, null if no finger table
+	 */
+	public WhanauRingIndex<T> getFingerIndex(int layer) {
+		return this.routing.getFingerIndex(layer);
 	}
 	
 	/**
@@ -735,8 +935,8 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	 * @param key 	Comparable<T>	 	= finger id(i)
 	 * @return WhanauRPCClientStub<T> 	= remote reference to this finger
 	 */
-	public synchronized WhanauRPCClientStub<T> fingerGet(int layer, Comparable<T> key) {
-		Hashtable<Comparable<T>, WhanauRPCClientStub<T>> currTable = this.fingers.get(layer);
+	public WhanauRPCClientStub<T> fingerGet(int layer, Comparable<T> key) {
+		IndexedHashMap<Comparable<T>, WhanauRPCClientStub<T>> currTable = this.routing.getFingers(layer);
 		if (currTable == null) {
 			this.getLog().warning("No finger table at layer="+layer);
 			return null;
@@ -744,36 +944,17 @@ public class WhanauState<T> implements SIPMessageProcessor {
 		return currTable.get(key);
 	}
 	
-	/**
-	 * Shell function for set of keys (id(i)) in fingers hashtable
-	 * 
-	 * @param layer int				= layer to retrieve finger keys from
-	 * @return Set<Comparable<T>> 	= id(i) for all fingers
-	 */
-	public synchronized Set<Comparable<T>> fingerKeys(int layer) {
-		Hashtable<Comparable<T>, WhanauRPCClientStub<T>> currTable = this.fingers.get(layer);
-		if (currTable == null) {
-			this.getLog().warning("No finger table at layer="+layer);
-			return null;
-		}	
-		return currTable.keySet();
-	}
-	
 	/**
 	 * Returns a random finger's id_i in a layer
 	 * @param layer int 	 = layer to get finger from
 	 * @return Comparable<T> = finger's id_i 
 	 */
-	public synchronized Comparable<T> getRandomFingerId(int layer) {
-		Set<Comparable<T>> fingerSet = this.fingerKeys(layer);
-		if (fingerSet == null)
-			return null;
-		Comparable<T>[] array = fingerSet.toArray(new Comparable[0]);
-		if (array.length<=0) {
+	public Comparable<T> getRandomFingerId(int layer) {
+		IndexedHashMap<Comparable<T>, WhanauRPCClientStub<T>> currTable = this.routing.getFingers(layer);
+		Comparable<T> result = (currTable == null) ? null : currTable.randomKey(this.randomGen);
+		if (result == null)
 			this.getLog().warning("No finger table at layer="+layer);
-			return null;
-		}
-		return array[randomGen.nextInt(array.length)];
+		return result;
 	}
 	
 	/***************************************
@@ -785,9 +966,9 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	 * @param i int = get id from layer i
 	 * @return Object = id, null if out of bounds
 	 */
-	public synchronized Comparable<T> idGet(int i) {
+	public Comparable<T> idGet(int i) {
 		if ((i>=0)&&(i<this.getNumLayers())){
-			return this.ids[i];
+			return this.routing.getId(i);
 		} else {
 			this.getLog().warning("Layer out of bounds, requested layer="+i);
 			return null;
@@ -797,21 +978,32 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	/**
 	 * Clears out all ID's with null
 	 */
-	public synchronized void clearIds(){
-		for (int i = 0; i < this.ids.length; i++){
-			this.ids[i] = null;
+	public void clearIds(){
+		this.lockRouting();
+		try {
+			for (int i = 0; i < this.ids.length; i++){
+				this.ids[i] = null;
+			}
+		} finally {
+			this.routingLock.unlock();
 		}
 	}
 	
 	/**
 	 * Puts an id into its id array. Does nothing if i out of bounds.
+	 * Readers see it at the next setup stage
 	 * 
 	 * @param i  int 	= put into layer i
 	 * @param id Object = id to put into array
 	 */
-	public synchronized void idPut(int i, Comparable<T> id){
+	public void idPut(int i, Comparable<T> id){
 		if ((i>=0)&&(i<this.getNumLayers())){
-			this.ids[i] = id;
+			this.lockRouting();
+			try {
+				this.ids[i] = id;
+			} finally {
+				this.routingLock.unlock();
+			}
 		} else {
 			this.getLog().warning("Layer out of bounds, requested layer="+i);
 		}
@@ -824,11 +1016,11 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	 * Gets an successor list from its succ array. 
 	 * 
 	 * @param i int		 = get succ list from layer i
-	 * @return Hashtable = successor list, null if out of bounds
+	 * @return Map 		 = successor list (read-only), null if out of bounds
 	 */
-	public synchronized Hashtable<Comparable<T>,Object> succGet(int i){
+	public Map<Comparable<T>,Object> succGet(int i){
 		if ((i>=0)&&(i<this.getNumLayers())){
-			return this.succ.get(i);
+			return this.routing.getSucc(i);
 		}
 		else {
 			this.getLog().warning("Layer out of bounds, requested layer="+i);
@@ -836,14 +1028,22 @@ public class WhanauState<T> implements SIPMessageProcessor {
 		}
 	}
 	/**
-	 * Puts a successor list into its succ array. Does nothing if i out of bounds.
+	 * Puts a copy of a successor list into its succ array. Does nothing if i out of bounds.
+	 * Readers see it at the next setup stage
 	 * 
 	 * @param i 	int 							= put into layer i
 	 * @param id 	Hashtable<Comparable, Object> 	= successor list to put into array
 	 */
-	public synchronized void succPut(int i, Hashtable<Comparable<T>,Object> newList){
+	public void succPut(int i, Hashtable<Comparable<T>,Object> newList){
 		if ((i>=0)&&(i<this.getNumLayers())){
-			this.succ.set(i, newList);
+			Map<Comparable<T>,Object> copy = Collections.unmodifiableMap(
+												new HashMap<Comparable<T>,Object>(newList));
+			this.lockRouting();
+			try {
+				this.succ.set(i, copy);
+			} finally {
+				this.routingLock.unlock();
+			}
 		} else {
 			this.getLog().warning("Layer out of bounds, requested layer="+i);
 		}
@@ -863,7 +1063,20 @@ public class WhanauState<T> implements SIPMessageProcessor {
 	 * @return LinkedList<Pair<Object, Long>> = list of [queryToken, DHT record]
 	 */
 	public LinkedList<Pair<Object, Long>> sampleNodes(int numNodes, int steps) {
-		LinkedList<Pair<Object, Long>> result = this.randWalks.sampleNodes(numNodes, steps);
+		return this.sampleNodes(numNodes, steps, false);
+	}
+	
+	/**
+	 * Retrieves random walks from our random walk cache,
+	 * possibly fewer than numNodes if partial (see RANDWALK_PIPELINED_FILL)
+	 * 
+	 * @param numNodes int 		= number of nodes to retrieve
+	 * @param steps	   int 		= number of steps in random walk
+	 * @param partial  boolean 	= true to accept fewer than numNodes results
+	 * @return LinkedList<Pair<Object, Long>> = list of [queryToken, DHT record]
+	 */
+	public LinkedList<Pair<Object, Long>> sampleNodes(int numNodes, int steps, boolean partial) {
+		LinkedList<Pair<Object, Long>> result = this.randWalks.sampleNodes(numNodes, steps, partial);
 		if (result == null) {
 			this.log.warning("(numNodes="+numNodes+",steps="+steps+") returned false :-(");
 		} else {
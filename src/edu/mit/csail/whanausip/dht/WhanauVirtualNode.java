@@ -1,14 +1,25 @@
 package edu.mit.csail.whanausip.dht;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.rmi.RemoteException;
 import java.security.KeyStore;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import javax.net.ssl.SSLServerSocket;
@@ -33,7 +44,10 @@ public class WhanauVirtualNode<T> implements MethodThreadInterface {
 	private WhanauRefPeerImpl<T> 	peerRef;		//local peer reference
 	private WhanauRefControlImpl<T> controlRef;		//local control reference
 	private SSLServerSocket			serverSock;		//socket to listen for incoming requests
+	private WhanauNIOServer<T>		nioServer;		//non-blocking server, null if serverSock is used
 	private MethodThreadBatchRun 	threadPool;		//Threadpool that serves each request	
+	private ExecutorService			requestPool;	//Threads of the listener, connections, and
+													//requests of multiplexed connections
 	private Set<String> 			controlKeys;	//Keys that can control this node
 	private boolean					isAlive;
 
@@ -47,21 +61,46 @@ public class WhanauVirtualNode<T> implements MethodThreadInterface {
 	 * @throws RemoteException
 	 */
 	public WhanauVirtualNode(WhanauState<T> state, Set<String> controlKeys) throws IOException {
+		this(state, controlKeys, WhanauDHTConstants.NIO_SERVER_ENABLED);
+	}
+	
+	/**
+	 * Initializes a new WhanauDHT node with the following state.
+	 * If useNIO is true, requests are served by a WhanauNIOServer,
+	 * otherwise by one thread per connection
+	 * 
+	 * @param state			WhanauState	= node state
+	 * @param controlKeys	Set<String>	= control keys
+	 * @param useNIO		boolean		= use the non-blocking server
+	 * @throws RemoteException
+	 */
+	public WhanauVirtualNode(WhanauState<T> state, Set<String> controlKeys, boolean useNIO) throws IOException {
 		this.state = state;
 		this.publicRef = new WhanauRefPublicImpl<T>(state);
 		this.peerRef = new WhanauRefPeerImpl<T>(state);
 		this.controlRef = new WhanauRefControlImpl<T>(state, controlKeys);
-		this.threadPool = new MethodThreadBatchRun();
+		//Connections are long-lived, so they get their own threads
+		//instead of taking threads of the pool shared by batches
+		//(virtual threads if MethodThreadScheduler.isVirtualThreads())
+		this.requestPool = MethodThreadScheduler.newConnectionPool();
+		this.threadPool = new MethodThreadBatchRun(this.requestPool);
 		this.controlKeys = controlKeys;
 		this.isAlive = true;
 		
-		SSLServerSocket result = (SSLServerSocket) state.getSSLContext().getServerSocketFactory().createServerSocket(state.getLocalPort());
-	    //Require Client Authentication
-	    result.setWantClientAuth(true);
-	    result.setNeedClientAuth(true);
-	    this.serverSock = result;
-	    //Start listening on the port
-	    this.threadPool.addThread("listener", this, result);
+		if (useNIO) {
+			this.serverSock = null;
+			this.nioServer = new WhanauNIOServer<T>(this, state);
+			this.nioServer.start();
+		} else {
+			SSLServerSocket result = (SSLServerSocket) state.getSSLContext().getServerSocketFactory().createServerSocket(state.getLocalPort());
+		    //Require Client Authentication
+		    result.setWantClientAuth(true);
+		    result.setNeedClientAuth(true);
+		    this.serverSock = result;
+		    this.nioServer = null;
+		    //Start listening on the port
+		    this.threadPool.addThread("listener", this, result);
+		}
 		
 		state.getLog().info("Initializing a new WhanauVirtualNode on "+state.getHashHostPort());
 	}
@@ -86,10 +125,15 @@ public class WhanauVirtualNode<T> implements MethodThreadInterface {
 	public void kill() {
 		this.isAlive = false;
 		try {
-			this.serverSock.close();
+			if (this.nioServer != null)
+				this.nioServer.kill();
+			else
+				this.serverSock.close();
 		} catch (IOException ex) {
 			this.getState().getLog().warning("Error killing node at "+this.getState().getHashHostPort()+" : "+ex.getMessage());
 		}
+		this.requestPool.shutdownNow();
+		this.getState().getKeyState().getConnPool().closeAll();
 		for (WhanauVirtualNode<T> n : this.controlRef.getChildNodes()) {
 			n.kill();
 		}
@@ -110,107 +154,312 @@ public class WhanauVirtualNode<T> implements MethodThreadInterface {
 	 * Otherwise, handle incoming sockets to perform remote method calls.
 	 * 
 	 * @param parameters Object[] 	= SSLSocket or SSLServerSocket
-	 * @return Object 				= return Object, null if fail
+	 * @return Object 				= return Object of the last request, null if fail
 	 */
 	public Object methodThread(Object[] parameters) {
-		SSLSocket sock = null;
 		try {
 			//If SSLServerSocket, instruct to start listening
 			if (parameters[0] instanceof SSLServerSocket) {
 				this.startListening();
 				return null;
 			}
+		} catch (Exception ex) {
+			this.getState().getLog().warning("Error Listening: "+ex.getMessage());
+			return null;
+		}
+		return this.serveConnection((SSLSocket) parameters[0]);
+	}
+	
+	/**
+	 * Serves remote method calls on an accepted socket until the client
+	 * closes it, or no request arrives within SERVER_CONN_IDLE_TIMEOUT.
+	 * Clients with a connection pool send many requests on one socket,
+	 * older clients send a single request and close.
+	 * Clients that start with WhanauRPCFrame.MAGIC use the multiplexed protocol
+	 * (see serveMuxConnection(...))
+	 * The output stream is reset after every response,
+	 * the same as the client does after every request
+	 * A request that fails is answered with null, so the client
+	 * knows it was executed and does not send it again
+	 * 
+	 * @param sock 	SSLSocket 	= accepted socket
+	 * @return 		Object 		= return Object of the last request, null if fail
+	 */
+	private Object serveConnection(SSLSocket sock) {
+		Object result = null;
+		try {
+			sock.setSoTimeout(WhanauDHTConstants.SERVER_CONN_IDLE_TIMEOUT);
+			sock.setTcpNoDelay(true);
 			//Grab the socket and look at the public key
-			sock = (SSLSocket) parameters[0];
+			sock.startHandshake();
+			this.getState().getKeyState().recordServerHandshake();
 			String seeHash = CryptoTool.SHA1toHex(
 	    			sock.getSession().getPeerCertificates()[0].getPublicKey().getEncoded());
-			//Extract the method name and parameters
-			ObjectInputStream in = new ObjectInputStream(sock.getInputStream());
-			String command = (String) in.readObject();
-			Object[] param = (Object[]) in.readObject();
-			Object result = null;
-			
-			//Call the respective method
-			if (command.equals(WhanauDHTConstants.GETID_CMD)) {
-				result = this.getPublicRef().getID((Long) param[0], (Integer) param[1]);
-			} else if (command.equals(WhanauDHTConstants.SUCCESSORSSAMPLE_CMD)) {
-				result = this.getPublicRef().successorsSample((Long)param[0], (Comparable<T>)param[1]);
-			} else if (command.equals(WhanauDHTConstants.LOOKUPTRY_CMD)) {
-			 	result = this.getPublicRef().lookupTry((Long)param[0], (Integer)param[1], (Comparable<T>)param[2]);
-			} else if (command.equals(WhanauDHTConstants.GETPUBKEYHASH_CMD)) {
-				result = this.getPublicRef().getPubKeyHash();
-			} else if (command.equals(WhanauDHTConstants.WAITSTAGE_CMD)) {
-				result = this.getPublicRef().waitStage((Integer)param[0]);
-			} else if (command.equals(WhanauDHTConstants.QUERY_CMD)) {
-				result = this.getPublicRef().query((Comparable<T>)param[0], (Integer)param[1]);
-			} else if (command.equals(WhanauDHTConstants.SAMPLENODES_CMD)) {
-				//Check permissions
-				Integer numNodes = (Integer) param[0];
-				Integer steps = (Integer) param[1];
-				if (this.getState().getPeerByPubKeyHash(seeHash) == null) {
-					throw new Exception("UNAUTHORIZED ATTEMPT to sampleNodes() from "+seeHash+
-							" not in set "+this.getState().getAllPeerKeys());
-				}
-				//Wait until other nodes have caught up
-				this.getState().waitForSetupStage(WhanauState.STAGE1);
-				//Tally total calls to sampleNodes and reject if over limit
-				this.getState().addPeerRandWalkCount(seeHash, (numNodes*steps));
-				if (this.getState().getPeerRandWalkCount(seeHash) > WhanauDHTConstants.MAX_RANDWALK_NUMNODESxSTEPS) {
-					throw new Exception("Peer "+seeHash+" exceeded maximum randwalkcount: "+
-											this.getState().getPeerRandWalkCount(seeHash));
+			//Multiplexed clients start with WhanauRPCFrame.MAGIC,
+			//older clients with the object stream header
+			BufferedInputStream bin = new BufferedInputStream(sock.getInputStream());
+			byte[] magic = new byte[WhanauRPCFrame.MAGIC.length];
+			bin.mark(magic.length);
+			new DataInputStream(bin).readFully(magic);
+			if (Arrays.equals(magic, WhanauRPCFrame.MAGIC)) {
+				this.serveMuxConnection(sock, seeHash, bin);
+				sock.close();
+				return null;
+			}
+			bin.reset();
+			ObjectInputStream in = new ObjectInputStream(bin);
+			ObjectOutputStream out = null;
+			while (this.isAlive) {
+				//Extract the method name and parameters
+				String command;
+				try {
+					command = (String) in.readObject();
+				} catch (EOFException ex) {
+					//Client closed the connection
+					break;
+				} catch (SocketTimeoutException ex) {
+					//Idle connection
+					break;
 				}
-				result = this.getPeerRef().sampleNodes(numNodes, steps); 
-			} else {  //CONTROL METHODS
-				//Check permissions
-				if (this.controlKeys==null || !this.getControlKeys().contains(seeHash)) {
-					throw new Exception("UNAUTHORIZED ATTEMPT to "+command+"() from "+seeHash+
-							" not in set "+this.getControlKeys());
+				Object[] param = (Object[]) in.readObject();
+				try {
+					result = this.processCommand(seeHash, command, param);
+				} catch (Exception ex) {
+					//The client throws, like for a STATUS_ERROR frame
+					this.getState().getLog().warning("Error Processing Request: "+ex.getMessage());
+					result = new WhanauRPCError(ex.getClass().getName()+": "+ex.getMessage());
 				}
-				
-				if (command.equals(WhanauDHTConstants.CREATENODE_CMD)) {
-					result = this.getControlRef().createNode((Serializable)param[0], (KeyValueChecker<T>)param[1],(String)param[2],(Integer)param[3],(KeyStore)param[4],(String)param[5]);
-				} else if (command.equals(WhanauDHTConstants.GETSTATE_CMD)) {
-					result = this.getControlRef().getState();
-				} else if (command.equals(WhanauDHTConstants.GETSTATESTR_CMD)) {
-					result = this.getControlRef().getStateStr();
-				} else if (command.equals(WhanauDHTConstants.GETLOGSTR_CMD)) {
-					result = this.getControlRef().getLogStr();
-				} else if (command.equals(WhanauDHTConstants.ADDPEER_CMD)) {
-					result = this.getControlRef().addPeer((String)param[0],(String)param[1],(Integer)param[2]);
-				} else if (command.equals(WhanauDHTConstants.REMOVEALLPEERS_CMD)) {
-					result = this.getControlRef().removeAllPeers();
-				} else if (command.equals(WhanauDHTConstants.SETSETUPSTAGE_CMD)) {
-					result = this.getControlRef().setSetupStage((Integer)param[0]);
-				} else if (command.equals(WhanauDHTConstants.RUNSETUPPART1THREAD_CMD)) {
-					result = this.getControlRef().runSetupPart1Thread((Integer)param[0],(Integer)param[1],(Integer)param[2],(Integer)param[3]);
-				} else if (command.equals(WhanauDHTConstants.RUNSETUPPART2THREAD_CMD)) {
-					result = this.getControlRef().runSetupPart2Thread((Integer)param[0],(Integer)param[1],(Integer)param[2],(Integer)param[3]);
-				} else if (command.equals(WhanauDHTConstants.JOINSETUPTHREAD_CMD)) {
-					result = this.getControlRef().joinSetupThread();
-				} else if (command.equals(WhanauDHTConstants.GETSETUPTHREADRESULT_CMD)) {
-					result = this.getControlRef().getSetupThreadResult();
-				} else if (command.equals(WhanauDHTConstants.LOOKUP_CMD)) {
-					result = this.getControlRef().lookup((Integer)param[0],(Integer)param[1],(Integer)param[2],(Integer)param[3],(Comparable<T>)param[4]);
-				} else if (command.equals(WhanauDHTConstants.PUBLISHVALUE_CMD)) {
-					result = this.getControlRef().publishValue((Serializable)param[0]);
-				} 
+				//Return result
+				if (out == null)
+					out = new ObjectOutputStream(sock.getOutputStream());
+				out.writeObject(result);
+				out.flush();
+				out.reset();
 			}
-			//Return result and close
-			ObjectOutputStream out = new ObjectOutputStream(sock.getOutputStream());
-			out.writeObject(result);
-			sock.close();
-			return result;
 		} catch (Exception ex) {
 			ex.printStackTrace();
 			this.getState().getLog().warning("Error Processing Request: "+ex.getMessage());
+			result = null;
 		}
 		try {
-			if (sock != null)
-				sock.close();
+			sock.close();
 		} catch (IOException ex){
 			this.getState().getLog().warning("Error closing socket");
 		}
-		return null;
+		return result;
+	}
+	
+	/**
+	 * Serves a connection with the multiplexed protocol (see WhanauRPCFrame).
+	 * This thread reads request frames, each request runs on requestPool,
+	 * and responses are written as soon as they are ready, in any order.
+	 * Returns when the client closes the connection, or it is idle.
+	 * A timeout is only survived between frames: once part of a frame
+	 * was read, the rest of the stream can no longer be parsed
+	 * 
+	 * @param sock 		SSLSocket 	= accepted socket, after MAGIC was read
+	 * @param seeHash 	String 		= public key hash of the client
+	 * @param bin 		InputStream = input of the socket
+	 * @throws IOException
+	 */
+	private void serveMuxConnection(SSLSocket sock, final String seeHash, InputStream bin) throws IOException {
+		CountingInputStream countIn = new CountingInputStream(bin);
+		DataInputStream in = new DataInputStream(countIn);
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+		final AtomicInteger numPending = new AtomicInteger(0);
+		out.write(WhanauRPCFrame.MAGIC);
+		out.flush();
+		while (this.isAlive) {
+			final WhanauRPCFrame request;
+			long readBefore = countIn.getCount();
+			try {
+				request = WhanauRPCFrame.read(in);
+			} catch (EOFException ex) {
+				//Client closed the connection
+				break;
+			} catch (SocketTimeoutException ex) {
+				//Part of a frame was consumed, the stream is out of sync
+				if (countIn.getCount() != readBefore) {
+					this.getState().getLog().warning("Timeout in the middle of a request frame, closing connection");
+					break;
+				}
+				//Keep the connection while requests are in progress
+				if (numPending.get() > 0)
+					continue;
+				break;
+			}
+			numPending.incrementAndGet();
+			try {
+				this.requestPool.execute(new Runnable() {
+					public void run() {
+						WhanauRPCFrame response = processFrame(seeHash, request);
+						try {
+							synchronized (out) {
+								response.write(out);
+								out.flush();
+							}
+						} catch (IOException ex) {
+							getState().getLog().warning("Error sending response: "+ex.getMessage());
+						}
+						numPending.decrementAndGet();
+					}
+				});
+			} catch (RejectedExecutionException ex) {
+				//Node was killed
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Executes a request frame of the multiplexed protocol
+	 * Failures are returned to the client in the response frame,
+	 * since other requests still use the connection
+	 * 
+	 * @param seeHash	String			= public key hash of the client
+	 * @param request	WhanauRPCFrame	= request
+	 * @return WhanauRPCFrame			= response with the same request ID
+	 */
+	protected WhanauRPCFrame processFrame(String seeHash, WhanauRPCFrame request) {
+		return this.processFrame(seeHash, request, null);
+	}
+	
+	/**
+	 * Executes a request frame of the multiplexed protocol,
+	 * which may have been decoded already
+	 * 
+	 * @param seeHash	String			= public key hash of the client
+	 * @param request	WhanauRPCFrame	= request
+	 * @param decoded	Object[]		= WhanauRPCCodec.decodeRequest(...) of the payload,
+	 * 									  null to decode it here
+	 * @return WhanauRPCFrame			= response with the same request ID
+	 */
+	protected WhanauRPCFrame processFrame(String seeHash, WhanauRPCFrame request, Object[] decoded) {
+		byte format = WhanauRPCCodec.FORMAT_JAVA;
+		try {
+			Object[] call = decoded;
+			if (call == null)
+				call = WhanauRPCCodec.decodeRequest(request.getPayload());
+			format = (Byte) call[2];
+			Object result = this.processCommand(seeHash, (String) call[0], (Object[]) call[1]);
+			return new WhanauRPCFrame(request.getRequestID(), WhanauRPCFrame.STATUS_OK,
+										WhanauRPCCodec.encodeResponse(result, format));
+		} catch (Exception ex) {
+			this.getState().getLog().warning("Error Processing Request: "+ex.getMessage());
+			try {
+				return new WhanauRPCFrame(request.getRequestID(), WhanauRPCFrame.STATUS_ERROR,
+										WhanauRPCCodec.encodeResponse(ex.getClass().getName()+": "+ex.getMessage(), format));
+			} catch (IOException e) {
+				return new WhanauRPCFrame(request.getRequestID(), WhanauRPCFrame.STATUS_ERROR, new byte[0]);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the setup stage a command waits for (in waitForSetupStage(...))
+	 * before it does its work
+	 * 
+	 * @param command	String		= name of method
+	 * @param param		Object[]	= parameters to method
+	 * @return int					= setup stage, -1 if the command does not wait
+	 */
+	protected int getRequiredStage(String command, Object[] param) {
+		try {
+			if (command.equals(WhanauDHTConstants.WAITSTAGE_CMD))
+				return (Integer) param[0];
+			if (command.equals(WhanauDHTConstants.GETID_CMD))
+				return (2*(Integer) param[1])+3;
+			if (command.equals(WhanauDHTConstants.SUCCESSORSSAMPLE_CMD))
+				return WhanauState.STAGE2;
+			if (command.equals(WhanauDHTConstants.SAMPLENODES_CMD))
+				return WhanauState.STAGE1;
+		} catch (RuntimeException ex) {
+			//Malformed parameters, processCommand(...) fails on them
+		}
+		return -1;
+	}
+	
+	/**
+	 * Checks permissions and calls the respective method
+	 * 
+	 * @param seeHash	String		= public key hash of the client, from the SSL handshake
+	 * @param command	String		= name of method
+	 * @param param		Object[]	= parameters to method
+	 * @return Object				= return Object
+	 * @throws Exception			= unauthorized client, or method failed
+	 */
+	protected Object processCommand(String seeHash, String command, Object[] param) throws Exception {
+		Object result = null;
+		
+		//Call the respective method
+		if (command.equals(WhanauDHTConstants.GETID_CMD)) {
+			result = this.getPublicRef().getID((Long) param[0], (Integer) param[1]);
+		} else if (command.equals(WhanauDHTConstants.SUCCESSORSSAMPLE_CMD)) {
+			result = this.getPublicRef().successorsSample((Long)param[0], (Comparable<T>)param[1]);
+		} else if (command.equals(WhanauDHTConstants.LOOKUPTRY_CMD)) {
+		 	result = this.getPublicRef().lookupTry((Long)param[0], (Integer)param[1], (Comparable<T>)param[2]);
+		} else if (command.equals(WhanauDHTConstants.GETPUBKEYHASH_CMD)) {
+			result = this.getPublicRef().getPubKeyHash();
+		} else if (command.equals(WhanauDHTConstants.WAITSTAGE_CMD)) {
+			result = this.getPublicRef().waitStage((Integer)param[0]);
+		} else if (command.equals(WhanauDHTConstants.QUERY_CMD)) {
+			result = this.getPublicRef().query((Comparable<T>)param[0], (Integer)param[1]);
+		} else if (command.equals(WhanauDHTConstants.SAMPLENODES_CMD)) {
+			//Check permissions
+			Integer numNodes = (Integer) param[0];
+			Integer steps = (Integer) param[1];
+			if (this.getState().getPeerByPubKeyHash(seeHash) == null) {
+				throw new Exception("UNAUTHORIZED ATTEMPT to sampleNodes() from "+seeHash+
+						" not in set "+this.getState().getAllPeerKeys());
+			}
+			//Wait until other nodes have caught up
+			this.getState().waitForSetupStage(WhanauState.STAGE1);
+			//Tally total calls to sampleNodes and reject if over limit
+			this.getState().addPeerRandWalkCount(seeHash, (numNodes*steps));
+			if (this.getState().getPeerRandWalkCount(seeHash) > WhanauDHTConstants.MAX_RANDWALK_NUMNODESxSTEPS) {
+				throw new Exception("Peer "+seeHash+" exceeded maximum randwalkcount: "+
+										this.getState().getPeerRandWalkCount(seeHash));
+			}
+			result = this.getPeerRef().sampleNodes(numNodes, steps); 
+		} else {  //CONTROL METHODS
+			//Check permissions
+			if (this.controlKeys==null || !this.getControlKeys().contains(seeHash)) {
+				throw new Exception("UNAUTHORIZED ATTEMPT to "+command+"() from "+seeHash+
+						" not in set "+this.getControlKeys());
+			}
+			
+			if (command.equals(WhanauDHTConstants.CREATENODE_CMD)) {
+				result = this.getControlRef().createNode((Serializable)param[0], (KeyValueChecker<T>)param[1],(String)param[2],(Integer)param[3],(KeyStore)param[4],(String)param[5]);
+			} else if (command.equals(WhanauDHTConstants.GETSTATE_CMD)) {
+				result = this.getControlRef().getState();
+			} else if (command.equals(WhanauDHTConstants.GETSTATESTR_CMD)) {
+				result = this.getControlRef().getStateStr();
+			} else if (command.equals(WhanauDHTConstants.GETLOGSTR_CMD)) {
+				result = this.getControlRef().getLogStr();
+			} else if (command.equals(WhanauDHTConstants.ADDPEER_CMD)) {
+				result = this.getControlRef().addPeer((String)param[0],(String)param[1],(Integer)param[2]);
+			} else if (command.equals(WhanauDHTConstants.REMOVEALLPEERS_CMD)) {
+				result = this.getControlRef().removeAllPeers();
+			} else if (command.equals(WhanauDHTConstants.SETSETUPSTAGE_CMD)) {
+				result = this.getControlRef().setSetupStage((Integer)param[0]);
+			} else if (command.equals(WhanauDHTConstants.RUNSETUPPART1THREAD_CMD)) {
+				result = this.getControlRef().runSetupPart1Thread((Integer)param[0],(Integer)param[1],(Integer)param[2],(Integer)param[3]);
+			} else if (command.equals(WhanauDHTConstants.RUNSETUPPART2THREAD_CMD)) {
+				result = this.getControlRef().runSetupPart2Thread((Integer)param[0],(Integer)param[1],(Integer)param[2],(Integer)param[3]);
+			} else if (command.equals(WhanauDHTConstants.JOINSETUPTHREAD_CMD)) {
+				result = this.getControlRef().joinSetupThread();
+			} else if (command.equals(WhanauDHTConstants.GETSETUPTHREADRESULT_CMD)) {
+				result = this.getControlRef().getSetupThreadResult();
+			} else if (command.equals(WhanauDHTConstants.LOOKUP_CMD)) {
+				//Keys may come from the command line as Strings
+				Comparable<T> key = (param[4] instanceof String) ? 
+						this.getState().getKVChecker().stringToKey((String)param[4]) : (Comparable<T>)param[4];
+				result = this.getControlRef().lookup((Integer)param[0],(Integer)param[1],(Integer)param[2],(Integer)param[3],key);
+			} else if (command.equals(WhanauDHTConstants.PUBLISHVALUE_CMD)) {
+				result = this.getControlRef().publishValue((Serializable)param[0]);
+			} 
+		}
+		return result;
 	}
 	
 	/**
@@ -266,9 +515,9 @@ public class WhanauVirtualNode<T> implements MethodThreadInterface {
 			Logger log = LogUtil.createLogger("whanau", null);
 			KeyStore keys = CryptoTool.loadKeyStore(myKeyFile, password); 
 			WhanauKeyState keyState = new WhanauKeyState(keys, password);
-			KeyValueChecker<String> kvChecker = new SigningKVChecker<String>(log,keyState,WhanauDHTConstants.DEFAULT_TTL);
-			WhanauState<String> state = new WhanauState<String>(value, kvChecker,hostname,port,keyState,log,null);
-			WhanauVirtualNode<String> server = new WhanauVirtualNode<String>(state,controlKeys);
+			KeyValueChecker<WhanauKey> kvChecker = new SigningKVChecker<WhanauKey>(log,keyState,WhanauDHTConstants.DEFAULT_TTL);
+			WhanauState<WhanauKey> state = new WhanauState<WhanauKey>(value, kvChecker,hostname,port,keyState,log,null);
+			WhanauVirtualNode<WhanauKey> server = new WhanauVirtualNode<WhanauKey>(state,controlKeys);
 		} catch (Exception ex) {
 			ex.printStackTrace();
 		}
@@ -0,0 +1,114 @@
+package edu.mit.csail.whanausip.dht.kvchecker;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import edu.mit.csail.whanausip.commontools.CryptoTool;
+import edu.mit.csail.whanausip.commontools.WhanauDHTRecord;
+
+/**
+ * Handle to a DHT record, as created and checked by a KeyValueChecker.
+ * Only the raw form of the record is sent over the network.
+ * The decoded WhanauDHTRecord and the key are computed the first time
+ * they are needed and kept, so each copy of a record is decoded once
+ *
+ * Thread-safe
+ *
+ * @author ryscheng
+ * @date 2010/08/30
+ */
+public abstract class DHTRecordHandle<T> implements Serializable {
+	private static final long serialVersionUID = -4418924403537337117L;
+	
+	private transient WhanauDHTRecord<T> 	record;		//Decoded record, null until needed
+	private transient Comparable<T> 		key;		//Key of the record, null until needed
+	private transient byte[] 				serialized;	//Java serialization of this handle, null until needed
+	
+	/**
+	 * Decodes the record from its raw form
+	 * 
+	 * @return WhanauDHTRecord<T>
+	 * @throws Exception = malformed record
+	 */
+	protected abstract WhanauDHTRecord<T> decodeRecord() throws Exception;
+	
+	/**
+	 * Computes the self-certified key of the record
+	 * 
+	 * @return Comparable<T>
+	 * @throws Exception = malformed record
+	 */
+	protected abstract Comparable<T> computeKey() throws Exception;
+	
+	/**
+	 * Returns the decoded record
+	 * 
+	 * @return WhanauDHTRecord<T>
+	 * @throws Exception = malformed record
+	 */
+	public synchronized WhanauDHTRecord<T> getRecord() throws Exception {
+		if (this.record == null)
+			this.record = this.decodeRecord();
+		return this.record;
+	}
+	
+	/**
+	 * Returns the self-certified key of the record
+	 * 
+	 * @return Comparable<T>
+	 * @throws Exception = malformed record
+	 */
+	public synchronized Comparable<T> getKey() throws Exception {
+		if (this.key == null)
+			this.key = this.computeKey();
+		return this.key;
+	}
+	
+	/**
+	 * Returns the Java serialization of this handle
+	 * Handles are immutable, so it is computed once
+	 * Not copied, do not modify
+	 * 
+	 * @return byte[]
+	 * @throws IOException
+	 */
+	public synchronized byte[] getSerialized() throws IOException {
+		if (this.serialized == null)
+			this.serialized = CryptoTool.serialize(this);
+		return this.serialized;
+	}
+	
+	/**
+	 * Returns the value stored in the record
+	 * 
+	 * @return Serializable
+	 * @throws Exception = malformed record
+	 */
+	public Serializable getValue() throws Exception {
+		return this.getRecord().getValue();
+	}
+	
+	/**
+	 * Returns the time the record expires
+	 * 
+	 * @return long = creation time + TTL (ms)
+	 * @throws Exception = malformed record
+	 */
+	public long getExpiry() throws Exception {
+		WhanauDHTRecord<T> currRecord = this.getRecord();
+		return currRecord.getCreationTime() + currRecord.getTtl();
+	}
+	
+	/**
+	 * Returns the String representation of the record
+	 * 
+	 * @return String
+	 */
+	public String toString() {
+		try {
+			return this.getRecord().toString();
+		} catch (Exception ex) {
+			return "InvalidRecord";
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package edu.mit.csail.whanausip.dht.kvchecker;
+
+/**
+ * Handle to a DHT record signed with Ed25519 (see Ed25519KVChecker).
+ * The encoded public key in the record is the raw 32 byte key.
+ * Only Ed25519KVChecker checks these handles, and it decodes the key
+ * itself, so the handle type cannot change how a record is verified
+ *
+ * @author ryscheng
+ * @date 2010/08/30
+ */
+public class Ed25519DHTRecordHandle<T> extends SignedDHTRecordHandle<T> {
+	private static final long serialVersionUID = 5315866390672104582L;
+	
+	/**
+	 * @param content 	byte[] = serialized WhanauDHTRecord
+	 * @param signature byte[] = Ed25519 signature of content
+	 */
+	public Ed25519DHTRecordHandle(byte[] content, byte[] signature) {
+		super(content, signature);
+	}
+}
@@ -0,0 +1,101 @@
+package edu.mit.csail.whanausip.dht.kvchecker;
+
+import java.io.Serializable;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.logging.Logger;
+
+import edu.mit.csail.whanausip.commontools.*;
+import edu.mit.csail.whanausip.dht.WhanauKeyState;
+
+/**
+ * Describes one mode of operation for this DHT
+ * Same as SigningKVChecker, but records are signed with Ed25519
+ * instead of the node's RSA keys
+ * Key = WhanauKey, SHA1 hash of the 32 byte Ed25519 public key
+ * Object = Ed25519DHTRecordHandle, a serialized WhanauDHTRecord instance and its signature.
+ * The record also carries the hash of the node's SSL key,
+ * so that remote references to the owner are still authenticated
+ * 
+ * Needs Ed25519 in the JDK (Java 15+)
+ * 
+ * @author ryscheng
+ * @date 2010/08/30
+ */
+public class Ed25519KVChecker<T> extends SigningKVChecker<T> {
+	
+	private KeyPair 	signingKeys;	//Ed25519 keys, the DHT key is the hash of the public key
+	private byte[] 		rawPublicKey;	//32 byte public key
+	
+	/**
+	 * Initializes a new Ed25519KVChecker with new Ed25519 keys
+	 * The DHT key of this node changes with every new instance
+	 * 
+	 * @param log 		Logger 			= stores log entries from this Object
+	 * @param keyState 	WhanauKeyState 	= stores the SSL keys
+	 * 					Used to create remote references
+	 * @param ttl		long			= Time-to-live on all created records
+	 * 										(milliseconds)
+	 * @throws NoSuchAlgorithmException = no Ed25519 in this JDK
+	 */
+	public Ed25519KVChecker(Logger log, WhanauKeyState keyState, long ttl) throws NoSuchAlgorithmException {
+		this(log, keyState, CryptoTool.generateEd25519KeyPair(), ttl);
+	}
+	
+	/**
+	 * Initializes a new Ed25519KVChecker
+	 * 
+	 * @param log 			Logger 			= stores log entries from this Object
+	 * @param keyState 		WhanauKeyState 	= stores the SSL keys
+	 * 						Used to create remote references
+	 * @param signingKeys	KeyPair			= Ed25519 keys to sign records with
+	 * @param ttl			long			= Time-to-live on all created records
+	 * 											(milliseconds)
+	 */
+	public Ed25519KVChecker(Logger log, WhanauKeyState keyState, KeyPair signingKeys, long ttl) {
+		super(log, keyState, ttl);
+		this.signingKeys = signingKeys;
+		try {
+			this.rawPublicKey = CryptoTool.encodeEd25519PublicKey(signingKeys.getPublic());
+		} catch (Exception ex) {
+			throw new IllegalArgumentException("signingKeys must be Ed25519 keys", ex);
+		}
+	}
+	
+	/**
+	 * Checks the Ed25519 signature of a record
+	 * Records signed with other algorithms are invalid
+	 */
+	protected boolean verifySignature(SignedDHTRecordHandle<T> handle) throws Exception {
+		PublicKey pubKey = this.decodePublicKey(handle.getRecord().getEncodedPublicKey());
+		return CryptoTool.verifyEd25519(handle.getContent(), handle.getSignature(), pubKey);
+	}
+	
+	/**
+	 * The encoded public key is the raw 32 byte key
+	 */
+	protected PublicKey decodePublicKey(byte[] encodedKey) throws Exception {
+		return CryptoTool.decodeEd25519PublicKey(encodedKey);
+	}
+	
+	/**
+	 * Only Ed25519DHTRecordHandles are accepted
+	 */
+	protected Class<?> getHandleClass() {
+		return Ed25519DHTRecordHandle.class;
+	}
+	
+	/**
+	 * Creates a new DHT record with the Ed25519 public key and the hash of the SSL key,
+	 * signed with the Ed25519 private key
+	 */
+	protected SignedDHTRecordHandle<T> signRecord(Serializable value, String host, int port) throws Exception {
+		WhanauDHTRecord<T> record = new WhanauDHTRecord<T>(value, host, port, this.rawPublicKey.clone(), 
+														System.currentTimeMillis(), this.getTtl());
+		record.setSslPubKeyHash(this.getKeyState().getPubKeyHash());
+		byte[] content = CryptoTool.serialize(record);
+		byte[] signature = CryptoTool.signEd25519(this.signingKeys.getPrivate(), content);
+		return new Ed25519DHTRecordHandle<T>(content, signature);
+	}
+}
@@ -0,0 +1,39 @@
+package edu.mit.csail.whanausip.dht.kvchecker;
+
+import edu.mit.csail.whanausip.commontools.*;
+
+/**
+ * Handle to an unsigned DHT record whose key is the hash of its value
+ * (see HashingKVChecker). The key is hashed once
+ *
+ * @author ryscheng
+ * @date 2010/08/30
+ */
+public class HashedDHTRecordHandle<T> extends DHTRecordHandle<T> {
+	private static final long serialVersionUID = -7243186014620907353L;
+	
+	private final WhanauDHTRecord<T> structRec;	//The record
+	
+	/**
+	 * @param structRec WhanauDHTRecord<T> = the record, its value is a String
+	 */
+	public HashedDHTRecordHandle(WhanauDHTRecord<T> structRec) {
+		this.structRec = structRec;
+	}
+	
+	protected WhanauDHTRecord<T> decodeRecord() throws Exception {
+		if (this.structRec == null)
+			throw new NullPointerException("empty record");
+		return this.structRec;
+	}
+	
+	/**
+	 * The key is the SHA-1 hash of the value
+	 */
+	protected Comparable<T> computeKey() throws Exception {
+		Object value = this.getValue();
+		if (value == null)
+			return null;
+		return (Comparable<T>) WhanauKey.hashOf(((String) value).getBytes("iso-8859-1"));
+	}
+}
@@ -3,6 +3,8 @@ package edu.mit.csail.whanausip.dht.kvchecker;
 import java.io.Serializable;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.util.BitSet;
+import java.util.List;
 import java.util.logging.Logger;
 
 import edu.mit.csail.whanausip.commontools.*;
@@ -11,8 +13,8 @@ import edu.mit.csail.whanausip.dht.*;
 
 /**
  * Describes one mode of operation for this DHT
- * Key = SHA1 hash of the object.toString()
- * Object = anything
+ * Key = WhanauKey, SHA1 hash of the object.toString()
+ * Object = HashedDHTRecordHandle, wraps a WhanauDHTRecord, the key is hashed once
  * No TTL
  * 
  * @author ryscheng
@@ -98,7 +100,7 @@ public class HashingKVChecker<T> implements KeyValueChecker<T> {
 	
 	/**
 	 * Just checks the validity of the record.
-	 * In this case, the record must be an instance of WhanauDHTRecord
+	 * In this case, the record must be an instance of HashedDHTRecordHandle
 	 * 
 	 * @param record Object = record retrieved from DHT
 	 * @return boolean 		= record is valid, false otherwise
@@ -107,7 +109,25 @@ public class HashingKVChecker<T> implements KeyValueChecker<T> {
 		synchronized (this) {
 			this.numChecks++;
 		}
-		return (record instanceof WhanauDHTRecord<?>);
+		return (record instanceof HashedDHTRecordHandle<?>);
+	}
+	
+	/**
+	 * Checks the validity of a batch of records, like checkRecord(...) on each.
+	 * The checks are cheap, so they run in the calling thread
+	 * 
+	 * @param records 	List<?> = records retrieved from DHT (may contain null)
+	 * @return BitSet 			= bit i is set if records.get(i) is valid
+	 */
+	public BitSet checkRecords(List<?> records) {
+		BitSet result = new BitSet(records.size());
+		int i = 0;
+		for (Object record : records) {
+			if (this.checkRecord(record))
+				result.set(i);
+			i++;
+		}
+		return result;
 	}
 	
 	/**
@@ -129,12 +149,7 @@ public class HashingKVChecker<T> implements KeyValueChecker<T> {
 	 */
 	public Comparable<T> getKeyFromRecord(Object record) {
 		try {
-			Object value = this.getValueFromRecord(record);
-			if (value != null) 
-				return (Comparable<T>) CryptoTool.SHA1toHex(
-										(String)this.getValueFromRecord(record));
-			else 
-				return null;
+			return ((HashedDHTRecordHandle<T>) record).getKey();
 		} catch (Exception ex) {
 			this.getLog().warning(ex.getMessage());
 			return null;
@@ -151,9 +166,9 @@ public class HashingKVChecker<T> implements KeyValueChecker<T> {
 	 */
 	public WhanauRPCClientStub<T> getPtrFromRecord(Object record) {
 		try {
-			WhanauDHTRecord<T> structRec = (WhanauDHTRecord<T>) record;
+			WhanauDHTRecord<T> structRec = ((HashedDHTRecordHandle<T>) record).getRecord();
 			String pubKeyHash = CryptoTool.SHA1toHex(structRec.getEncodedPublicKey());
-			WhanauRPCClientStub<T> result = new WhanauRPCClientStub<T>(this.getLog(), this.getKeyState().getSslCtx(), 
+			WhanauRPCClientStub<T> result = new WhanauRPCClientStub<T>(this.getLog(), this.getKeyState(), 
 												pubKeyHash, structRec.getHost(), structRec.getPort());
 			
 			return result;
@@ -171,8 +186,7 @@ public class HashingKVChecker<T> implements KeyValueChecker<T> {
 	 */
 	public Serializable getValueFromRecord(Object record) {
 		try {
-			WhanauDHTRecord<T> structRec = (WhanauDHTRecord<T>) record;
-			return structRec.getValue();
+			return ((HashedDHTRecordHandle<T>) record).getValue();
 		} catch (Exception ex) {
 			this.getLog().warning(ex.getMessage());
 			return null;
@@ -196,7 +210,7 @@ public class HashingKVChecker<T> implements KeyValueChecker<T> {
 			WhanauDHTRecord<T> record = new WhanauDHTRecord<T>(value, host, port,
 									CryptoTool.getPublicKey(this.getKeyState().getKeys()), 
 									System.currentTimeMillis(), 0);
-			return record;
+			return new HashedDHTRecordHandle<T>(record);
 		} catch (Exception ex) {
 			this.getLog().warning(ex.getMessage());
 			return null;
@@ -210,8 +224,19 @@ public class HashingKVChecker<T> implements KeyValueChecker<T> {
 	 * @return		String			= String representation of key
 	 */
 	public String keyToString(Comparable<T> key) {
+		if (key == null) return "null";
+		return key.toString();
+	}
+	
+	/**
+	 * Parses a key from its hex String representation
+	 * 
+	 * @param str 	String 			= hex SHA1 hash
+	 * @return		Comparable<T>	= key, null if str is not a valid key
+	 */
+	public Comparable<T> stringToKey(String str) {
 		try {
-			return (String) key;
+			return (Comparable<T>) WhanauKey.fromHex(str);
 		} catch (Exception ex) {
 			this.getLog().warning(ex.getMessage());
 			return null;
@@ -241,8 +266,7 @@ public class HashingKVChecker<T> implements KeyValueChecker<T> {
 	 */
 	public String recordToString(Object record) {
 		try {
-			WhanauDHTRecord<T> structRec = (WhanauDHTRecord<T>) record;
-			return record.toString();
+			return ((HashedDHTRecordHandle<T>) record).getRecord().toString();
 		} catch (Exception ex) {
 			this.getLog().warning(ex.getMessage());
 			return null;
@@ -0,0 +1,115 @@
+package edu.mit.csail.whanausip.dht.kvchecker;
+
+import java.util.BitSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import edu.mit.csail.whanausip.commontools.WhanauDHTConstants;
+import edu.mit.csail.whanausip.commontools.threads.MethodThreadScheduler;
+
+/**
+ * Checks a list of DHT records with checkRecord(...), splitting it
+ * between the threads of the crypto pool (MethodThreadScheduler.getCrypto()).
+ * The calling thread checks the first share itself.
+ * Used by KeyValueChecker implementations whose checks are expensive,
+ * callers should not hold any lock while it runs
+ *
+ * @author ryscheng
+ * @date 2010/08/30
+ */
+public class KVCheckerBatch {
+
+	/**
+	 * Checks the validity of every record in the list
+	 *
+	 * @param checker 	KeyValueChecker<?> 	= checks each record
+	 * @param records 	List<?> 			= records retrieved from DHT (may contain null)
+	 * @return BitSet 						= bit i is set if records.get(i) is valid
+	 */
+	public static BitSet checkRecords(final KeyValueChecker<?> checker, List<?> records) {
+		final Object[] array = records.toArray();
+		BitSet result = new BitSet(array.length);
+		int numChunks = Math.min(WhanauDHTConstants.CRYPTO_POOL_THREADS,
+								array.length / Math.max(1, WhanauDHTConstants.CRYPTO_BATCH_MIN_CHUNK));
+		if (numChunks <= 1) {
+			KVCheckerBatch.checkRange(checker, array, 0, array.length, result);
+			return result;
+		}
+		ExecutorService pool = MethodThreadScheduler.getCrypto();
+		LinkedList<Future<BitSet>> futures = new LinkedList<Future<BitSet>>();
+		int[] bounds = new int[numChunks+1];
+		for (int i=0; i<=numChunks; i++) {
+			bounds[i] = (int) ((long) array.length * i / numChunks);
+		}
+		for (int i=1; i<numChunks; i++) {
+			final int start = bounds[i];
+			final int end = bounds[i+1];
+			futures.add(pool.submit(new Callable<BitSet>() {
+				public BitSet call() {
+					BitSet chunk = new BitSet(end);
+					KVCheckerBatch.checkRange(checker, array, start, end, chunk);
+					return chunk;
+				}
+			}));
+		}
+		KVCheckerBatch.checkRange(checker, array, bounds[0], bounds[1], result);
+		int i = 1;
+		for (Future<BitSet> f : futures) {
+			try {
+				result.or(f.get());
+			} catch (ExecutionException ex) {
+				//Check the share again here
+				KVCheckerBatch.checkRange(checker, array, bounds[i], bounds[i+1], result);
+			} catch (InterruptedException ex) {
+				//Unchecked records count as invalid
+				for (Future<BitSet> g : futures) {
+					g.cancel(true);
+				}
+				Thread.currentThread().interrupt();
+				break;
+			}
+			i++;
+		}
+		return result;
+	}
+
+	/**
+	 * Checks the validity of every record in the list,
+	 * and that its key is equal to key
+	 *
+	 * @param checker 	KeyValueChecker<T> 	= checks each record
+	 * @param key 		Comparable<T> 		= expected key of the records
+	 * @param records 	List<?> 			= records retrieved from DHT (may contain null)
+	 * @return BitSet 						= bit i is set if records.get(i) is valid for key
+	 */
+	public static <T> BitSet checkKeyRecords(KeyValueChecker<T> checker, Comparable<T> key, List<?> records) {
+		BitSet result = checker.checkRecords(records);
+		int i = 0;
+		for (Object record : records) {
+			if (result.get(i) && !key.equals(checker.getKeyFromRecord(record)))
+				result.clear(i);
+			i++;
+		}
+		return result;
+	}
+
+	/**
+	 * Checks records[start..end-1] and sets their bits in result
+	 *
+	 * @param checker 	KeyValueChecker<?> 	= checks each record
+	 * @param records 	Object[] 			= records retrieved from DHT
+	 * @param start 	int 				= first index
+	 * @param end 		int 				= last index + 1
+	 * @param result 	BitSet 				= bit i is set if records[i] is valid
+	 */
+	private static void checkRange(KeyValueChecker<?> checker, Object[] records, int start, int end, BitSet result) {
+		for (int i=start; i<end; i++) {
+			if ((records[i] != null) && checker.checkRecord(records[i]))
+				result.set(i);
+		}
+	}
+}
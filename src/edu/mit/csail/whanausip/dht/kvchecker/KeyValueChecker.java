@@ -1,6 +1,8 @@
 package edu.mit.csail.whanausip.dht.kvchecker;
 
 import java.io.Serializable;
+import java.util.BitSet;
+import java.util.List;
 
 import edu.mit.csail.whanausip.dht.WhanauRPCClientStub;
 
@@ -10,6 +12,8 @@ import edu.mit.csail.whanausip.dht.WhanauRPCClientStub;
  * Developers can create their own mechanism for choosing
  * key/value pairs, but must implement this Interface
  * to stay compatible with WhanauDHT
+ * Records are passed around as Object; the checkers in this package
+ * use DHTRecordHandle subclasses, so each part of a record is decoded once
  * 
  * @author ryscheng
  * @date 2010/01/12
@@ -51,6 +55,16 @@ public interface KeyValueChecker<T> {
 	 */
 	public boolean checkRecord(Object record);
 	
+	/**
+	 * Checks the validity of a batch of records, like checkRecord(...) on each.
+	 * Implementations may check them in parallel,
+	 * so callers should not hold locks that the checks could need
+	 * 
+	 * @param records 	List<?> = records retrieved from DHT (may contain null)
+	 * @return BitSet 			= bit i is set if records.get(i) is valid
+	 */
+	public BitSet checkRecords(List<?> records);
+	
 	/**
 	 * Checks if the record has expired
 	 * 
@@ -106,6 +120,15 @@ public interface KeyValueChecker<T> {
 	 */
 	public String keyToString(Comparable<T> key);
 	
+	/**
+	 * Parses a key from its String representation (see keyToString(...))
+	 * Used for keys that come from outside the DHT, like SIP usernames
+	 * 
+	 * @param str 	String 			= String representation of key
+	 * @return		Comparable<T>	= key, null if str is not a valid key
+	 */
+	public Comparable<T> stringToKey(String str);
+	
 	/**
 	 * Converts the value in a record into a String
 	 * 
@@ -0,0 +1,98 @@
+package edu.mit.csail.whanausip.dht.kvchecker;
+
+import java.io.ByteArrayInputStream;
+import java.io.ObjectInputStream;
+
+import edu.mit.csail.whanausip.commontools.*;
+
+/**
+ * Handle to a DHT record signed by its owner (see SigningKVChecker).
+ * Sent as the signed bytes and the signature only (the serialized WhanauDHTRecord
+ * is signed as it is, see CryptoTool.signContent(...));
+ * the decoded record, key,
+ * digest and the result of checking the signature are kept after
+ * they are first computed
+ *
+ * @author ryscheng
+ * @date 2010/08/30
+ */
+public class SignedDHTRecordHandle<T> extends DHTRecordHandle<T> {
+	private static final long serialVersionUID = 2990417336264513718L;
+	
+	private final byte[] 								content;	//Serialized WhanauDHTRecord, the signed bytes
+	private final byte[] 								signature;	//Signature of content
+	private transient WhanauKey 						digest;		//Digest of content and signature, null until needed
+	private transient VerifiedRecordCache.Entry<T> 		verified;	//Result of checking the signature, null until checked
+	
+	/**
+	 * @param content 	byte[] = serialized WhanauDHTRecord
+	 * @param signature byte[] = signature of content
+	 */
+	public SignedDHTRecordHandle(byte[] content, byte[] signature) {
+		this.content = content;
+		this.signature = signature;
+	}
+	
+	/**
+	 * Returns the signed bytes, the serialized record
+	 * Not copied, do not modify
+	 * 
+	 * @return byte[]
+	 */
+	public byte[] getContent() {
+		return this.content;
+	}
+	
+	/**
+	 * Returns the signature of the content
+	 * Not copied, do not modify
+	 * 
+	 * @return byte[]
+	 */
+	public byte[] getSignature() {
+		return this.signature;
+	}
+	
+	protected WhanauDHTRecord<T> decodeRecord() throws Exception {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(this.content));
+		return (WhanauDHTRecord<T>) in.readObject();
+	}
+	
+	/**
+	 * The key is the SHA-1 hash of the encoded public key
+	 */
+	protected Comparable<T> computeKey() throws Exception {
+		return (Comparable<T>) WhanauKey.hashOf(this.getRecord().getEncodedPublicKey());
+	}
+	
+	/**
+	 * Returns the SHA-1 digest of the signed bytes and signature
+	 * (see VerifiedRecordCache.digestOf(...))
+	 * 
+	 * @return WhanauKey
+	 * @throws Exception
+	 */
+	public synchronized WhanauKey getDigest() throws Exception {
+		if (this.digest == null)
+			this.digest = VerifiedRecordCache.digestOf(this.content, this.signature);
+		return this.digest;
+	}
+	
+	/**
+	 * Returns the result of checking the signature
+	 * 
+	 * @return VerifiedRecordCache.Entry<T> = null if not checked yet
+	 */
+	public synchronized VerifiedRecordCache.Entry<T> getVerified() {
+		return this.verified;
+	}
+	
+	/**
+	 * Remembers the result of checking the signature
+	 * 
+	 * @param verified VerifiedRecordCache.Entry<T>
+	 */
+	public synchronized void setVerified(VerifiedRecordCache.Entry<T> verified) {
+		this.verified = verified;
+	}
+}
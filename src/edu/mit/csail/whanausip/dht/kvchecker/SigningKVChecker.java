@@ -4,7 +4,8 @@ import java.io.Serializable;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.security.PublicKey;
-import java.security.SignedObject;
+import java.util.BitSet;
+import java.util.List;
 import java.util.logging.Logger;
 
 import edu.mit.csail.whanausip.commontools.*;
@@ -15,11 +16,14 @@ import edu.mit.csail.whanausip.dht.ssl.RMISSLClientSocketFactory;
 
 /**
  * Describes one mode of operation for this DHT
- * Key = String, SHA1 hash of public key
- * Object = SignedObject, containing a WhanauDHTRecord instance
+ * Key = WhanauKey, SHA1 hash of public key
+ * Object = SignedDHTRecordHandle, a serialized WhanauDHTRecord instance and its signature
  * In order to verify, check that the public key stored in WhanauDHTRecord,
  * when hashed = key, then verify the signature using that public key.
  * Also check the TTL
+ * Results of checks are remembered in a VerifiedRecordCache until the record expires
+ * Only handles of exactly getHandleClass() are checked, and the checker decodes
+ * the public key itself, so the sender of a record cannot choose how it is verified
  * 
  * @author ryscheng
  * @date 2010/05/04 
@@ -29,6 +33,7 @@ public class SigningKVChecker<T> implements KeyValueChecker<T> {
 	private Logger 			log;
 	private WhanauKeyState 	keyState;	//Stores the keys
 	private long 			ttl;
+	private VerifiedRecordCache<T> verified;	//Results of signature checks
 	//DEBUG - records number of times records are created and checked
 	private int 			numCreates;
 	private int 			numChecks;
@@ -46,6 +51,7 @@ public class SigningKVChecker<T> implements KeyValueChecker<T> {
 		this.log = log;
 		this.keyState = keyState;
 		this.ttl = ttl;
+		this.verified = new VerifiedRecordCache<T>(WhanauDHTConstants.VERIFIED_RECORD_CACHE_SIZE);
 		//DEBUG
 		this.numCreates = 0;
 		this.numChecks = 0;
@@ -63,7 +69,7 @@ public class SigningKVChecker<T> implements KeyValueChecker<T> {
 	 * Returns the node's key state
 	 * @return WhanauKeyState
 	 */
-	private WhanauKeyState getKeyState(){
+	protected WhanauKeyState getKeyState(){
 		return this.keyState;
 	}
 	
@@ -95,6 +101,16 @@ public class SigningKVChecker<T> implements KeyValueChecker<T> {
 		return this.numChecks;
 	}
 	
+	/**
+	 * Returns hit and miss counts of the verified record cache
+	 * Debugging purposes
+	 * 
+	 * @return String
+	 */
+	public String getVerifiedStatsStr() {
+		return this.verified.getStatsStr();
+	}
+	
 	/**
 	 * Checks the validity of the record,
 	 * and also checks that the key/value pair is self-certifying
@@ -130,7 +146,26 @@ public class SigningKVChecker<T> implements KeyValueChecker<T> {
 		synchronized (this) {
 			this.numChecks++;
 		}
-		return (this.checkRecordTTL(record) && this.checkRecordSignature(record));
+		VerifiedRecordCache.Entry<T> entry = this.verify(record);
+		if ((entry == null) || !entry.isValid()) {
+			return false;
+		}
+		if (!entry.isLive(System.currentTimeMillis())) {
+			this.getLog().warning("Expired record");
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Checks the validity of a batch of records, like checkRecord(...) on each.
+	 * Signatures are checked in parallel on the crypto pool (see KVCheckerBatch)
+	 * 
+	 * @param records 	List<?> = records retrieved from DHT (may contain null)
+	 * @return BitSet 			= bit i is set if records.get(i) is valid
+	 */
+	public BitSet checkRecords(List<?> records) {
+		return KVCheckerBatch.checkRecords(this, records);
 	}
 	
 	/**
@@ -143,9 +178,7 @@ public class SigningKVChecker<T> implements KeyValueChecker<T> {
 	 */
 	public boolean checkRecordTTL(Object record) {
 		try {
-			SignedObject signedObj = (SignedObject) record;
-			WhanauDHTRecord<T> value = (WhanauDHTRecord<T>) signedObj.getObject();
-			if (System.currentTimeMillis() > (value.getCreationTime() + value.getTtl())) {
+			if (System.currentTimeMillis() > ((SignedDHTRecordHandle<T>) record).getExpiry()) {
 				this.getLog().warning("Expired record");
 				return false;
 			}
@@ -157,21 +190,72 @@ public class SigningKVChecker<T> implements KeyValueChecker<T> {
 	}
 	
 	/**
-	 * Checks if the record is signed with the contained public key
+	 * Checks if the record is signed with the contained public key,
+	 * and finds its key and expiry time.
+	 * The result is kept in the record handle, and in the verified record cache
+	 * for other copies of the record, so each record is only checked once.
+	 * Records that fail with an exception are only marked in the handle,
+	 * the cache keeps results of signature checks only
 	 * 
-	 * @param record 	Object 	= record retrieved from DHT
-	 * @return			boolean	= true if signature is valid, false otherwise
+	 * @param record 	Object 						= record retrieved from DHT
+	 * @return			VerifiedRecordCache.Entry<T>= result of the check, null if malformed
 	 */
-	private boolean checkRecordSignature(Object record){
+	private VerifiedRecordCache.Entry<T> verify(Object record){
+		//Other handle types are rejected before they reach the cache
+		if ((record == null) || (record.getClass() != this.getHandleClass())) {
+			return null;
+		}
+		SignedDHTRecordHandle<T> handle = (SignedDHTRecordHandle<T>) record;
+		VerifiedRecordCache.Entry<T> entry = handle.getVerified();
+		if (entry != null) {
+			return entry;
+		}
 		try {
-			SignedObject signedObj = (SignedObject) record;
-			WhanauDHTRecord<T> value = (WhanauDHTRecord<T>) signedObj.getObject();
-			PublicKey pubKey = CryptoTool.decodePublicKey(value.getEncodedPublicKey());
-			return CryptoTool.verifySignature(signedObj, pubKey);
+			WhanauKey digest = handle.getDigest();
+			entry = this.verified.get(digest);
+			if (entry == null) {
+				boolean valid = this.verifySignature(handle);
+				entry = new VerifiedRecordCache.Entry<T>(valid, valid ? handle.getKey() : null, handle.getExpiry());
+				this.verified.put(digest, entry);
+			}
 		} catch (Exception ex) {
 			this.getLog().warning(ex.getMessage());
-			return false;
+			entry = new VerifiedRecordCache.Entry<T>(false, null, 0);
 		}
+		handle.setVerified(entry);
+		return entry;
+	}
+	
+	/**
+	 * Checks the signature of a record with the public key in it
+	 * 
+	 * @param handle 	SignedDHTRecordHandle<T> 	= record retrieved from DHT
+	 * @return 			boolean 					= true if signature is valid, false otherwise
+	 * @throws Exception = malformed record
+	 */
+	protected boolean verifySignature(SignedDHTRecordHandle<T> handle) throws Exception {
+		PublicKey pubKey = this.decodePublicKey(handle.getRecord().getEncodedPublicKey());
+		return CryptoTool.verifyContent(handle.getContent(), handle.getSignature(), pubKey);
+	}
+	
+	/**
+	 * Decodes the encoded public key of a record
+	 * 
+	 * @param encodedKey byte[] = encoded public key
+	 * @return PublicKey
+	 * @throws Exception = malformed key
+	 */
+	protected PublicKey decodePublicKey(byte[] encodedKey) throws Exception {
+		return CryptoTool.decodePublicKey(encodedKey);
+	}
+	
+	/**
+	 * Returns the type of record handles this checker creates and accepts
+	 * 
+	 * @return Class<?>
+	 */
+	protected Class<?> getHandleClass() {
+		return SignedDHTRecordHandle.class;
 	}
 	
 	/**
@@ -183,10 +267,7 @@ public class SigningKVChecker<T> implements KeyValueChecker<T> {
 	 */
 	public Comparable<T> getKeyFromRecord(Object record) {
 		try {
-			SignedObject signedObj = (SignedObject) record;
-			WhanauDHTRecord<T> value = (WhanauDHTRecord<T>) signedObj.getObject();
-			byte[] encodedKey = value.getEncodedPublicKey();
-			return (Comparable<T>) CryptoTool.SHA1toHex(encodedKey);
+			return ((SignedDHTRecordHandle<T>) record).getKey();
 		} catch (Exception ex) {
 			this.getLog().warning(ex.getMessage());
 			return null;
@@ -203,10 +284,13 @@ public class SigningKVChecker<T> implements KeyValueChecker<T> {
 	 */
 	public WhanauRPCClientStub<T> getPtrFromRecord(Object record) {
 		try {
-			SignedObject signedObj = (SignedObject) record;
-			WhanauDHTRecord<T> value = (WhanauDHTRecord<T>) signedObj.getObject();
-			String pubKeyHash = CryptoTool.SHA1toHex(value.getEncodedPublicKey());
-			WhanauRPCClientStub<T> result = new WhanauRPCClientStub<T>(this.getLog(), this.getKeyState().getSslCtx(), 
+			SignedDHTRecordHandle<T> handle = (SignedDHTRecordHandle<T>) record;
+			WhanauDHTRecord<T> value = handle.getRecord();
+			//The owner's SSL key, if it did not sign the record with it
+			String pubKeyHash = value.getSslPubKeyHash();
+			if (pubKeyHash == null)
+				pubKeyHash = handle.getKey().toString();
+			WhanauRPCClientStub<T> result = new WhanauRPCClientStub<T>(this.getLog(), this.getKeyState(), 
 												pubKeyHash, value.getHost(), value.getPort());
 			return result;
 		} catch (Exception ex) {
@@ -223,9 +307,7 @@ public class SigningKVChecker<T> implements KeyValueChecker<T> {
 	 */
 	public Serializable getValueFromRecord(Object record) {
 		try {
-			SignedObject signedObj = (SignedObject) record;
-			WhanauDHTRecord<T> value = (WhanauDHTRecord<T>) signedObj.getObject();
-			return value.getValue();
+			return ((SignedDHTRecordHandle<T>) record).getValue();
 		} catch (Exception ex) {
 			this.getLog().warning(ex.getMessage());
 			return null;
@@ -246,13 +328,7 @@ public class SigningKVChecker<T> implements KeyValueChecker<T> {
 			this.numCreates++;
 		}
 		try {
-			WhanauDHTRecord<T> record = new WhanauDHTRecord<T>(value, host, port, 
-									CryptoTool.getPublicKey(
-											this.getKeyState().getKeys()), 
-											System.currentTimeMillis(), this.getTtl());
-			SignedObject signedObj = CryptoTool.sign(this.getKeyState().getKeys(), 
-											this.getKeyState().getKeyPassword(), record);
-			return signedObj;
+			return this.signRecord(value, host, port);
 		} catch (Exception ex) {
 			this.getLog().warning(ex.getMessage());
 			return null;
@@ -260,6 +336,26 @@ public class SigningKVChecker<T> implements KeyValueChecker<T> {
 		
 	}
 	
+	/**
+	 * Creates and signs a new DHT record with the node's keys
+	 * 
+	 * @param value	Serialiable	= value to store
+	 * @param host	String		= my hostname or IP address
+	 * @param port	int 		= my WhanauDHT public port
+	 * @return		SignedDHTRecordHandle<T> = signed record
+	 * @throws Exception
+	 */
+	protected SignedDHTRecordHandle<T> signRecord(Serializable value, String host, int port) throws Exception {
+		WhanauDHTRecord<T> record = new WhanauDHTRecord<T>(value, host, port, 
+								CryptoTool.getPublicKey(
+										this.getKeyState().getKeys()), 
+										System.currentTimeMillis(), this.getTtl());
+		byte[] content = CryptoTool.serialize(record);
+		byte[] signature = CryptoTool.signContent(this.getKeyState().getKeys(), 
+										this.getKeyState().getKeyPassword(), content);
+		return new SignedDHTRecordHandle<T>(content, signature);
+	}
+	
 	/**
 	 * Converts the key into a String
 	 * 
@@ -271,6 +367,21 @@ public class SigningKVChecker<T> implements KeyValueChecker<T> {
 		return key.toString();
 	}
 	
+	/**
+	 * Parses a key from its hex String representation
+	 * 
+	 * @param str 	String 			= hex SHA1 hash
+	 * @return		Comparable<T>	= key, null if str is not a valid key
+	 */
+	public Comparable<T> stringToKey(String str) {
+		try {
+			return (Comparable<T>) WhanauKey.fromHex(str);
+		} catch (Exception ex) {
+			this.getLog().warning(ex.getMessage());
+			return null;
+		}
+	}
+	
 	/**
 	 * Converts the value in a record into a String
 	 * 
@@ -295,9 +406,7 @@ public class SigningKVChecker<T> implements KeyValueChecker<T> {
 	 */
 	public String recordToString(Object record) {
 		try {
-			SignedObject signedObj = (SignedObject) record;
-			WhanauDHTRecord<T> dhtRec = (WhanauDHTRecord<T>) signedObj.getObject();
-			return dhtRec.toString();
+			return ((SignedDHTRecordHandle<T>) record).getRecord().toString();
 		} catch (Exception ex) {
 			this.getLog().warning(ex.getMessage());
 		}
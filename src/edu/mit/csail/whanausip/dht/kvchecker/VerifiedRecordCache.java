@@ -0,0 +1,148 @@
+package edu.mit.csail.whanausip.dht.kvchecker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.mit.csail.whanausip.commontools.WhanauKey;
+
+/**
+ * Remembers the result of verifying DHT records, so that checking
+ * a copy of the same record again costs a hash lookup instead of a signature check.
+ * (Each SignedDHTRecordHandle also keeps its own result)
+ *
+ * Entries are found by the SHA-1 digest of the signed bytes
+ * and the signature of the record, so a record that
+ * differs in any bit is verified again.
+ * At most maxSize digests are kept, least recently used are dropped first
+ *
+ * @author ryscheng
+ * @date 2010/08/30
+ */
+public class VerifiedRecordCache<T> {
+	private final int 								maxSize;	//Maximum number of digests
+	private final LinkedHashMap<WhanauKey, Entry<T>> byDigest;	//key=digest of record, LRU order
+	//DEBUG - records number of hits and misses
+	private int 									numHits;
+	private int 									numMisses;
+
+	/**
+	 * Result of verifying one record
+	 */
+	public static class Entry<T> {
+		private final boolean 		valid;		//true if the signature is valid
+		private final Comparable<T> key;		//Key of the record, null if invalid
+		private final long 			expiry;		//Time the record expires (ms)
+
+		/**
+		 * @param valid 	boolean 		= true if the signature is valid
+		 * @param key 		Comparable<T> 	= key of the record
+		 * @param expiry 	long 			= creation time + TTL of the record
+		 */
+		public Entry(boolean valid, Comparable<T> key, long expiry) {
+			this.valid = valid;
+			this.key = key;
+			this.expiry = expiry;
+		}
+
+		public boolean isValid() {
+			return this.valid;
+		}
+
+		public Comparable<T> getKey() {
+			return this.key;
+		}
+
+		public long getExpiry() {
+			return this.expiry;
+		}
+
+		/**
+		 * Returns true if the record is not expired at time now
+		 *
+		 * @param now long = current time (ms)
+		 * @return boolean
+		 */
+		public boolean isLive(long now) {
+			return (now <= this.expiry);
+		}
+	}
+
+	/**
+	 * Creates an empty cache
+	 *
+	 * @param maxSize int = maximum number of records to remember
+	 */
+	public VerifiedRecordCache(final int maxSize) {
+		this.maxSize = maxSize;
+		this.byDigest = new LinkedHashMap<WhanauKey, Entry<T>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry(Map.Entry<WhanauKey, Entry<T>> eldest) {
+				return this.size() > maxSize;
+			}
+		};
+		this.numHits = 0;
+		this.numMisses = 0;
+	}
+
+	/**
+	 * Returns the entry of a record, by its digest
+	 *
+	 * @param digest WhanauKey 	= digestOf(content, signature)
+	 * @return Entry<T> 		= null if not in the cache
+	 */
+	public synchronized Entry<T> get(WhanauKey digest) {
+		Entry<T> result = this.byDigest.get(digest);
+		if (result != null)
+			this.numHits++;
+		else
+			this.numMisses++;
+		return result;
+	}
+
+	/**
+	 * Remembers the result of verifying a record
+	 *
+	 * @param digest WhanauKey 	= digestOf(content, signature)
+	 * @param entry	 Entry<T> 	= result
+	 */
+	public synchronized void put(WhanauKey digest, Entry<T> entry) {
+		if (this.maxSize <= 0)
+			return;
+		this.byDigest.put(digest, entry);
+	}
+
+	/**
+	 * Returns the SHA-1 digest of a signed record
+	 * The length of content is included, so the split between
+	 * content and signature is part of the digest
+	 *
+	 * @param content 	byte[] 	= signed bytes of the record
+	 * @param signature byte[] 	= signature of content
+	 * @return WhanauKey 		= digest
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public static WhanauKey digestOf(byte[] content, byte[] signature) throws IOException, NoSuchAlgorithmException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 + content.length + signature.length);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(content.length);
+		out.write(content);
+		out.write(signature);
+		out.flush();
+		return WhanauKey.hashOf(bytes.toByteArray());
+	}
+
+	/**
+	 * Returns hit and miss counts
+	 *
+	 * @return String
+	 */
+	public synchronized String getStatsStr() {
+		return "VerifiedRecordCache: size="+this.byDigest.size()+"/"+this.maxSize+
+				", hits="+this.numHits+", misses="+this.numMisses+"\n";
+	}
+}
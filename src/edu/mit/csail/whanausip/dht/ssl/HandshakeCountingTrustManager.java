@@ -0,0 +1,72 @@
+package edu.mit.csail.whanausip.dht.ssl;
+
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Trusts all certificates, like CryptoTool.getAllTrustingManager(),
+ * but counts how often the peer's certificate chain is checked.
+ * The chain is only checked during a full handshake.
+ * Resumed (abbreviated) handshakes reuse the cached session and skip the check,
+ * so (total handshakes - full handshakes) = resumed handshakes
+ *
+ * Authentication of the peer is done by comparing the public key hash
+ * of the session's peer certificate (see WhanauRPCClientStub.createSocket()),
+ * which works the same for full and resumed sessions
+ *
+ * @author ryscheng
+ * @date 2010/08/22
+ */
+public class HandshakeCountingTrustManager implements X509TrustManager {
+	private int numFullClient;	//Full handshakes where we are the client
+	private int numFullServer;	//Full handshakes where we are the server
+
+	/**
+	 * Creates a new trust manager with all counters at 0
+	 */
+	public HandshakeCountingTrustManager() {
+		this.numFullClient = 0;
+		this.numFullServer = 0;
+	}
+
+	/**
+	 * Called on the server during a full handshake
+	 */
+	public void checkClientTrusted(X509Certificate[] certs, String authType) {
+		synchronized (this) {
+			this.numFullServer++;
+		}
+	}
+
+	/**
+	 * Called on the client during a full handshake
+	 */
+	public void checkServerTrusted(X509Certificate[] certs, String authType) {
+		synchronized (this) {
+			this.numFullClient++;
+		}
+	}
+
+	public X509Certificate[] getAcceptedIssuers() {
+		return new X509Certificate[0];
+	}
+
+	/**
+	 * Return the number of full handshakes where we are the client
+	 *
+	 * @return int
+	 */
+	public synchronized int getNumFullClient() {
+		return this.numFullClient;
+	}
+
+	/**
+	 * Return the number of full handshakes where we are the server
+	 *
+	 * @return int
+	 */
+	public synchronized int getNumFullServer() {
+		return this.numFullServer;
+	}
+}
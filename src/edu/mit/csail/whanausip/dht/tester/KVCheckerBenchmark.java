@@ -0,0 +1,121 @@
+package edu.mit.csail.whanausip.dht.tester;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.logging.Logger;
+
+import edu.mit.csail.whanausip.commontools.*;
+import edu.mit.csail.whanausip.dht.WhanauKeyState;
+import edu.mit.csail.whanausip.dht.WhanauRPCCodec;
+import edu.mit.csail.whanausip.dht.kvchecker.Ed25519KVChecker;
+import edu.mit.csail.whanausip.dht.kvchecker.KeyValueChecker;
+import edu.mit.csail.whanausip.dht.kvchecker.SigningKVChecker;
+
+/**
+ * Compares the signing throughput, verification throughput and record size
+ * of SigningKVChecker (RSA) and Ed25519KVChecker.
+ * Every record has a different value, and records are checked
+ * as fresh copies (encoded and decoded with WhanauRPCCodec, as received
+ * over the network) by a new checker,
+ * so every check verifies a signature.
+ * Batch verification uses KeyValueChecker.checkRecords(...) with another new checker.
+ *
+ * Usage:
+ * KVCheckerBenchmark [NUMRECORDS]
+ *
+ * @author ryscheng
+ * @date 2010/08/30
+ */
+public class KVCheckerBenchmark {
+
+	public static void main(String[] args) {
+		int numRecords = 2000;
+		if (args.length > 0)
+			numRecords = Integer.parseInt(args[0]);
+		String outputString = "numRecords="+numRecords+"\n";
+		try {
+			String password = "password";
+			Logger log = LogUtil.createLogger("kvbench", null);
+			WhanauKeyState keyState = new WhanauKeyState(CryptoTool.generateKeyStore(password), password);
+			outputString += KVCheckerBenchmark.runChecker("RSA",
+					new SigningKVChecker<WhanauKey>(log, keyState, WhanauDHTConstants.DEFAULT_TTL),
+					new SigningKVChecker<WhanauKey>(log, keyState, WhanauDHTConstants.DEFAULT_TTL),
+					new SigningKVChecker<WhanauKey>(log, keyState, WhanauDHTConstants.DEFAULT_TTL), numRecords);
+			outputString += KVCheckerBenchmark.runChecker("Ed25519",
+					new Ed25519KVChecker<WhanauKey>(log, keyState, WhanauDHTConstants.DEFAULT_TTL),
+					new Ed25519KVChecker<WhanauKey>(log, keyState, WhanauDHTConstants.DEFAULT_TTL),
+					new Ed25519KVChecker<WhanauKey>(log, keyState, WhanauDHTConstants.DEFAULT_TTL), numRecords);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println(e.getMessage());
+		}
+		System.out.println(outputString);
+		System.exit(0);
+	}
+
+	/**
+	 * Creates numRecords records with one checker, and checks copies of them with another
+	 *
+	 * @param name 			String 						= name of the checker
+	 * @param signer 		KeyValueChecker<WhanauKey> 	= creates the records
+	 * @param checker 		KeyValueChecker<WhanauKey> 	= checks the records (empty caches)
+	 * @param batchChecker 	KeyValueChecker<WhanauKey> 	= checks the records as one batch (empty caches)
+	 * @param numRecords 	int 						= number of records
+	 * @return String 									= throughputs and record size
+	 * @throws Exception
+	 */
+	public static String runChecker(String name, KeyValueChecker<WhanauKey> signer,
+									KeyValueChecker<WhanauKey> checker, KeyValueChecker<WhanauKey> batchChecker,
+									int numRecords) throws Exception {
+		Object[] records = new Object[numRecords];
+		byte[][] serialized = new byte[numRecords][];
+		//Warm up
+		for (int i=0; i<100; i++) {
+			Object record = signer.createRecord("warmup"+i, "localhost", 10000);
+			signer.checkRecord(KVCheckerBenchmark.copy(KVCheckerBenchmark.serialize(record)));
+		}
+		long startTime = System.nanoTime();
+		for (int i=0; i<numRecords; i++) {
+			records[i] = signer.createRecord("value"+i, "localhost", 10000+i);
+		}
+		long signTime = System.nanoTime() - startTime;
+		for (int i=0; i<numRecords; i++) {
+			serialized[i] = KVCheckerBenchmark.serialize(records[i]);
+		}
+		Object[] copies = new Object[numRecords];
+		for (int i=0; i<numRecords; i++) {
+			copies[i] = KVCheckerBenchmark.copy(serialized[i]);
+		}
+		int numValid = 0;
+		startTime = System.nanoTime();
+		for (int i=0; i<numRecords; i++) {
+			if (checker.checkRecord(copies[i]))
+				numValid++;
+		}
+		long verifyTime = System.nanoTime() - startTime;
+		for (int i=0; i<numRecords; i++) {
+			copies[i] = KVCheckerBenchmark.copy(serialized[i]);
+		}
+		startTime = System.nanoTime();
+		BitSet batchValid = batchChecker.checkRecords(Arrays.asList(copies));
+		long batchTime = System.nanoTime() - startTime;
+		return name+": sign="+KVCheckerBenchmark.perSecond(numRecords, signTime)+"/s"+
+				", verify="+KVCheckerBenchmark.perSecond(numRecords, verifyTime)+"/s"+
+				", valid="+numValid+"/"+numRecords+
+				", batch verify="+KVCheckerBenchmark.perSecond(numRecords, batchTime)+"/s"+
+				", batch valid="+batchValid.cardinality()+"/"+numRecords+
+				", record size="+serialized[0].length+" bytes\n";
+	}
+
+	private static long perSecond(int count, long nanos) {
+		return (nanos <= 0) ? 0 : (count * 1000000000L / nanos);
+	}
+
+	private static byte[] serialize(Object record) throws Exception {
+		return WhanauRPCCodec.encodeResponse(record, WhanauRPCCodec.FORMAT_BINARY);
+	}
+
+	private static Object copy(byte[] serialized) throws Exception {
+		return WhanauRPCCodec.decodeResponse(serialized);
+	}
+}
@@ -106,7 +106,7 @@ public class WhanauCommandClientList<T> implements MethodThreadInterface{
 			line = line.trim();
 			for (int i=0;i<numPorts;i++) {
 				this.clients.put(line+":"+(startPort+i), 
-							new WhanauRPCClientStub<T>(this.getLog(), this.keyState.getSslCtx(), 
+							new WhanauRPCClientStub<T>(this.getLog(), this.keyState, 
 														null, line, (startPort+i)));
 			}
 			line = bufRead.readLine();
@@ -33,20 +33,21 @@ public class WhanauLocalTester<T> {
 		long lookupTime = 0;
 		int numFails=0;
 		Object result;
-		String key;
+		Comparable<WhanauKey> key;
 		String password = "password";
 		String logPath = "/home/main/Desktop/log/";
 		int startPort = 10001;
-		WhanauRefControl<String> node[] = (WhanauRefControl<String>[])new WhanauRefControl[numNodes];
-		WhanauSybilNode<String> sybilNode;
-		WhanauState<String> states[] = (WhanauState<String>[]) new WhanauState[numNodes];
+		long seed = System.currentTimeMillis();	//Print it to rerun with the same random numbers
+		WhanauRefControl<WhanauKey> node[] = (WhanauRefControl<WhanauKey>[])new WhanauRefControl[numNodes];
+		WhanauSybilNode<WhanauKey> sybilNode;
+		WhanauState<WhanauKey> states[] = (WhanauState<WhanauKey>[]) new WhanauState[numNodes];
 		Logger log;
 		WhanauKeyState keyState;
 		KeyValueChecker kvChecker;
 		HashSet<String> controlKeys = new HashSet<String>();
 		controlKeys.add("asdf");
 		String outputString = "";
-		outputString += "w="+w+", k="+k+", r="+r+"\n";
+		outputString += "w="+w+", k="+k+", r="+r+", seed="+seed+"\n";
 		System.out.println("Starting");
 		//if (System.getSecurityManager() == null) {
         //    System.setSecurityManager(new RMISecurityManager());
@@ -58,20 +59,21 @@ public class WhanauLocalTester<T> {
 				String logFile = logPath+"whanau"+(startPort+i)+".log";
 				log = LogUtil.createLogger("whanau"+(startPort+i), logFile);
 				keyState = new WhanauKeyState(CryptoTool.generateKeyStore(password), password);
-				//kvChecker = new HashingKVChecker<String>(log,keyState);
-				kvChecker = new SigningKVChecker<String>(log,keyState,WhanauDHTConstants.DEFAULT_TTL);
-				states[i] = new WhanauState<String>("n"+i, kvChecker,"localhost",(startPort+i), keyState, log, logFile);
+				//kvChecker = new HashingKVChecker<WhanauKey>(log,keyState);
+				kvChecker = new SigningKVChecker<WhanauKey>(log,keyState,WhanauDHTConstants.DEFAULT_TTL);
+				states[i] = new WhanauState<WhanauKey>("n"+i, kvChecker,"localhost",(startPort+i), keyState, log, logFile);
+				states[i].setRandomSeed(seed+i);
 				controlKeys = new HashSet<String>();
 				controlKeys.add(states[i].getPubKeyHash());
-				node[i] = (new WhanauVirtualNode<String>(states[i], controlKeys)).getControlRef();
+				node[i] = (new WhanauVirtualNode<WhanauKey>(states[i], controlKeys)).getControlRef();
 			}
 			//Create Sybil Node
 			String logFile = logPath+"sybil.log";
 			log = LogUtil.createLogger("sybil", logFile);
 			keyState = new WhanauKeyState(CryptoTool.generateKeyStore(password), password);
-			//kvChecker = new HashingKVChecker<String>(log,keyState);
-			kvChecker = new SigningKVChecker<String>(log,keyState,WhanauDHTConstants.DEFAULT_TTL);
-			sybilNode = new WhanauSybilNode<String>(new WhanauState<String>("sybil", kvChecker,"localhost",(startPort+numNodes), keyState, log, logFile), null);
+			//kvChecker = new HashingKVChecker<WhanauKey>(log,keyState);
+			kvChecker = new SigningKVChecker<WhanauKey>(log,keyState,WhanauDHTConstants.DEFAULT_TTL);
+			sybilNode = new WhanauSybilNode<WhanauKey>(new WhanauState<WhanauKey>("sybil", kvChecker,"localhost",(startPort+numNodes), keyState, log, logFile), null);
 			//Add peers
 			for (int i=0; i<node.length; i++) {
 				for (int j=0;j<numPeers;j++){
@@ -121,7 +123,7 @@ public class WhanauLocalTester<T> {
 					peerNum = node[0].getState().nextRandInt(numNodes);
 					peerNum2 = node[0].getState().nextRandInt(numNodes);
 					Object record = node[peerNum2].getState().sampleNodes(1, 0).getFirst().getFirst();
-					key = (String) node[peerNum2].getState().getKVChecker().getKeyFromRecord(record);
+					key = node[peerNum2].getState().getKVChecker().getKeyFromRecord(record);
 					startTime = System.currentTimeMillis();
 					//result = node[peerNum].lookup(w, key);
 					result = node[peerNum].lookup(WhanauDHTConstants.LOOKUP_TIMEOUT,WhanauDHTConstants.SMALLCALL_TIMEOUT,rl,w,key);
@@ -7,6 +7,7 @@ import java.net.Socket;
 import java.rmi.RemoteException;
 import java.security.KeyStore;
 import java.util.LinkedList;
+import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
 import javax.net.ssl.SSLServerSocket;
@@ -44,7 +45,7 @@ public class WhanauSybilNode<T> implements MethodThreadInterface {
 	 */
 	public WhanauSybilNode(WhanauState<T> state, Comparable<T> targetKey) throws IOException {
 		this.state = state;
-		this.threadPool = new MethodThreadBatchRun();
+		this.threadPool = new MethodThreadBatchRun(Executors.newCachedThreadPool());
 		this.targetKey = targetKey;
 		this.isAlive = true;
 		
@@ -176,9 +177,9 @@ public class WhanauSybilNode<T> implements MethodThreadInterface {
 			Logger log = LogUtil.createLogger("sybil", null);
 			KeyStore keys = CryptoTool.loadKeyStore(sybilKeyFile, password);
 			WhanauKeyState keyState = new WhanauKeyState(keys, password);
-			KeyValueChecker<String> kvChecker = new SigningKVChecker<String>(log,keyState,WhanauDHTConstants.DEFAULT_TTL);
-			WhanauState<String> state = new WhanauState<String>("EVIL!", kvChecker,hostname,port,keyState,log,null);
-			WhanauSybilNode<String> server = new WhanauSybilNode<String>(state,CryptoTool.getPublicKeyHashFromFile(targetKeyFile, password));
+			KeyValueChecker<WhanauKey> kvChecker = new SigningKVChecker<WhanauKey>(log,keyState,WhanauDHTConstants.DEFAULT_TTL);
+			WhanauState<WhanauKey> state = new WhanauState<WhanauKey>("EVIL!", kvChecker,hostname,port,keyState,log,null);
+			WhanauSybilNode<WhanauKey> server = new WhanauSybilNode<WhanauKey>(state,WhanauKey.fromHex(CryptoTool.getPublicKeyHashFromFile(targetKeyFile, password)));
 		} catch (Exception ex) {
 			ex.printStackTrace();
 		}
@@ -0,0 +1,158 @@
+package edu.mit.csail.whanausip.dht.tester;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.HashSet;
+import java.util.logging.Logger;
+
+import edu.mit.csail.whanausip.commontools.*;
+import edu.mit.csail.whanausip.commontools.remote.WhanauRefControl;
+import edu.mit.csail.whanausip.commontools.threads.MethodThreadScheduler;
+import edu.mit.csail.whanausip.dht.*;
+import edu.mit.csail.whanausip.dht.kvchecker.KeyValueChecker;
+import edu.mit.csail.whanausip.dht.kvchecker.SigningKVChecker;
+
+/**
+ * Compares the bounded thread pool with virtual threads.
+ * For each mode, starts a local network (same as WhanauLocalTester),
+ * runs setup and lookups, and reports the number of platform threads
+ * and the lookup latency.
+ * Also reports how often live threads blocked on a monitor,
+ * to measure lock contention on the node state.
+ * Virtual threads are not counted by ThreadMXBean,
+ * only the carrier threads are.
+ *
+ * Usage:
+ * WhanauThreadModeBenchmark [NUMNODES] [NUMLOOKUPS]
+ *
+ * @author ryscheng
+ * @date 2010/08/30
+ */
+public class WhanauThreadModeBenchmark {
+
+	public static void main(String[] args) {
+		int numNodes = 20;
+		int numLookups = 50;
+		if (args.length > 0)
+			numNodes = Integer.parseInt(args[0]);
+		if (args.length > 1)
+			numLookups = Integer.parseInt(args[1]);
+		String outputString = "numNodes="+numNodes+", numLookups="+numLookups+"\n";
+		if (!MethodThreadScheduler.isVirtualThreadSupported())
+			outputString += "WARNING: no virtual threads on this JVM, both modes use the bounded pool\n";
+		try {
+			outputString += WhanauThreadModeBenchmark.runMode(false, numNodes, numLookups, 10001);
+			outputString += WhanauThreadModeBenchmark.runMode(true, numNodes, numLookups, 10001+numNodes);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println(e.getMessage());
+		}
+		System.out.println(outputString);
+		System.exit(0);
+	}
+
+	/**
+	 * Starts numNodes local nodes in the given mode, runs setup and lookups,
+	 * then kills the nodes
+	 *
+	 * @param virtual		boolean	= true to use virtual threads
+	 * @param numNodes		int		= number of nodes
+	 * @param numLookups	int		= number of lookups
+	 * @param startPort		int		= port of the first node
+	 * @return String					= thread counts and latencies
+	 * @throws Exception
+	 */
+	public static String runMode(boolean virtual, int numNodes, int numLookups, int startPort) throws Exception {
+		int numPeers = 3;
+		int w = WhanauDHTConstants.W;
+		int r = WhanauDHTConstants.RD/5;
+		int rl = 10;
+		String password = "password";
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		WhanauVirtualNode<WhanauKey> servers[] = (WhanauVirtualNode<WhanauKey>[]) new WhanauVirtualNode[numNodes];
+		WhanauRefControl<WhanauKey> node[] = (WhanauRefControl<WhanauKey>[]) new WhanauRefControl[numNodes];
+		long startTime, setupTime, lookupTime = 0, maxLookupTime = 0;
+		int numFails = 0;
+
+		MethodThreadScheduler.setVirtualThreads(virtual);
+		if (threads.isThreadContentionMonitoringSupported())
+			threads.setThreadContentionMonitoringEnabled(true);
+		threads.resetPeakThreadCount();
+		int baseThreads = threads.getThreadCount();
+		for (int i=0;i<numNodes;i++) {
+			Logger log = LogUtil.createLogger("bench"+(startPort+i), null);
+			WhanauKeyState keyState = new WhanauKeyState(CryptoTool.generateKeyStore(password), password);
+			KeyValueChecker<WhanauKey> kvChecker = new SigningKVChecker<WhanauKey>(log,keyState,WhanauDHTConstants.DEFAULT_TTL);
+			WhanauState<WhanauKey> state = new WhanauState<WhanauKey>("n"+i, kvChecker,"localhost",(startPort+i), keyState, log, null);
+			HashSet<String> controlKeys = new HashSet<String>();
+			controlKeys.add(state.getPubKeyHash());
+			servers[i] = new WhanauVirtualNode<WhanauKey>(state, controlKeys, false);
+			node[i] = servers[i].getControlRef();
+		}
+		for (int i=0; i<numNodes; i++) {
+			for (int j=0;j<numPeers;j++){
+				int peerNum = node[i].getState().nextRandInt(numNodes);
+				if (peerNum != i){
+					node[i].addPeer(node[peerNum].getState().getPubKeyHash(),"localhost",(startPort+peerNum));
+					node[peerNum].addPeer(node[i].getState().getPubKeyHash(),"localhost",(startPort+i));
+				}
+			}
+		}
+		//SETUP
+		startTime = System.currentTimeMillis();
+		for (int i=0;i<numNodes;i++)
+			node[i].runSetupPart1Thread(w, r, r, r);
+		for (int i=0;i<numNodes;i++)
+			node[i].joinSetupThread();
+		for (int i=0;i<numNodes;i++)
+			node[i].runSetupPart2Thread(w, r, r, r);
+		for (int i=0;i<numNodes;i++)
+			node[i].joinSetupThread();
+		setupTime = System.currentTimeMillis() - startTime;
+		int setupPeak = threads.getPeakThreadCount();
+		//LOOKUPS
+		threads.resetPeakThreadCount();
+		for (int i=0;i<numLookups;i++) {
+			int peerNum = node[0].getState().nextRandInt(numNodes);
+			int peerNum2 = node[0].getState().nextRandInt(numNodes);
+			Object record = node[peerNum2].getState().sampleNodes(1, 0).getFirst().getFirst();
+			Comparable<WhanauKey> key = node[peerNum2].getState().getKVChecker().getKeyFromRecord(record);
+			startTime = System.currentTimeMillis();
+			Object result = node[peerNum].lookup(WhanauDHTConstants.LOOKUP_TIMEOUT,WhanauDHTConstants.SMALLCALL_TIMEOUT,rl,w,key);
+			long time = System.currentTimeMillis() - startTime;
+			if (result == null) {
+				numFails++;
+			} else {
+				lookupTime += time;
+				maxLookupTime = Math.max(maxLookupTime, time);
+			}
+		}
+		int lookupPeak = threads.getPeakThreadCount();
+		long blockedCount = 0, blockedTime = 0;
+		for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+			if (info != null) {
+				blockedCount += info.getBlockedCount();
+				blockedTime += Math.max(0, info.getBlockedTime());
+			}
+		}
+		String routingStats = node[0].getState().getRoutingStatsStr();
+		KeyValueChecker<WhanauKey> kvChecker = node[0].getState().getKVChecker();
+		if (kvChecker instanceof SigningKVChecker<?>)
+			routingStats += "\tnode 0 "+((SigningKVChecker<WhanauKey>) kvChecker).getVerifiedStatsStr();
+		for (int i=0;i<numNodes;i++)
+			servers[i].kill();
+
+		String result = (virtual ? "VIRTUAL" : "BOUNDED")+
+						" (virtual threads in use="+MethodThreadScheduler.isVirtualThreads()+")\n";
+		result += "\tplatform threads: before="+baseThreads+", peak in setup="+setupPeak+
+					", peak in lookups="+lookupPeak+"\n";
+		result += "\tsetup="+setupTime+"ms, lookups fails="+numFails;
+		if (numLookups > numFails)
+			result += " avgSuccTime="+(lookupTime/(numLookups-numFails))+"ms maxSuccTime="+maxLookupTime+"ms";
+		result += "\n\tmonitor contention (live threads): blocked="+blockedCount+" times, "+blockedTime+"ms";
+		result += "\n\tnode 0 "+routingStats;
+		result += "\t"+MethodThreadScheduler.getStatsStr();
+		return result;
+	}
+}
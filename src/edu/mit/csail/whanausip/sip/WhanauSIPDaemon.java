@@ -22,7 +22,7 @@ import edu.mit.csail.whanausip.dht.tester.WhanauSybilNode;
  */
 public class WhanauSIPDaemon {
 	private WhanauSIPGateway 			sipLayer;			//WhanauSIP gateway
-	private WhanauVirtualNode<String> 	whanauNode;			//WhanauDHT node
+	private WhanauVirtualNode<WhanauKey> 	whanauNode;			//WhanauDHT node
 	private Timer 						whanauSetupTimer;	//Timer to re-run setup
 	
 	/**
@@ -54,17 +54,17 @@ public class WhanauSIPDaemon {
 		Logger log = LogUtil.createLogger("whanau"+whanauPort, "whanau"+whanauPort+".log");
 		WhanauKeyState keyState = new WhanauKeyState(keys, keyStorePassword);
 		String value = "sip:"+keyState.getPubKeyHash()+"@"+host+":"+sipPort;
-		WhanauState<String> state = new WhanauState<String>(value, 
-						new SigningKVChecker<String>(log,keyState,WhanauDHTConstants.DEFAULT_TTL), 
+		WhanauState<WhanauKey> state = new WhanauState<WhanauKey>(value, 
+						new SigningKVChecker<WhanauKey>(log,keyState,WhanauDHTConstants.DEFAULT_TTL), 
 						host, whanauPort, keyState, log, "whanau"+whanauPort+".log");
-		WhanauVirtualNode<String> server = new WhanauVirtualNode<String>(state, controlKeys);
+		WhanauVirtualNode<WhanauKey> server = new WhanauVirtualNode<WhanauKey>(state, controlKeys);
 		this.whanauNode = server;
 		//Setup timer to re-run setup
 		//Setup is run every SETUP_PERIOD milliseconds
 		//WhanauSetupTimeTask.run() is run every SETUP_PERIOD/SETUP_TIMER_DIVIDER milliseconds
 		//Check the method for what other tasks need to be run
 		//this.whanauSetupTimer = new Timer(true);
-        //this.whanauSetupTimer.scheduleAtFixedRate(new WhanauSetupTimerTask<String>(log, server), 
+        //this.whanauSetupTimer.scheduleAtFixedRate(new WhanauSetupTimerTask<WhanauKey>(log, server), 
         //									new Date(System.currentTimeMillis() + SIPCommConstants.SETUP_PERIOD
         //												- (System.currentTimeMillis() % SIPCommConstants.SETUP_PERIOD)),
         //									SIPCommConstants.SETUP_PERIOD/SIPCommConstants.SETUP_TIMER_DIVIDER);
@@ -13,6 +13,7 @@ import javax.sip.message.*;
 import edu.mit.csail.whanausip.dht.WhanauVirtualNode;
 import edu.mit.csail.whanausip.commontools.WhanauDHTConstants;
 import edu.mit.csail.whanausip.commontools.SIPCommConstants;
+import edu.mit.csail.whanausip.commontools.WhanauKey;
 
 /**
  * Adapted from JAIN SIP example: (2007/10/17)
@@ -39,7 +40,7 @@ public class WhanauSIPGateway implements SipListener {
     private HeaderFactory 			headerFactory;		//Creates new SIP headers
     private MessageFactory 			messageFactory;		//Creates new SIP messages
     private SipProvider 			sipProvider;		//SIP provider
-    private WhanauVirtualNode<String>whanauNode;		//Whanau Virtual Node
+    private WhanauVirtualNode<WhanauKey>whanauNode;		//Whanau Virtual Node
 
     /**
      * Creates a new WhanauSIP Gateway
@@ -47,14 +48,14 @@ public class WhanauSIPGateway implements SipListener {
      * @param username	String	= this gateway's username
      * @param ip		String	= this gateway's IP address
      * @param port		int		= port this gateway listens on
-     * @param whanauNode WhanauVirtualNode<String> = node to perform lookups on
+     * @param whanauNode WhanauVirtualNode<WhanauKey> = node to perform lookups on
      * @throws PeerUnavailableException
      * @throws TransportNotSupportedException
      * @throws InvalidArgumentException
      * @throws ObjectInUseException
      * @throws TooManyListenersException
      */
-    public WhanauSIPGateway(String username, String ip, int port, WhanauVirtualNode<String> whanauNode)
+    public WhanauSIPGateway(String username, String ip, int port, WhanauVirtualNode<WhanauKey> whanauNode)
 									    throws PeerUnavailableException, TransportNotSupportedException,
 									    InvalidArgumentException, ObjectInUseException,
 									    TooManyListenersException {
@@ -200,7 +201,8 @@ public class WhanauSIPGateway implements SipListener {
 			String toLookup = ((SipURI)to.getAddress().getURI()).getUser();
 			//Perform lookup
 			Object dhtRecord = this.whanauNode.getControlRef().lookup(WhanauDHTConstants.LOOKUP_TIMEOUT, 
-					WhanauDHTConstants.QUERY_TIMEOUT, SIPCommConstants.NUM_LOOKUP_THREADS, WhanauDHTConstants.W, toLookup);
+					WhanauDHTConstants.QUERY_TIMEOUT, SIPCommConstants.NUM_LOOKUP_THREADS, WhanauDHTConstants.W, 
+					this.whanauNode.getState().getKVChecker().stringToKey(toLookup));
 			String result = (String) this.whanauNode.getState().getKVChecker().getValueFromRecord(dhtRecord);
 			//Craft REDIRECT message
 			response = messageFactory.createResponse(302, req); //302 = Redirect Moved Temporarily